@@ -0,0 +1,145 @@
+package breath.distribution;
+
+import java.util.List;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Log;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.StateNode;
+import beast.base.inference.StateNodeInitialiser;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+
+@Description("Initialises block parameters of a transmission tree likelihood with a valid colouring, "
+		+ "then greedily improves block counts and fractions to start close to the posterior mode")
+public class BlockInitialiser extends BEASTObject implements StateNodeInitialiser {
+	final public Input<TransmissionTreeLikelihood> likelihoodInput = new Input<>("likelihood", "transmission treelikelihood containing block parameters", Validate.REQUIRED);
+	final public Input<Integer> maxIterationsInput = new Input<>("maxIterations", "maximum number of sweeps over all branches of the local optimisation. "
+			+ "Only a valid colouring is set up if zero", 10);
+
+	// candidate (start, end) fractions for blocks with blockcount = 0 (start == end) and blockcount > 0
+	final static double [] POINT_FRACTIONS = {0.1, 0.3, 0.5, 0.7, 0.9};
+	final static double [][] BLOCK_FRACTIONS = {{0.1, 0.9}, {0.25, 0.75}, {0.1, 0.5}, {0.5, 0.9}, {0.05, 0.25}, {0.75, 0.95}};
+
+	private TransmissionTreeLikelihood likelihood;
+	private Tree tree;
+	private IntegerParameter blockCount;
+	private RealParameter blockStartFraction;
+	private RealParameter blockEndFraction;
+
+	@Override
+	public void initAndValidate() {
+		likelihood = likelihoodInput.get();
+		tree = (Tree) likelihood.treeInput.get();
+		blockCount = likelihood.blockCountInput.get();
+		blockStartFraction = likelihood.blockStartFractionInput.get();
+		blockEndFraction = likelihood.blockEndFractionInput.get();
+	}
+
+	@Override
+	public void initStateNodes() {
+		likelihood.calcColourAtBase();
+		if (!likelihood.getTransmissionColouring().isValid()) {
+			// a transmission halfway every branch always gives a valid colouring
+			for (int i = 0; i < tree.getNodeCount() - 1; i++) {
+				blockCount.setValue(i, 0);
+				blockStartFraction.setValue(i, 0.5);
+				blockEndFraction.setValue(i, 0.5);
+			}
+			blockCount.setValue(tree.getRoot().getNr(), -1);
+		}
+
+		double logP = calcLogP();
+		double initialLogP = logP;
+		for (int iteration = 0; iteration < maxIterationsInput.get(); iteration++) {
+			double prevLogP = logP;
+			for (int i = 0; i < tree.getNodeCount(); i++) {
+				if (!tree.getNode(i).isRoot()) {
+					logP = optimiseBranch(i, logP);
+				}
+			}
+			if (logP - prevLogP < 1e-6) {
+				break;
+			}
+		}
+		logP = calcLogP();
+		Log.info("BlockInitialiser: log likelihood improved from " + initialLogP + " to " + logP);
+	}
+
+	// try block counts -1, 0, 1 and current +/- 1 with a few fractions on branch i,
+	// and keep the best one. Only the contribution of branch i is evaluated, which changes
+	// by as much as the full likelihood does, and the updated full likelihood is returned
+	private double optimiseBranch(int i, double logP) {
+		int current = blockCount.getValue(i);
+		int bestCount = current;
+		double bestStart = blockStartFraction.getValue(i);
+		double bestEnd = blockEndFraction.getValue(i);
+		double currentLogP = likelihood.calculateBranchContribution(i);
+		double bestLogP = currentLogP;
+
+		int [] counts = current > 1 ? new int[]{-1, 0, 1, current - 1, current, current + 1} : new int[]{-1, 0, 1, 2};
+		for (int count : counts) {
+			if (count == -1) {
+				double newLogP = tryValues(i, -1, bestStart, bestEnd);
+				if (newLogP > bestLogP) {
+					bestLogP = newLogP;
+					bestCount = -1;
+				}
+			} else if (count == 0) {
+				for (double f : POINT_FRACTIONS) {
+					double newLogP = tryValues(i, 0, f, f);
+					if (newLogP > bestLogP) {
+						bestLogP = newLogP;
+						bestCount = 0; bestStart = f; bestEnd = f;
+					}
+				}
+			} else {
+				for (double [] f : BLOCK_FRACTIONS) {
+					double newLogP = tryValues(i, count, f[0], f[1]);
+					if (newLogP > bestLogP) {
+						bestLogP = newLogP;
+						bestCount = count; bestStart = f[0]; bestEnd = f[1];
+					}
+				}
+			}
+		}
+		setValues(i, bestCount, bestStart, bestEnd);
+		if (bestLogP == currentLogP) {
+			return logP;
+		}
+		if (currentLogP == Double.NEGATIVE_INFINITY) {
+			// starting point was invalid, so there is no difference to add
+			return calcLogP();
+		}
+		return logP + bestLogP - currentLogP;
+	}
+
+	private double tryValues(int i, int count, double start, double end) {
+		setValues(i, count, start, end);
+		return likelihood.calculateBranchContribution(i);
+	}
+
+	private void setValues(int i, int count, double start, double end) {
+		blockCount.setValue(i, count);
+		blockStartFraction.setValue(i, start);
+		blockEndFraction.setValue(i, end);
+	}
+
+	private double calcLogP() {
+		// force recalculation of colouring, since there is no MCMC step to mark it dirty
+		likelihood.calcColourAtBase();
+		double logP = likelihood.calculateLogP();
+		return Double.isNaN(logP) ? Double.NEGATIVE_INFINITY : logP;
+	}
+
+	@Override
+	public void getInitialisedStateNodes(List<StateNode> stateNodes) {
+		stateNodes.add(blockCount);
+		stateNodes.add(blockStartFraction);
+		stateNodes.add(blockEndFraction);
+	}
+
+}
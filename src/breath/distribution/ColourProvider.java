@@ -1,5 +1,7 @@
 package breath.distribution;
 
+import java.util.Arrays;
+
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.inference.parameter.IntegerParameter;
@@ -19,10 +21,58 @@ public class ColourProvider {
 		
 		colourAtBase[root.getNr()] = root.getNr();
 		calcColourAtBase(root, colourAtBase, blockCount);
-		// normalise colours so leaf i has colour i
-		// but unsampled nodes remain at their colour number
+		return normaliseColours(colourAtBase, leafCount, new int[colourAtBase.length]);
+	}
+
+	// as getColour above, but with transmissionCount[i] the number of transmissions on 
+	// the branch above node i (so 0 means no transmission, unlike blockCount which is -1 then)
+	// permutation is a scratch array of the same length as colourAtBase
+	// to prevent allocating new memory on each call
+	static public boolean getColour(
+		     Node root,
+		     int [] transmissionCount,
+		     int leafCount,
+		     int [] colourAtBase,
+		     int [] permutation
+			) {
+		colourAtBase[root.getNr()] = root.getNr();
+		calcColourAtBase(root, colourAtBase, transmissionCount);
+		return normaliseColours(colourAtBase, leafCount, permutation);
+	}
+
+	// as getColour above, but with the tree given as array of parent node numbers (-1 for the root)
+	// so it can be used without building a tree
+	static public boolean getColour(
+		     int [] parent,
+		     int [] transmissionCount,
+		     int leafCount,
+		     int [] colourAtBase,
+		     int [] permutation
+			) {
+		int n = parent.length;
+		Arrays.fill(colourAtBase, -1);
+		for (int i = 0; i < n; i++) {
+			// climb till a node with known colour or with a transmission on the branch above,
+			// using permutation as stack for the nodes passed
+			int k = i, top = 0;
+			while (colourAtBase[k] < 0 && parent[k] >= 0 && transmissionCount[k] == 0) {
+				permutation[top++] = k;
+				k = parent[k];
+			}
+			if (colourAtBase[k] < 0) {
+				colourAtBase[k] = k;
+			}
+			while (top > 0) {
+				colourAtBase[permutation[--top]] = colourAtBase[k];
+			}
+		}
+		return normaliseColours(colourAtBase, leafCount, permutation);
+	}
+
+	// normalise colours so leaf i has colour i
+	// but unsampled nodes remain at their colour number
+	static private boolean normaliseColours(int [] colourAtBase, int leafCount, int [] permutation) {
 		int n = colourAtBase.length;
-		int [] permutation = new int[n];
 		for (int i = 0; i < n; i++) {
 			permutation[i] = i;
 		}
@@ -61,4 +111,18 @@ public class ColourProvider {
 			calcColourAtBase(child, colourAtBase, blockCount);
 		}
 	}
+
+	static private void calcColourAtBase(Node node, int [] colourAtBase, int [] transmissionCount) {
+		if (!node.isRoot()) {
+			int k = node.getNr();
+			if (transmissionCount[k] == 0) {
+				colourAtBase[k] = colourAtBase[node.getParent().getNr()];
+			} else {
+				colourAtBase[k] = k;
+			}
+		}
+		for (Node child : node.getChildren()) {
+			calcColourAtBase(child, colourAtBase, transmissionCount);
+		}
+	}
 }
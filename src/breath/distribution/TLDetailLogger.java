@@ -1,5 +1,6 @@
 package breath.distribution;
 
+import java.io.IOException;
 import java.io.PrintStream;
 
 import beast.base.core.Description;
@@ -7,12 +8,23 @@ import beast.base.core.Input;
 import beast.base.core.Loggable;
 import beast.base.core.Input.Validate;
 import beast.base.inference.CalculationNode;
+import beastfx.app.util.OutFile;
+import breath.util.BackgroundOutputStream;
+import breath.util.SnapshotLogWriter;
 
 @Description("Logger of component details of the transmission tree likelihood")
 public class TLDetailLogger extends CalculationNode implements Loggable {
 	public Input<TransmissionTreeLikelihood> tlInput = new Input<>("breathLikelihood", "BREATH transmission likelihood to log details from", Validate.REQUIRED);
+	final public Input<OutFile> outputInput = new Input<>("out", "tab separated file to write details to, gzip compressed if the name ends in .gz. "
+			+ "If specified, details are written to this file instead of to the logger containing this logger");
+	final public Input<Boolean> asyncInput = new Input<>("async", "if true, formatting and writing of details is done on a background thread. "
+			+ "The components are still calculated on the MCMC thread, since they depend on the state of the likelihood. "
+			+ "Only used if out is specified", false);
 
 	private TransmissionTreeLikelihood tl;
+	// stream for details if outputInput is specified
+	private PrintStream detailOut;
+	private SnapshotLogWriter<double []> writer;
 	
 	@Override
 	public void initAndValidate() {
@@ -21,6 +33,33 @@ public class TLDetailLogger extends CalculationNode implements Loggable {
 
 	@Override
 	public void init(PrintStream out) {
+		if (outputInput.get() != null) {
+			// when resuming, samples are appended to the existing log, which already has a header
+			boolean resuming = BackgroundOutputStream.isResuming(outputInput.get());
+			try {
+				detailOut = BackgroundOutputStream.newLogPrintStream(outputInput.get(), null);
+			} catch (IOException e) {
+				throw new IllegalArgumentException("Could not open file " + outputInput.get().getPath() + ": " + e.getMessage());
+			}
+			if (!resuming) {
+				detailOut.print("Sample\t");
+				printHeader(detailOut);
+				detailOut.println();
+			}
+			// snapshot is sample number followed by the components
+			writer = new SnapshotLogWriter<>(detailOut, () -> new double[5], (s, o) -> {
+					o.print((long) s[0] + "\t");
+					for (int i = 1; i < s.length; i++) {
+						o.print(s[i] + "\t");
+					}
+					o.println();
+				}, asyncInput.get());
+		} else {
+			printHeader(out);
+		}
+	}
+
+	private void printHeader(PrintStream out) {
 		out.print("Coalescent\t");
 		out.print("Sampled_hosts\t");
 		out.print("Unsampled_hosts\t");
@@ -29,6 +68,16 @@ public class TLDetailLogger extends CalculationNode implements Loggable {
 
 	@Override
 	public void log(long sample, PrintStream out) {
+		if (writer != null) {
+			double [] s = writer.take();
+			s[0] = sample;
+			s[1] = tl.calculateCoalescent();
+			s[2] = tl.calculateSampledHostContribution();
+			s[3] = tl.calculateUnsampledHostContribution();
+			s[4] = tl.calculateBlockContribution();
+			writer.put(s);
+			return;
+		}
 		out.print(tl.calculateCoalescent() + "\t");
 		out.print(tl.calculateSampledHostContribution() + "\t");
 		out.print(tl.calculateUnsampledHostContribution() + "\t");
@@ -37,6 +86,12 @@ public class TLDetailLogger extends CalculationNode implements Loggable {
 
 	@Override
 	public void close(PrintStream out) {
+		if (detailOut != null) {
+			writer.close();
+			writer = null;
+			detailOut.close();
+			detailOut = null;
+		}
 	}
 
 }
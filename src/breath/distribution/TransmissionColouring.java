@@ -0,0 +1,139 @@
+package breath.distribution;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.CalculationNode;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+
+@Description("Colouring of a transmission tree and whether it is valid, calculated once per state "
+		+ "so it can be shared by the likelihood, operators and loggers")
+public class TransmissionColouring extends CalculationNode {
+	final public Input<Tree> treeInput = new Input<>("tree", "tree over which transmissions are coloured", Validate.REQUIRED);
+	final public Input<RealParameter> blockStartFractionInput = new Input<>("blockstart", "start of block in fraction of branch length", Validate.REQUIRED);
+    final public Input<RealParameter> blockEndFractionInput = new Input<>("blockend", "end of block in fraction of branch length", Validate.REQUIRED);
+    final public Input<IntegerParameter> blockCountInput = new Input<>("blockcount", "number of transitions inside a block", Validate.REQUIRED);
+
+    private Tree tree;
+    private IntegerParameter blockCount;
+    private Validator validator;
+
+    // colouring and validity for current state, and for the last accepted state
+    private int [] colourAtBase;
+    private int [] storedColourAtBase;
+    private boolean hasColouring, storedHasColouring;
+    private boolean isValid, storedIsValid;
+    private boolean needsUpdate = true, storedNeedsUpdate;
+    // whether colouring was recalculated since the last accept or restore
+    // if so, storedColourAtBase contains the colouring of the accepted state
+    private boolean recalculated = false;
+    // whether an operator validated the proposed state, so the colouring need not be recalculated
+    private boolean proposalValidated = false;
+
+	@Override
+	public void initAndValidate() {
+		tree = treeInput.get();
+		blockCount = blockCountInput.get();
+		int n = tree.getNodeCount();
+		colourAtBase = new int[n];
+		storedColourAtBase = new int[n];
+		validator = new Validator(tree, colourAtBase, blockCount, blockStartFractionInput.get(), blockEndFractionInput.get());
+		needsUpdate = true;
+	}
+
+	/** colour at base of each branch for the current state **/
+	public int [] getColouring() {
+		if (needsUpdate) {
+			recalculate();
+		}
+		return colourAtBase;
+	}
+
+	/** colour at base of each branch, recalculated from the current block counts **/
+	public int [] getFreshColouring() {
+		recalculate();
+		return colourAtBase;
+	}
+
+	/** true if a colouring could be found, false if there is a path between leafs without a transmission **/
+	public boolean hasColouring() {
+		if (needsUpdate) {
+			recalculate();
+		}
+		return hasColouring;
+	}
+
+	/** true if the current state has a valid colouring (see Validator) **/
+	public boolean isValid() {
+		if (needsUpdate) {
+			recalculate();
+		}
+		return isValid;
+	}
+
+	/** validate the state proposed by an operator, so it can reject invalid proposals early.
+	 * This should only be called after the operator made its last change to the state,
+	 * since the result is reused by the likelihood for this proposal. **/
+	public boolean isValidProposal() {
+		recalculate();
+		proposalValidated = true;
+		return isValid;
+	}
+
+	/** undo isValidProposal() for a proposal the operator rejects itself (by returning -infinity).
+	 * MCMC does not restore calculation nodes in that case, so without this the colouring of
+	 * the rejected proposal would be used for the next state. **/
+	public void rejectProposal() {
+		rollBack();
+	}
+
+	private void rollBack() {
+		if (recalculated) {
+			int [] tmp = colourAtBase; colourAtBase = storedColourAtBase; storedColourAtBase = tmp;
+			hasColouring = storedHasColouring;
+			isValid = storedIsValid;
+			needsUpdate = storedNeedsUpdate;
+			recalculated = false;
+		}
+		proposalValidated = false;
+	}
+
+	private void recalculate() {
+		if (!recalculated) {
+			// keep colouring of the accepted state for restore
+			int [] tmp = colourAtBase; colourAtBase = storedColourAtBase; storedColourAtBase = tmp;
+			storedHasColouring = hasColouring;
+			storedIsValid = isValid;
+			storedNeedsUpdate = needsUpdate;
+			recalculated = true;
+		}
+		hasColouring = ColourProvider.getColour(tree.getRoot(), blockCount, tree.getLeafNodeCount(), colourAtBase);
+		isValid = hasColouring && validator.isValid(colourAtBase);
+		needsUpdate = false;
+	}
+
+	@Override
+	protected boolean requiresRecalculation() {
+		if (proposalValidated) {
+			proposalValidated = false;
+		} else {
+			needsUpdate = true;
+		}
+		return true;
+	}
+
+	@Override
+	protected void accept() {
+		recalculated = false;
+		proposalValidated = false;
+		super.accept();
+	}
+
+	@Override
+	protected void restore() {
+		rollBack();
+		super.restore();
+	}
+}
@@ -56,6 +56,8 @@ public class TransmissionTreeLikelihood extends TreeDistribution {
     final public Input<Boolean> allowTransmissionsAfterSamplingInput = new Input<>("allowTransmissionsAfterSampling", "flag to indicate sampling does not affect the probability of onwards transmissions. "
     		+ "If false, no onwards transmissions are allowed (not clear how this affects the unknown unknowns though).", true);
 
+    final public Input<TransmissionColouring> colouringInput = new Input<>("colouring", "colouring of the tree shared with operators and loggers. "
+    		+ "If not specified, a new one is created for this likelihood");
     final public Input<Double> branchLengthThresholdInput = new Input<>("branchLengthThreshold", "minimal branch length for which penalty applies (to prevent very samll branch lengths)", 1e-4);
      
     
@@ -65,7 +67,7 @@ public class TransmissionTreeLikelihood extends TreeDistribution {
     private IntegerParameter blockCount;
     private int [] colourAtBase;
     private PopulationFunction popSizeFunction;
-    private Validator validator;
+    private TransmissionColouring colouring;
     private Function origin;
     private double branchLengthThreshold;
     
@@ -86,7 +88,6 @@ public class TransmissionTreeLikelihood extends TreeDistribution {
 	
 	//private double a, b;
 
-	private boolean updateColours = true;
 	private boolean allowTransmissionsAfterSampling;
 	private boolean initialCalculation = true;
 	private boolean conditionOnInfectionTime = true;
@@ -102,7 +103,6 @@ public class TransmissionTreeLikelihood extends TreeDistribution {
     	blockStartFraction = blockStartFractionInput.get();
     	blockEndFraction = blockEndFractionInput.get();
     	blockCount = blockCountInput.get();
-    	colourAtBase = new int[n];
     	
     	sanityCheck(blockStartFraction, n-1 , "blockStart");
     	sanityCheck(blockEndFraction, n-1, "blockEnd");
@@ -120,7 +120,12 @@ public class TransmissionTreeLikelihood extends TreeDistribution {
 		    	
     	popSizeFunction = popSizeInput.get();
     	
-    	validator = new Validator(tree, colourAtBase, blockCount, blockStartFraction, blockEndFraction);    	
+    	colouring = colouringInput.get();
+    	if (colouring == null) {
+    		colouring = new TransmissionColouring();
+    		colouring.initByName("tree", tree, "blockstart", blockStartFraction, "blockend", blockEndFraction, "blockcount", blockCount);
+    	}
+    	colourAtBase = colouring.getColouring();
 
     	origin = originInput.get();
     	
@@ -214,15 +219,12 @@ public class TransmissionTreeLikelihood extends TreeDistribution {
     		return logP;
     	}
     	
-    	if (!calcColourAtBase()) {
-    		logP = Double.NEGATIVE_INFINITY;
-    		return logP;
-    	}
-    	
-    	if (!validator.isValid(colourAtBase)) {
+    	// colouring is only recalculated if no operator validated the proposal already
+    	if (!colouring.isValid()) {
     		logP = Double.NEGATIVE_INFINITY;
     		return logP;
     	}
+    	colourAtBase = colouring.getColouring();
 
     	if (branchLengthThreshold > 0) {
     		for (Node node : tree.getNodesAsArray()) {
@@ -256,8 +258,8 @@ public class TransmissionTreeLikelihood extends TreeDistribution {
 	// return true if a valid colouring can be found, 
 	// return false if there is a path between leafs without a transmission
 	public boolean calcColourAtBase() {
-		updateColours = ColourProvider.getColour(tree.getRoot(), blockCount, tree.getLeafNodeCount(), colourAtBase);
-		return updateColours;
+		colourAtBase = colouring.getFreshColouring();
+		return colouring.hasColouring();
 	}		
 
 	public double calcTransmissionLikelihood() {
@@ -774,22 +776,19 @@ public class TransmissionTreeLikelihood extends TreeDistribution {
 	
 	
 	public int getColour(int i) {
-		if (updateColours) {
-			calcColourAtBase();
-		}
-		return colourAtBase[i];
+		return colouring.getColouring()[i];
 	}
 
 	public int [] getColouring() {
-		if (updateColours) {
-			calcColourAtBase();
-		}
-		return colourAtBase;
+		return colouring.getColouring();
 	}
 
 	public int [] getFreshColouring() {
-		calcColourAtBase();
-		return colourAtBase;
+		return colouring.getFreshColouring();
+	}
+
+	public TransmissionColouring getTransmissionColouring() {
+		return colouring;
 	}
 
 	@Override
@@ -816,15 +815,8 @@ public class TransmissionTreeLikelihood extends TreeDistribution {
 
 	
 	
-	@Override
-	public void restore() {
-		updateColours = true;
-		super.restore();
-	}
-	
 	@Override
 	protected boolean requiresRecalculation() {
-		updateColours = true;
 		return true;
 	}
 
@@ -908,6 +900,35 @@ public class TransmissionTreeLikelihood extends TreeDistribution {
 	    return logBlockLike;
 	}
 	
+	// cached terms of the block likelihood that depend on block count n only:
+	// log(1-rho^n) - logGamma(n*atr) for n = 1, 2, ...
+	private double [] blockCountTerms = new double[0];
+	private double cachedRho = Double.NaN, cachedAtr = Double.NaN;
+
+	/**
+	 * log of the block likelihood getLogBlockLike(tblock, n, Yr) as function of
+	 * block count n = 1...logP.length, up to a constant that does not depend on n.
+	 * Suitable for sampling the block count of a branch from its full conditional.
+	 * @param tblock length of the block
+	 * @param logP array to store result, logP[n-1] contains the term for n
+	 */
+	public void calcLogBlockCountConditional(double tblock, double [] logP) {
+		int maxCount = logP.length;
+		if (rho != cachedRho || atr != cachedAtr || blockCountTerms.length < maxCount) {
+			blockCountTerms = new double[Math.max(maxCount, blockCountTerms.length)];
+			for (int n = 1; n <= blockCountTerms.length; n++) {
+				blockCountTerms[n - 1] = FastMath.log(1 - FastMath.pow(rho, n)) - Gamma.logGamma(n * atr);
+			}
+			cachedRho = rho;
+			cachedAtr = atr;
+		}
+		// dgamma(tblock, n*atr, btr) = (tblock*btr)^(n*atr-1) * btr * exp(-tblock*btr) / Gamma(n*atr)
+		double logXRate = atr * FastMath.log(tblock * btr);
+		for (int n = 1; n <= maxCount; n++) {
+			logP[n - 1] = blockCountTerms[n - 1] + n * logXRate;
+		}
+	}
+
 	// gives the density
 	double dgamma(double x, double alpha, double rate) {
 		if (x < 0) {
@@ -1066,6 +1087,78 @@ public class TransmissionTreeLikelihood extends TreeDistribution {
     	
 		return logP;
 	}
+
+	/**
+	 * Contribution of the hosts at both ends of branch nodeNr and of the block on that branch:
+	 * their coalescent, sampling and transmission hazards including the infections they cause.
+	 * The other terms of calculateLogP() do not depend on the block parameters of branch nodeNr,
+	 * so when only these change, this contribution changes by as much as calculateLogP() does.
+	 */
+	public double calculateBranchContribution(int nodeNr) {
+		if (!calcColourAtBase()) {
+			return Double.NEGATIVE_INFINITY;
+		}
+		if (colourOnlyInput.get()) {
+			return 0;
+		}
+    	double d = endTime.getArrayValue();
+    	double logP = 0;
+    	int n = tree.getLeafNodeCount();
+    	Node [] nodes = tree.getNodesAsArray();
+    	segments = collectSegments();
+
+    	Node node = nodes[nodeNr];
+    	int baseColour = colourAtBase[nodeNr];
+    	int parentColour = node.isRoot() ? baseColour : colourAtBase[node.getParent().getNr()];
+    	int [] hosts = baseColour == parentColour ? new int[]{baseColour} : new int[]{baseColour, parentColour};
+    	for (int host : hosts) {
+    		SegmentIntervalList intervals = segments.get(host);
+    		if (includeCoalescentInput.get()) {
+    			if (conditionOnInfectionTime) {
+    				logP += calculateCoalescent(intervals, 0.0);
+    			} else {
+    				logP += calculateCoalescentUnconditioned(intervals, 0.0);
+    			}
+    		}
+    		double start = intervals.birthTime;
+    		if (host < n) {
+    			// contribution of sampled case
+        		double end = intervals.times.get(0);
+        		logP += logh_s(start, end) + logS_s(start, end);
+        		if (allowTransmissionsAfterSampling) {
+        			logP += logS_tr(start, d);
+        		} else {
+        			logP += logS_tr(start, end);
+        		}
+        		logP -= logGetIndivCondition(p0, start, d);
+    		} else if (colourAtBase[host] >= n) {
+    			// contribution of unsampled case
+    			logP += logS_s(start, d) + logS_tr(start, d);
+        		logP -= logGetIndivCondition(p0, start, d);
+    		}
+    		
+    		// infections caused by host
+        	for (int i = 0; i < tree.getNodeCount() - 1; i++) {
+        		if (colourAtBase[nodes[i].getParent().getNr()] == host && colourAtBase[i] != host) {
+        			double tInf1 = nodes[i].getHeight() + nodes[i].getLength() * blockEndFraction.getArrayValue(i);
+        			logP += logh_tr(start, tInf1);
+        		}
+        	}
+    	}
+
+    	// contribution of cases in block
+		if (!node.isRoot() && blockCount.getValue(nodeNr) > 0) {
+			double branchlength = node.getLength();
+			double start = node.getHeight() + branchlength * blockStartFraction.getValue(nodeNr);
+			double end   = node.getHeight() + branchlength * blockEndFraction.getValue(nodeNr);
+			logP += getLogBlockLike(end - start, blockCount.getValue(nodeNr), end - d);
+		}
+		
+    	if (Double.isInfinite(logP) || Double.isNaN(logP)) {
+    		logP = Double.NEGATIVE_INFINITY;
+    	}
+		return logP;
+	}
 	
 	
 //	public static void main(String[] args) {
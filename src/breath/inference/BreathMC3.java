@@ -0,0 +1,207 @@
+package breath.inference;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import beast.base.core.BEASTInterface;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.inference.Logger;
+import beast.base.util.MersenneTwisterFast;
+import beast.base.util.Randomizer;
+
+@Description("Parallel tempering (MC3) for BREATH analyses: runs heated copies of the analysis "
+		+ "on separate threads and exchanges temperatures between chains. "
+		+ "Only the cold chain is logged, through the loggers of this analysis. "
+		+ "Operators draw from the global random number generator. With threads=1 chains take turns, "
+		+ "and each chain reseeds it from its own random number stream, so runs can be reproduced from the seed. "
+		+ "With more threads chains share the generator, and runs cannot be reproduced.")
+public class BreathMC3 extends HeatedChain {
+	final public Input<Integer> chainsInput = new Input<>("chains", "number of chains, including the cold chain", 4);
+	final public Input<Double> deltaTemperatureInput = new Input<>("deltaTemperature", "temperature difference between successive chains: "
+			+ "chain i samples from posterior^(1/(1+i*deltaTemperature))", 0.1);
+	final public Input<Integer> resampleEveryInput = new Input<>("resampleEvery", "number of steps each chain takes between proposed temperature swaps", 1000);
+	final public Input<Integer> threadsInput = new Input<>("threads", "number of threads used to run chains. "
+			+ "Uses one thread per chain if not positive. Runs are only reproducible from the seed if 1", -1);
+
+	// ordered by temperature, so chains[0] is the cold chain
+	private HeatedChain [] chains;
+	private int swapsAccepted, swapsProposed;
+
+	@Override
+	public void initAndValidate() {
+		super.initAndValidate();
+		int chainCount = chainsInput.get();
+		if (chainCount < 1) {
+			throw new IllegalArgumentException("chains should be at least 1");
+		}
+		if (deltaTemperatureInput.get() < 0) {
+			throw new IllegalArgumentException("deltaTemperature should be non-negative");
+		}
+		if (resampleEveryInput.get() < 1) {
+			throw new IllegalArgumentException("resampleEvery should be at least 1");
+		}
+
+		// chains are independent copies of this analysis, so each has its own likelihood,
+		// operators and calculation nodes. This analysis itself is not run, but holds the
+		// state of the cold chain whenever a sample is logged.
+		chains = new HeatedChain[chainCount];
+		for (int i = 0; i < chainCount; i++) {
+			chains[i] = newChain();
+			chains[i].setBeta(1.0 / (1.0 + i * deltaTemperatureInput.get()));
+		}
+	}
+
+	// copy of this analysis as a HeatedChain, with its own copy of every object it depends on
+	private HeatedChain newChain() {
+		Map<BEASTInterface, BEASTInterface> copies = new IdentityHashMap<>();
+		HeatedChain chain = new HeatedChain();
+		copies.put(this, chain);
+		for (Input<?> input : chain.listInputs()) {
+			copyInput(getInput(input.getName()).get(), chain, input.getName(), copies);
+		}
+		chain.validateInputs();
+		chain.initAndValidate();
+		return chain;
+	}
+
+	// copies inputs before the object itself is initialised, like the XML parser does
+	private BEASTInterface copy(BEASTInterface o, Map<BEASTInterface, BEASTInterface> copies) {
+		BEASTInterface copy = copies.get(o);
+		if (copy != null) {
+			return copy;
+		}
+		try {
+			copy = o.getClass().getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalArgumentException("Could not create heated chain: cannot copy " + o.getClass().getName() + ": " + e.getMessage());
+		}
+		copy.setID(o.getID());
+		copies.put(o, copy);
+		for (Input<?> input : o.listInputs()) {
+			copyInput(input.get(), copy, input.getName(), copies);
+		}
+		copy.validateInputs();
+		copy.initAndValidate();
+		return copy;
+	}
+
+	private void copyInput(Object value, BEASTInterface target, String name, Map<BEASTInterface, BEASTInterface> copies) {
+		if (value instanceof List) {
+			for (Object o : (List<?>) value) {
+				target.setInputValue(name, o instanceof BEASTInterface ? copy((BEASTInterface) o, copies) : o);
+			}
+		} else if (value instanceof BEASTInterface) {
+			target.setInputValue(name, copy((BEASTInterface) value, copies));
+		} else if (value != null) {
+			target.setInputValue(name, value);
+		}
+	}
+
+	@Override
+	public void run() throws IOException {
+		initState();
+		state.setStateFileName(stateFileName);
+		int threads = threadsInput.get() > 0 ? threadsInput.get() : chains.length;
+		// a single chain draws from the global generator only, exactly like MCMC
+		boolean reseed = threads == 1 && chains.length > 1;
+		MersenneTwisterFast random = chains.length > 1 ? new MersenneTwisterFast(Randomizer.nextLong()) : null;
+		for (HeatedChain chain : chains) {
+			if (reseed) {
+				chain.setRandomStream(random.nextLong());
+				chain.reseed();
+			}
+			chain.initChain();
+		}
+		if (restoreFromFile) {
+			// only the cold state is stored, so all chains resume from it
+			state.restoreFromFile();
+			recalculatePosterior();
+			for (HeatedChain chain : chains) {
+				copyStateTo(chain);
+			}
+		} else {
+			chains[0].copyStateTo(this);
+		}
+		for (Logger logger : loggers) {
+			logger.init();
+		}
+
+		if (threads > 1 && chains.length > 1) {
+			Log.warning("BreathMC3: chains share the random number generator of operators, "
+					+ "so this run cannot be reproduced from its seed. Use threads=1 for reproducible runs.");
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		int resampleEvery = resampleEveryInput.get();
+		int storeEvery = storeEveryInput.get();
+		try {
+			for (long sampleNr = 0; sampleNr <= chainLength; sampleNr += resampleEvery) {
+				final long start = sampleNr;
+				final long end = Math.min(sampleNr + resampleEvery, chainLength + 1);
+				final HeatedChain cold = chains[0];
+				List<Callable<Object>> tasks = new ArrayList<>();
+				for (HeatedChain chain : chains) {
+					tasks.add(() -> {
+						if (reseed) {
+							chain.reseed();
+						}
+						chain.runSteps(start, end, chain == cold ? this : null);
+						return null;
+					});
+				}
+				for (Future<Object> future : executor.invokeAll(tasks)) {
+					future.get();
+				}
+				if (storeEvery > 0 && (end - 1) / storeEvery > (start - 1) / storeEvery) {
+					cold.copyStateTo(this);
+					state.storeToFile(end - 1);
+				}
+				proposeSwap(random);
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException(e);
+		} finally {
+			executor.shutdown();
+		}
+
+		chains[0].copyStateTo(this);
+		state.storeToFile(chainLength);
+		for (Logger logger : loggers) {
+			logger.close();
+		}
+		Log.info("Temperature swaps accepted: " + swapsAccepted + " out of " + swapsProposed
+				+ (swapsProposed > 0 ? " (" + (100 * swapsAccepted / swapsProposed) + "%)" : ""));
+	}
+
+	// propose to exchange temperatures between two random chains
+	private void proposeSwap(MersenneTwisterFast random) {
+		if (chains.length < 2) {
+			return;
+		}
+		int i = random.nextInt(chains.length);
+		int j = random.nextInt(chains.length - 1);
+		if (j >= i) {
+			j++;
+		}
+		HeatedChain chainI = chains[i], chainJ = chains[j];
+		double logAlpha = (chainI.getBeta() - chainJ.getBeta()) * (chainJ.getLogPosterior() - chainI.getLogPosterior());
+		swapsProposed++;
+		if (logAlpha >= 0 || random.nextDouble() < Math.exp(logAlpha)) {
+			double beta = chainI.getBeta();
+			chainI.setBeta(chainJ.getBeta());
+			chainJ.setBeta(beta);
+			chains[i] = chainJ;
+			chains[j] = chainI;
+			swapsAccepted++;
+		}
+	}
+}
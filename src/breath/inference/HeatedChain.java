@@ -0,0 +1,154 @@
+package breath.inference;
+
+import java.io.IOException;
+
+import beast.base.core.Description;
+import beast.base.inference.Logger;
+import beast.base.inference.MCMC;
+import beast.base.inference.Operator;
+import beast.base.inference.StateNodeInitialiser;
+import beast.base.util.MersenneTwisterFast;
+import beast.base.util.Randomizer;
+
+@Description("MCMC chain that samples from the posterior raised to the power beta, "
+		+ "and that can be run in blocks of steps by a coupled MCMC runner")
+public class HeatedChain extends MCMC {
+
+	// inverse temperature: 1 for the cold chain, < 1 for heated chains
+	protected double beta = 1.0;
+	// random number stream of this chain, used to reseed the global random number generator
+	// that operators draw from, see reseed()
+	private MersenneTwisterFast random;
+
+	public void setBeta(double beta) {
+		this.beta = beta;
+	}
+
+	public double getBeta() {
+		return beta;
+	}
+
+	/** log posterior of the current state, not raised to the power beta **/
+	public double getLogPosterior() {
+		return oldLogLikelihood;
+	}
+
+	/** give this chain its own random number stream, which reseed() draws seeds from **/
+	public void setRandomStream(long seed) {
+		random = new MersenneTwisterFast(seed);
+	}
+
+	/**
+	 * reseed the global random number generator from the stream of this chain, so that when
+	 * chains take turns on one thread, the proposals of this chain do not depend on how many
+	 * random numbers other chains drew
+	 */
+	public void reseed() {
+		Randomizer.setSeed(random.nextLong());
+	}
+
+	/** set up state and posterior so the chain is ready to run, like MCMC.run() does before sampling **/
+	public void initChain() {
+		initState();
+		for (StateNodeInitialiser initialiser : initialisersInput.get()) {
+			initialiser.initStateNodes();
+		}
+		oldLogLikelihood = state.robustlyCalcPosterior(posterior);
+	}
+
+	// set up state and posterior without initialising state nodes
+	protected void initState() {
+		state.initAndValidate();
+		chainLength = chainLengthInput.get();
+		posterior = posteriorInput.get();
+		state.setEverythingDirty(true);
+	}
+
+	/** recalculate posterior from scratch, e.g. after the state was replaced by that of another chain **/
+	public void recalculatePosterior() {
+		state.setEverythingDirty(true);
+		oldLogLikelihood = state.robustlyCalcPosterior(posterior);
+	}
+
+	/**
+	 * run steps with sample numbers start, start+1, ..., end-1
+	 * @param logTo chain whose loggers samples are logged to, or null if this chain is not logged.
+	 * If logTo is another chain, the state of this chain is copied into it whenever a sample is logged.
+	 */
+	public void runSteps(long start, long end, HeatedChain logTo) throws IOException {
+		for (long sampleNr = start; sampleNr < end; sampleNr++) {
+			final Operator operator = operatorSchedule.selectOperator();
+			state.store(sampleNr);
+			double logHastingsRatio = operator.proposal();
+			if (logHastingsRatio != Double.NEGATIVE_INFINITY) {
+				if (operator.requiresStateInitialisation()) {
+					state.storeCalculationNodes();
+					state.checkCalculationNodesDirtiness();
+				}
+				newLogLikelihood = posterior.calculateLogP();
+				if (newLogLikelihood == Double.POSITIVE_INFINITY) {
+					newLogLikelihood = Double.NEGATIVE_INFINITY;
+					logHastingsRatio = Double.NEGATIVE_INFINITY;
+				}
+				double logAlpha = beta * (newLogLikelihood - oldLogLikelihood) + logHastingsRatio;
+				// draw from the same generator as MCMC does, so a single chain reproduces an MCMC run
+				if (logAlpha >= 0 || Randomizer.nextDouble() < Math.exp(logAlpha)) {
+					oldLogLikelihood = newLogLikelihood;
+					state.acceptCalculationNodes();
+					operator.accept();
+				} else {
+					operator.reject(newLogLikelihood == Double.NEGATIVE_INFINITY ? -1 : 0);
+					state.restore();
+					state.restoreCalculationNodes();
+				}
+				state.setEverythingDirty(false);
+				operator.optimize(logAlpha);
+			} else {
+				operator.reject(-2);
+				state.restore();
+				if (!operator.requiresStateInitialisation()) {
+					state.setEverythingDirty(false);
+					state.restoreCalculationNodes();
+				}
+			}
+			if (logTo != null) {
+				if (logTo != this && logTo.logsSample(sampleNr)) {
+					copyStateTo(logTo);
+				}
+				for (Logger logger : logTo.loggers) {
+					logger.log(sampleNr);
+				}
+			}
+		}
+	}
+
+	private boolean logsSample(long sampleNr) {
+		for (Logger logger : loggers) {
+			if (sampleNr % logger.everyInput.get() == 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** make the state of another chain equal to that of this chain and recalculate its posterior **/
+	public void copyStateTo(HeatedChain other) {
+		for (int i = 0; i < state.getNrOfStateNodes(); i++) {
+			other.state.getStateNode(i).assignFromFragile(state.getStateNode(i));
+		}
+		other.recalculatePosterior();
+	}
+
+	@Override
+	public void run() throws IOException {
+		// run as single chain
+		initChain();
+		for (Logger logger : loggers) {
+			logger.init();
+		}
+		runSteps(0, chainLength + 1, this);
+		for (Logger logger : loggers) {
+			logger.close();
+		}
+	}
+}
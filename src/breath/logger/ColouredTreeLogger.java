@@ -1,7 +1,7 @@
 package breath.logger;
 
+import java.io.IOException;
 import java.io.PrintStream;
-import java.util.Arrays;
 
 import beast.base.core.BEASTObject;
 import beast.base.core.Description;
@@ -13,7 +13,10 @@ import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeInterface;
 import beast.base.inference.parameter.IntegerParameter;
 import beast.base.inference.parameter.RealParameter;
+import beastfx.app.util.OutFile;
 import breath.distribution.ColourProvider;
+import breath.util.BackgroundOutputStream;
+import breath.util.SnapshotLogWriter;
 
 @Description("Logs transmission tree with binary and single child nodes annotated with colour")
 public class ColouredTreeLogger extends BEASTObject implements Loggable {
@@ -21,122 +24,263 @@ public class ColouredTreeLogger extends BEASTObject implements Loggable {
     final public Input<RealParameter> blockStartFractionInput = new Input<>("blockstart", "start of block in fraction of branch length", Validate.REQUIRED);
     final public Input<RealParameter> blockEndFractionInput = new Input<>("blockend", "end of block in fraction of branch length", Validate.REQUIRED);
     final public Input<IntegerParameter> blockCountInput = new Input<>("blockcount", "number of transitions inside a block", Validate.REQUIRED);
+    final public Input<OutFile> outputInput = new Input<>("out", "file to write trees to on a background thread, gzip compressed if the name ends in .gz. "
+    		+ "If specified, trees are written to this file instead of to the logger containing this tree logger");
+    final public Input<Boolean> asyncInput = new Input<>("async", "if true, the MCMC thread only takes a snapshot of the transmission tree, "
+    		+ "and colouring, formatting and writing are done on a background thread. Only used if out is specified", false);
 
     private Tree tree;
     private RealParameter blockStartFraction;
     private RealParameter blockEndFraction;
     private IntegerParameter blockCount;
-    private int [] colourAtBase;
+    // stream for trees if outputInput is specified
+    private PrintStream treeOut;
+    private SnapshotLogWriter<TreeSnapshot> writer;
+    // used for logging if outputInput is not specified
+    private TreeSnapshot snapshot;
 
     @Override
 	public void initAndValidate() {
     	tree = (Tree) treeInput.get();
 
-    	int n = tree.getNodeCount();
     	blockStartFraction = blockStartFractionInput.get();
     	blockEndFraction = blockEndFractionInput.get();
     	blockCount = blockCountInput.get();
-    	colourAtBase = new int[n];
+    	snapshot = new TreeSnapshot(tree.getNodeCount(), tree.getLeafNodeCount());
 	}
 
 	@Override
 	public void init(PrintStream out) {
-		tree.init(out);
+		if (outputInput.get() != null) {
+			// when resuming, trees are appended to the existing log, which already has a header
+			boolean resuming = BackgroundOutputStream.isResuming(outputInput.get());
+			try {
+				treeOut = BackgroundOutputStream.newLogPrintStream(outputInput.get(), "End;");
+			} catch (IOException e) {
+				throw new IllegalArgumentException("Could not open tree file " + outputInput.get().getPath() + ": " + e.getMessage());
+			}
+			if (!resuming) {
+				tree.init(treeOut);
+			}
+			writer = new SnapshotLogWriter<>(treeOut, () -> new TreeSnapshot(tree.getNodeCount(), tree.getLeafNodeCount()), 
+					this::writeTree, asyncInput.get());
+		} else {
+			tree.init(out);
+		}
 	}
 
 	@Override
 	public void log(long sample, PrintStream out) {
-		ColourProvider.getColour(tree.getRoot(), blockCount, tree.getLeafNodeCount(), colourAtBase);
-		
+        if (writer != null) {
+        	TreeSnapshot s = writer.take();
+        	s.copy(sample, tree, blockCount, blockStartFraction, blockEndFraction);
+        	writer.put(s);
+        	return;
+        }
+    	snapshot.copy(sample, tree, blockCount, blockStartFraction, blockEndFraction);
+    	snapshot.toSortedNewick(getID() != null);
         out.print("tree STATE_" + sample + " = ");
-        final String newick = toSortedNewick(tree.getRoot(), new int[1]);
-        out.print(newick);
+        out.append(snapshot.newick);
         out.print(";");
 	}
 
-	String toSortedNewick(Node node, int [] maxNodeInClade) {
-		StringBuilder buf = new StringBuilder();
-		if (!node.isLeaf()) {
-
-            // General method for >2 children
-
-            String[] childStrings = new String[node.getChildCount()];
-            int[] maxNodeNrs = new int[node.getChildCount()];
-            Integer[] indices = new Integer[node.getChildCount()];
-            for (int i = 0; i < node.getChildCount(); i++) {
-                childStrings[i] = toSortedNewick(node.getChild(i), maxNodeInClade);
-                maxNodeNrs[i] = maxNodeInClade[0];
-                indices[i] = i;
-            }
-
-            Arrays.sort(indices, (i1, i2) -> {
-                if (maxNodeNrs[i1] < maxNodeNrs[i2])
-                    return -1;
-
-                if (maxNodeNrs[i1] > maxNodeNrs[i2])
-                    return 1;
-
-                return 0;
-            });
-
-            maxNodeInClade[0] = maxNodeNrs[maxNodeNrs.length - 1];
-
-            buf.append("(");
-            for (int i = 0; i < indices.length; i++) {
-                if (i > 0) {
-                    buf.append(",");
-                }
-                buf.append(childStrings[indices[i]]);
-            }
-
-            buf.append(")");
-
-            if (getID() != null) {
-                buf.append(node.getNr() + 1);
-            }
-
-    	} else {
-    		maxNodeInClade[0] = node.getNr();
-    		buf.append(node.getNr() + 1);
-    	}
-
-    	int i = node.getNr();
-    	switch (blockCount.getValue(i)) {
-    		case -1:
-    	    	buf.append("[&colour=" + colourAtBase[i] + "]:");
-    			buf.append(node.getLength());
-    	    	return buf.toString();
-    		case 0:    			
-    	    	buf.append("[&colour=" + colourAtBase[i] + "]:");
-    			buf.append(node.getLength() * blockStartFraction.getValue(i));
-    			buf.append(")");
-    	    	buf.append("[&colour=" + colourAtBase[node.getParent().getNr()] + "]:");
-    			buf.append(node.getLength() * (1.0-blockEndFraction.getValue(i)));
-    			return "(" + buf.toString();
-    		default:
-    	    	buf.append("[&colour=" + colourAtBase[i] + "]:");
-    			buf.append(node.getLength() * blockStartFraction.getValue(i));
-    			buf.append(")");
-    	    	buf.append("[&colour=-1,count=" + blockCount.getValue(i)+ "]:");
-    			buf.append(node.getLength() * (blockEndFraction.getValue(i) - blockStartFraction.getValue(i)));
-    			buf.append(")");
-    	    	buf.append("[&colour=" + colourAtBase[node.getParent().getNr()] + "]:");
-    			buf.append(node.getLength() * (1.0-blockEndFraction.getValue(i)));
-    			return "((" + buf.toString();
-    	}
+	// called on the background thread if asynchronous
+	private void writeTree(TreeSnapshot s, PrintStream out) {
+		s.toSortedNewick(getID() != null);
+    	out.append("tree STATE_").append(Long.toString(s.sample)).append(" = ").append(s.newick).append(';');
+    	out.println();
+	}
+
+	/**
+	 * Copy of the transmission tree as arrays indexed by node number, so it can be
+	 * coloured and written while the MCMC continues, with buffers for doing so.
+	 */
+	static class TreeSnapshot {
+		final int leafCount;
+		long sample;
+		int root;
+		final int [] parent;
+		final double [] height;
+		// children of node i are children[childStart[i]...childStart[i]+childCount[i]-1], in the order of the tree
+		final int [] childCount, childStart, children;
+		final int [] blockCount;
+		final double [] blockStart, blockEnd;
+
+		final int [] colourAtBase, transmissionCount, permutation;
+		final int [] stack, position, order, cladeNr, sortedChildren;
+		final StringBuilder newick = new StringBuilder();
+
+		TreeSnapshot(int n, int leafCount) {
+			this.leafCount = leafCount;
+			parent = new int[n];
+			height = new double[n];
+			childCount = new int[n];
+			childStart = new int[n];
+			children = new int[n];
+			blockCount = new int[n];
+			blockStart = new double[n];
+			blockEnd = new double[n];
+			colourAtBase = new int[n];
+			transmissionCount = new int[n];
+			permutation = new int[n];
+			stack = new int[n];
+			position = new int[n];
+			order = new int[n];
+			cladeNr = new int[n];
+			sortedChildren = new int[n];
+		}
+
+		void copy(long sample, Tree tree, IntegerParameter blockCount, RealParameter blockStartFraction, RealParameter blockEndFraction) {
+			this.sample = sample;
+			Node [] nodes = tree.getNodesAsArray();
+			root = tree.getRoot().getNr();
+			int next = 0;
+			for (int i = 0; i < nodes.length; i++) {
+				Node node = nodes[i];
+				parent[i] = node.isRoot() ? -1 : node.getParent().getNr();
+				height[i] = node.getHeight();
+				childStart[i] = next;
+				childCount[i] = node.getChildCount();
+				for (int k = 0; k < childCount[i]; k++) {
+					children[next++] = node.getChild(k).getNr();
+				}
+				this.blockCount[i] = blockCount.getValue(i);
+				blockStart[i] = blockStartFraction.getValue(i);
+				blockEnd[i] = blockEndFraction.getValue(i);
+			}
+		}
+
+		/**
+		 * Colours the tree and writes its newick into newick, which is reused between calls.
+		 * Children are ordered by the number of the last node in their clade,
+		 * and nodes are visited iteratively, so deep trees need neither recursion nor string copying.
+		 * @param labelInternalNodes whether to add node numbers to internal nodes
+		 */
+		void toSortedNewick(boolean labelInternalNodes) {
+			int n = parent.length;
+			for (int i = 0; i < n; i++) {
+				transmissionCount[i] = blockCount[i] + 1;
+			}
+			ColourProvider.getColour(parent, transmissionCount, leafCount, colourAtBase, permutation);
+			newick.setLength(0);
+
+			// pre-order, so that reverse order visits children before parents
+			int top = 0, count = 0;
+			stack[top++] = root;
+			while (top > 0) {
+				int i = stack[--top];
+				order[count++] = i;
+				for (int k = 0; k < childCount[i]; k++) {
+					stack[top++] = children[childStart[i] + k];
+				}
+			}
+
+			// clade number of a leaf is its node number, that of an internal node the one of its last child
+			// children of node i are sorted by clade number in sortedChildren at the same positions as in children
+			for (int j = n - 1; j >= 0; j--) {
+				int i = order[j];
+				if (childCount[i] == 0) {
+					cladeNr[i] = i;
+					continue;
+				}
+				int first = childStart[i];
+				for (int k = 0; k < childCount[i]; k++) {
+					int child = children[first + k];
+					// insertion sort keeps children with the same clade number in order
+					int m = first + k;
+					while (m > first && cladeNr[sortedChildren[m - 1]] > cladeNr[child]) {
+						sortedChildren[m] = sortedChildren[m - 1];
+						m--;
+					}
+					sortedChildren[m] = child;
+				}
+				cladeNr[i] = cladeNr[children[first + childCount[i] - 1]];
+			}
+
+			// depth first traversal, where position[k] is the number of children of stack[k] visited so far,
+			// or -1 if stack[k] has not been entered yet
+			top = 0;
+			stack[top] = root;
+			position[top++] = -1;
+			while (top > 0) {
+				int i = stack[top - 1];
+				int p = position[top - 1];
+				if (p < 0) {
+					// open brackets of the single child nodes inserted for the block above node
+					if (blockCount[i] == 0) {
+						newick.append('(');
+					} else if (blockCount[i] != -1) {
+						newick.append("((");
+					}
+					if (childCount[i] == 0) {
+						newick.append(i + 1);
+						appendBranch(i);
+						top--;
+						continue;
+					}
+					newick.append('(');
+					p = 0;
+				}
+				if (p < childCount[i]) {
+					if (p > 0) {
+						newick.append(',');
+					}
+					position[top - 1] = p + 1;
+					stack[top] = sortedChildren[childStart[i] + p];
+					position[top++] = -1;
+				} else {
+					newick.append(')');
+					if (labelInternalNodes) {
+						newick.append(i + 1);
+					}
+					appendBranch(i);
+					top--;
+				}
+			}
+		}
+
+		// colour annotations and lengths of the branch above node i, including the single child nodes of the block
+		private void appendBranch(int i) {
+			int bc = blockCount[i];
+			double length = parent[i] < 0 ? 0.0 : height[parent[i]] - height[i];
+			newick.append("[&colour=").append(colourAtBase[i]).append("]:");
+			if (bc == -1) {
+				newick.append(length);
+				return;
+			}
+			double start = blockStart[i];
+			double end = blockEnd[i];
+			newick.append(length * start);
+			newick.append(')');
+			if (bc != 0) {
+				newick.append("[&colour=-1,count=").append(bc).append("]:");
+				newick.append(length * (end - start));
+				newick.append(')');
+			}
+			newick.append("[&colour=").append(colourAtBase[parent[i]]).append("]:");
+			newick.append(length * (1.0 - end));
+		}
 	}
 
-	
 	@Override
 	public void close(PrintStream out) {
-		tree.close(out);
+		if (treeOut != null) {
+			writer.close();
+			writer = null;
+			tree.close(treeOut);
+			treeOut.close();
+			treeOut = null;
+		} else {
+			tree.close(out);
+		}
 	}
 	
 	@Override
 	public String toString() {
-		ColourProvider.getColour(tree.getRoot(), blockCount, tree.getLeafNodeCount(), colourAtBase);
-        String newick = toSortedNewick(tree.getRoot(), new int[1]);
-		return newick;
+		TreeSnapshot s = new TreeSnapshot(tree.getNodeCount(), tree.getLeafNodeCount());
+		s.copy(-1, tree, blockCount, blockStartFraction, blockEndFraction);
+		s.toSortedNewick(getID() != null);
+		return s.newick.toString();
 	}
 
 }
@@ -0,0 +1,234 @@
+package breath.logger;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Loggable;
+import beast.base.core.Input.Validate;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeInterface;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import beastfx.app.util.OutFile;
+import breath.util.BackgroundOutputStream;
+
+@Description("Logs transmission trees in compact binary form: per sample node heights, parents, "
+		+ "block counts, block starts and block ends as fixed width columns, where parents are only "
+		+ "written when the topology changed. The post-processing tools in breath.util read these files "
+		+ "like tree logs.")
+public class TransmissionStateLogger extends BEASTObject implements Loggable {
+	final public Input<TreeInterface> treeInput = new Input<>("tree", "transmission tree to be logged", Validate.REQUIRED);
+	final public Input<RealParameter> blockStartFractionInput = new Input<>("blockstart", "start of block in fraction of branch length", Validate.REQUIRED);
+	final public Input<RealParameter> blockEndFractionInput = new Input<>("blockend", "end of block in fraction of branch length", Validate.REQUIRED);
+	final public Input<IntegerParameter> blockCountInput = new Input<>("blockcount", "number of transitions inside a block", Validate.REQUIRED);
+	final public Input<OutFile> outputInput = new Input<>("out", "binary file to write transmission states to, gzip compressed if the name ends in .gz", Validate.REQUIRED);
+
+	/**
+	 * File layout (big endian):
+	 * header: MAGIC, int VERSION, int node count, int leaf count, and for every leaf its taxon name
+	 * as int byte count followed by UTF-8 bytes.
+	 * sample: long sample number, byte flags, int[node count] parents if flags has TOPOLOGY set,
+	 * double[node count] heights, int[node count] block counts, double[node count] block starts,
+	 * double[node count] block ends. Parents are node numbers, -1 for the root.
+	 */
+	public final static byte [] MAGIC = "BREATHTS".getBytes(StandardCharsets.US_ASCII);
+	public final static int VERSION = 1;
+	public final static byte TOPOLOGY = 1;
+
+	private Tree tree;
+	private RealParameter blockStartFraction;
+	private RealParameter blockEndFraction;
+	private IntegerParameter blockCount;
+	private OutputStream out;
+	private ByteBuffer buf;
+	private int [] parent;
+	private int [] prevParent;
+
+	@Override
+	public void initAndValidate() {
+		tree = (Tree) treeInput.get();
+		blockStartFraction = blockStartFractionInput.get();
+		blockEndFraction = blockEndFractionInput.get();
+		blockCount = blockCountInput.get();
+		int n = tree.getNodeCount();
+		parent = new int[n];
+		prevParent = new int[n];
+		buf = ByteBuffer.allocate(Long.BYTES + 1 + n * (3 * Integer.BYTES + 3 * Double.BYTES));
+	}
+
+	@Override
+	public void init(PrintStream logOut) {
+		// when resuming, samples are appended to the existing log, which already has a header
+		boolean resuming = BackgroundOutputStream.isResuming(outputInput.get());
+		try {
+			out = resuming ? openForResume(outputInput.get()) : BackgroundOutputStream.newLogOutputStream(outputInput.get());
+			if (!resuming) {
+				ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 3 * Integer.BYTES);
+				header.put(MAGIC);
+				header.putInt(VERSION);
+				header.putInt(tree.getNodeCount());
+				header.putInt(tree.getLeafNodeCount());
+				out.write(header.array());
+				for (int i = 0; i < tree.getLeafNodeCount(); i++) {
+					byte [] id = tree.getNode(i).getID().getBytes(StandardCharsets.UTF_8);
+					out.write(ByteBuffer.allocate(Integer.BYTES).putInt(id.length).array());
+					out.write(id);
+				}
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Could not open file " + outputInput.get().getPath() + ": " + e.getMessage());
+		}
+		// make sure topology is written with the first sample
+		Arrays.fill(prevParent, -2);
+	}
+
+	/**
+	 * Skips a sample of a binary log with nodeCount nodes and returns its size in bytes.
+	 * Returns 0 at the end of the log, and -1 if the log ends in a partial sample,
+	 * as left behind when a run is killed before all its output is written.
+	 */
+	public static int skipSample(DataInputStream in, int nodeCount) throws IOException {
+		try {
+			if (in.read() < 0) {
+				return 0;
+			}
+			in.skipNBytes(Long.BYTES - 1);
+			boolean topology = in.readByte() == TOPOLOGY;
+			int size = nodeCount * (3 * Double.BYTES + Integer.BYTES) + (topology ? nodeCount * Integer.BYTES : 0);
+			in.skipNBytes(size);
+			return Long.BYTES + 1 + size;
+		} catch (EOFException e) {
+			return -1;
+		}
+	}
+
+	// open existing log for appending samples, after removing a partial last sample
+	// so that appended samples line up. Compressed logs are rewritten for this.
+	private OutputStream openForResume(File file) throws IOException {
+		boolean compressed = file.getName().endsWith(".gz");
+		long length = 0;
+		int size;
+		try (DataInputStream in = open(file)) {
+			length = skipHeader(in);
+			while ((size = skipSample(in, tree.getNodeCount())) > 0) {
+				length += size;
+			}
+		}
+		if (size == 0) {
+			return BackgroundOutputStream.newOutputStream(file, true);
+		}
+		if (!compressed) {
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+				channel.truncate(length);
+			}
+			return BackgroundOutputStream.newOutputStream(file, true);
+		}
+		File backup = new File(file.getPath() + ".bu");
+		Files.move(file.toPath(), backup.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		OutputStream out = BackgroundOutputStream.newOutputStream(file);
+		try (DataInputStream in = open(backup)) {
+			byte [] bytes = new byte[1 << 16];
+			while (length > 0) {
+				int n = (int) Math.min(bytes.length, length);
+				in.readFully(bytes, 0, n);
+				out.write(bytes, 0, n);
+				length -= n;
+			}
+		}
+		Files.delete(backup.toPath());
+		return out;
+	}
+
+	private static DataInputStream open(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		if (file.getName().endsWith(".gz")) {
+			in = new GZIPInputStream(in);
+		}
+		return new DataInputStream(new BufferedInputStream(in));
+	}
+
+	// check header of existing log matches the tree, and return its size in bytes
+	private long skipHeader(DataInputStream in) throws IOException {
+		byte [] magic = new byte[MAGIC.length];
+		in.readFully(magic);
+		if (!Arrays.equals(magic, MAGIC) || in.readInt() != VERSION) {
+			throw new IllegalArgumentException("Cannot resume " + outputInput.get().getPath() + ": it is not a binary log of this version");
+		}
+		if (in.readInt() != tree.getNodeCount() || in.readInt() != tree.getLeafNodeCount()) {
+			throw new IllegalArgumentException("Cannot resume " + outputInput.get().getPath() + ": it is a log of a tree of a different size");
+		}
+		long length = MAGIC.length + 3 * Integer.BYTES;
+		for (int i = 0; i < tree.getLeafNodeCount(); i++) {
+			int n = in.readInt();
+			in.skipNBytes(n);
+			length += Integer.BYTES + n;
+		}
+		return length;
+	}
+
+	@Override
+	public void log(long sample, PrintStream logOut) {
+		int n = tree.getNodeCount();
+		Node [] nodes = tree.getNodesAsArray();
+		for (int i = 0; i < n; i++) {
+			parent[i] = nodes[i].isRoot() ? -1 : nodes[i].getParent().getNr();
+		}
+		boolean topologyChanged = !Arrays.equals(parent, prevParent);
+
+		buf.clear();
+		buf.putLong(sample);
+		buf.put(topologyChanged ? TOPOLOGY : 0);
+		if (topologyChanged) {
+			for (int i = 0; i < n; i++) {
+				buf.putInt(parent[i]);
+			}
+			System.arraycopy(parent, 0, prevParent, 0, n);
+		}
+		for (int i = 0; i < n; i++) {
+			buf.putDouble(nodes[i].getHeight());
+		}
+		for (int i = 0; i < n; i++) {
+			buf.putInt(blockCount.getValue(i));
+		}
+		for (int i = 0; i < n; i++) {
+			buf.putDouble(blockStartFraction.getValue(i));
+		}
+		for (int i = 0; i < n; i++) {
+			buf.putDouble(blockEndFraction.getValue(i));
+		}
+		try {
+			out.write(buf.array(), 0, buf.position());
+		} catch (IOException e) {
+			throw new RuntimeException("Could not write to " + outputInput.get().getPath() + ": " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void close(PrintStream logOut) {
+		try {
+			out.close();
+		} catch (IOException e) {
+			throw new RuntimeException("Could not close " + outputInput.get().getPath() + ": " + e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,161 @@
+package breath.operator;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.inference.CalculationNode;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.util.Randomizer;
+
+@Description("Keeps track of branches that have at least one transmission (blockcount >= 0), "
+		+ "so operators can select these in constant time instead of trying random branches")
+public class ActiveBranchIndex extends CalculationNode {
+    final public Input<IntegerParameter> blockCountInput = new Input<>("blockcount", "number of transitions inside a block", Validate.REQUIRED);
+
+    private IntegerParameter blockCount;
+
+    // branches with blockcount == 0 and branches with blockcount > 0
+    // branch i is at position pos[i] in its list, or -1 if blockcount == -1
+    private int [] zeroBranches;
+    private int [] blockBranches;
+    private int zeroCount, blockCountTotal;
+    private int [] pos;
+    // -1, 0 or 1 for blockcount being -1, 0 or > 0 resp.
+    private int [] state;
+
+	@Override
+	public void initAndValidate() {
+		blockCount = blockCountInput.get();
+		int n = blockCount.getDimension();
+		zeroBranches = new int[n];
+		blockBranches = new int[n];
+		pos = new int[n];
+		state = new int[n];
+		zeroCount = 0;
+		blockCountTotal = 0;
+		for (int i = 0; i < n; i++) {
+			state[i] = -1;
+			pos[i] = -1;
+			update(i);
+		}
+	}
+
+	/** synchronise entry for branch i with its current block count.
+	 * Operators that change block counts should call this when they
+	 * need the index to reflect the proposed state during a proposal. **/
+	public void update(int i) {
+		int bc = blockCount.getValue(i);
+		int newState = bc < 0 ? -1 : (bc == 0 ? 0 : 1);
+		if (newState == state[i]) {
+			return;
+		}
+		// remove from old list
+		switch (state[i]) {
+		case 0:
+			zeroCount--;
+			zeroBranches[pos[i]] = zeroBranches[zeroCount];
+			pos[zeroBranches[pos[i]]] = pos[i];
+			break;
+		case 1:
+			blockCountTotal--;
+			blockBranches[pos[i]] = blockBranches[blockCountTotal];
+			pos[blockBranches[pos[i]]] = pos[i];
+			break;
+		}
+		// add to new list
+		switch (newState) {
+		case -1:
+			pos[i] = -1;
+			break;
+		case 0:
+			zeroBranches[zeroCount] = i;
+			pos[i] = zeroCount++;
+			break;
+		case 1:
+			blockBranches[blockCountTotal] = i;
+			pos[i] = blockCountTotal++;
+			break;
+		}
+		state[i] = newState;
+	}
+
+	/** synchronise all entries that changed during the current MCMC step **/
+	public void update() {
+		if (!blockCount.somethingIsDirty()) {
+			return;
+		}
+		for (int i = 0; i < state.length; i++) {
+			if (blockCount.isDirty(i)) {
+				update(i);
+			}
+		}
+	}
+
+	/** number of branches with blockcount >= 0 **/
+	public int getActiveBranchCount() {
+		return zeroCount + blockCountTotal;
+	}
+
+	/** number of infections at the top or bottom of a block,
+	 * i.e. one for every branch with blockcount == 0 and two for every branch with blockcount > 0 **/
+	public int getEligibleInfectionCount() {
+		return zeroCount + 2 * blockCountTotal;
+	}
+
+	/** uniformly select branch with blockcount >= 0, returns -1 if there are none **/
+	public int randomlySelectActiveBranch() {
+		int n = getActiveBranchCount();
+		if (n == 0) {
+			return -1;
+		}
+		int k = Randomizer.nextInt(n);
+		if (k < zeroCount) {
+			return zeroBranches[k];
+		}
+		return blockBranches[k - zeroCount];
+	}
+
+	/** uniformly select branch with blockcount > 0, returns -1 if there are none **/
+	public int randomlySelectBlockBranch() {
+		if (blockCountTotal == 0) {
+			return -1;
+		}
+		return blockBranches[Randomizer.nextInt(blockCountTotal)];
+	}
+
+	/** number of branches with blockcount > 0 **/
+	public int getBlockBranchCount() {
+		return blockCountTotal;
+	}
+
+	/** uniformly select infection at top or bottom of a block
+	 * returns node number with infection, or -1 if there are none
+	 * topOfBlock[0] is set to true for top of block, false for bottom of block **/
+	public int randomlySelectInfection(boolean [] topOfBlock) {
+		int n = getEligibleInfectionCount();
+		if (n == 0) {
+			return -1;
+		}
+		int k = Randomizer.nextInt(n);
+		if (k < zeroCount) {
+			topOfBlock[0] = true;
+			return zeroBranches[k];
+		}
+		k -= zeroCount;
+		topOfBlock[0] = (k % 2 == 0);
+		return blockBranches[k / 2];
+	}
+
+	@Override
+	protected boolean requiresRecalculation() {
+		update();
+		return false;
+	}
+
+	@Override
+	protected void restore() {
+		// block counts are restored by now, and dirty flags still mark the changed entries
+		update();
+		super.restore();
+	}
+}
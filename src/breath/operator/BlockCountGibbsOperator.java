@@ -0,0 +1,108 @@
+package breath.operator;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.TreeInterface;
+import beast.base.inference.Operator;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import breath.distribution.TransmissionTreeLikelihood;
+
+@Description("Operator that samples the block count of a branch with a block from its full conditional "
+		+ "given the block interval, truncated to block counts 1...maxCount")
+public class BlockCountGibbsOperator extends Operator {
+	final public Input<RealParameter> blockStartFractionInput = new Input<>("blockstart", "start of block in fraction of branch length", Validate.REQUIRED);
+    final public Input<RealParameter> blockEndFractionInput = new Input<>("blockend", "end of block in fraction of branch length", Validate.REQUIRED);
+    final public Input<IntegerParameter> blockCountInput = new Input<>("blockcount", "number of transitions inside a block", Validate.REQUIRED);
+	final public Input<TransmissionTreeLikelihood> likelihoodInput = new Input<>("likelihood", "transmission treelikelihood containing the block likelihood", Validate.REQUIRED);
+    final public Input<Integer> maxCountInput = new Input<>("maxCount", "maximum block count considered. "
+    		+ "Branches with larger block counts are left unchanged", 50);
+    final public Input<ActiveBranchIndex> activeBranchesInput = new Input<>("activeBranches", "index of branches with block count >= 0, can be shared between operators. "
+    		+ "If not specified, a new one is created for this operator");
+
+    private RealParameter blockStartFraction;
+    private RealParameter blockEndFraction;
+    private IntegerParameter blockCount;
+    private TransmissionTreeLikelihood likelihood;
+    private TreeInterface tree;
+    private ActiveBranchIndex activeBranches;
+    private int maxCount;
+    // unnormalised log full conditional, logP[n-1] for block count n
+    private double [] logP;
+
+    @Override
+	public void initAndValidate() {
+    	blockStartFraction = blockStartFractionInput.get();
+    	blockEndFraction = blockEndFractionInput.get();
+    	blockCount = blockCountInput.get();
+    	likelihood = likelihoodInput.get();
+    	tree = likelihood.treeInput.get();
+    	activeBranches = activeBranchesInput.get();
+    	if (activeBranches == null) {
+    		activeBranches = new ActiveBranchIndex();
+    		activeBranches.initByName("blockcount", blockCount);
+    	}
+    	maxCount = maxCountInput.get();
+    	if (maxCount < 1) {
+    		throw new IllegalArgumentException("maxCount should be at least 1");
+    	}
+    	logP = new double[maxCount];
+	}
+
+    /**
+     * The new block count is drawn from the conditional of the block likelihood only,
+     * and the Hastings ratio cancels that term in the acceptance probability,
+     * so the proposal is always accepted unless other parts of the posterior (e.g. a
+     * prior on block counts) depend on the block count.
+     */
+	@Override
+	public double proposal() {
+		int i = activeBranches.randomlySelectBlockBranch();
+		if (i < 0) {
+			return Double.NEGATIVE_INFINITY;
+		}
+		int oldCount = blockCount.getValue(i);
+		if (oldCount > maxCount) {
+			// cannot propose the reverse move
+			return Double.NEGATIVE_INFINITY;
+		}
+
+		Node node = tree.getNode(i);
+		double tblock = node.getLength() * (blockEndFraction.getValue(i) - blockStartFraction.getValue(i));
+		if (tblock <= 0) {
+			return Double.NEGATIVE_INFINITY;
+		}
+		likelihood.calcLogBlockCountConditional(tblock, logP);
+
+		// sample new count proportional to exp(logP)
+		double max = Double.NEGATIVE_INFINITY;
+		for (double d : logP) {
+			max = Math.max(max, d);
+		}
+		if (Double.isInfinite(max) || Double.isNaN(max)) {
+			return Double.NEGATIVE_INFINITY;
+		}
+		double sum = 0;
+		for (double d : logP) {
+			sum += Math.exp(d - max);
+		}
+		double r = Randomizer.nextDouble() * sum;
+		int newCount = maxCount;
+		for (int n = 1; n <= maxCount; n++) {
+			r -= Math.exp(logP[n - 1] - max);
+			if (r < 0) {
+				newCount = n;
+				break;
+			}
+		}
+
+		if (newCount != oldCount) {
+			blockCount.setValue(i, newCount);
+		}
+		return logP[oldCount - 1] - logP[newCount - 1];
+	}
+
+}
@@ -1,8 +1,15 @@
 package breath.operator;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.core.Input.Validate;
@@ -22,13 +29,28 @@ public class BlockOperator extends Operator {
     final public Input<IntegerParameter> blockCountInput = new Input<>("blockcount", "number of transitions inside a block", Validate.REQUIRED);
     final public Input<Boolean> keepConstantCountInput = new Input<>("keepconstantcount", "if true, for every deleting there is an insertion to keep total sum of block counts constant", false);
     final public Input<TreeInterface> treeInput = new Input<>("tree", "tree over which to calculate a prior or likelihood", Validate.REQUIRED);
+    final public Input<ActiveBranchIndex> activeBranchesInput = new Input<>("activeBranches", "index of branches with block count >= 0, can be shared between operators. "
+    		+ "If not specified, a new one is created for this operator");
+    final public Input<Boolean> adaptiveInput = new Input<>("adaptive", "if true, block fractions are moved by a random walk with a window size per branch "
+    		+ "that is tuned during the first adaptationLength proposals, instead of redrawing them uniformly", false);
+    final public Input<Long> adaptationLengthInput = new Input<>("adaptationLength", "number of block fraction proposals during which window sizes are tuned. "
+    		+ "Window sizes are fixed afterwards to keep detailed balance", 100000L);
 
     private RealParameter blockStartFraction;
     private RealParameter blockEndFraction;
     private IntegerParameter blockCount;
     private TreeInterface tree;
+    private ActiveBranchIndex activeBranches;
     private double lowerStart, upperStart;
     private double lowerEnd, upperEnd;
+
+    // adaptive random walk on block fractions: log of window size and number of tuning steps per branch
+    private boolean adaptive;
+    private double [] logWindowSize;
+    private int [] adaptationCount;
+    private long adaptationsLeft;
+    // branch of last block fraction proposal, or -1 if the last proposal was of another type
+    private int lastBranch = -1;
     
     @Override
 	public void initAndValidate() {
@@ -36,6 +58,11 @@ public class BlockOperator extends Operator {
     	blockEndFraction = blockEndFractionInput.get();
     	blockCount = blockCountInput.get();
     	tree = treeInput.get();
+    	activeBranches = activeBranchesInput.get();
+    	if (activeBranches == null) {
+    		activeBranches = new ActiveBranchIndex();
+    		activeBranches.initByName("blockcount", blockCount);
+    	}
     	
     	lowerStart = blockStartFraction.getLower();
     	if (lowerStart < 0) {
@@ -79,11 +106,19 @@ public class BlockOperator extends Operator {
     	if (upperStart > upperEnd) {
     		throw new IllegalArgumentException("upper bound of block start should be lower than upper bound of block end");
     	}
+
+    	adaptive = adaptiveInput.get();
+    	int n = tree.getNodeCount();
+    	logWindowSize = new double[n];
+    	Arrays.fill(logWindowSize, Math.log(0.25));
+    	adaptationCount = new int[n];
+    	adaptationsLeft = adaptationLengthInput.get();
     	
     }
 
 	@Override
 	public double proposal() {
+		lastBranch = -1;
 //		if (true)
 //			if (Randomizer.nextBoolean()) {
 //				int [] i = chooseInfectionToRemove();
@@ -99,14 +134,17 @@ public class BlockOperator extends Operator {
 		
 		
 		if (Randomizer.nextBoolean()) {
-			int i = Randomizer.nextInt(blockStartFraction.getDimension());
-
-			int attempts = 0;
-			while (blockCount.getValue(i) == -1 && attempts < 100) {
-				i = Randomizer.nextInt(blockStartFraction.getDimension());
-				attempts++;
+			// select uniformly among branches with block count >= 0
+			// since block counts do not change, the set of candidates does not change, so HR = 1
+			int i = activeBranches.randomlySelectActiveBranch();
+			if (i < 0) {
+				return rejectEarly();
 			}
 				
+			if (adaptive) {
+				return randomWalkFractions(i);
+			}
+
 			// only move start and end fraction but not block count
 			switch (blockCount.getValue(i)) {
 			case -1:
@@ -138,7 +176,7 @@ public class BlockOperator extends Operator {
 			if (i != null) {
 				logHR += removeInfection(i);
 			} else {
-				return Double.NEGATIVE_INFINITY;
+				return rejectEarly();
 			}
 			int k = chooseBlockToInsert();
 			logHR += insertInfection(k);
@@ -151,7 +189,7 @@ public class BlockOperator extends Operator {
 		} else	if (Randomizer.nextBoolean()) {
 			int [] i = chooseInfectionToRemove();
 			if (i == null) {
-				return Double.NEGATIVE_INFINITY;
+				return rejectEarly();
 			}
 			return removeInfection(i);
 		} else {
@@ -186,6 +224,117 @@ public class BlockOperator extends Operator {
 	}
 
 	
+	// move start and end fraction of branch i by a random walk
+	// reflected at the bounds, so the proposal is symmetric
+	private double randomWalkFractions(int i) {
+		lastBranch = i;
+		double windowSize = Math.exp(logWindowSize[i]);
+		switch (blockCount.getValue(i)) {
+		case -1:
+			// nothing to do since start and end fractions are ignored
+			break;
+		case 0:
+			// make sure start == end fraction after proposal
+			double f = reflect(blockStartFraction.getValue(i) + windowSize * (2 * Randomizer.nextDouble() - 1),
+					Math.max(lowerStart, lowerEnd), Math.min(upperStart, upperEnd));
+			blockStartFraction.setValue(i, f);
+			blockEndFraction.setValue(i, f);
+			break;
+		default:
+			double blockStart = reflect(blockStartFraction.getValue(i) + windowSize * (2 * Randomizer.nextDouble() - 1), lowerStart, upperStart);
+			double blockEnd = reflect(blockEndFraction.getValue(i) + windowSize * (2 * Randomizer.nextDouble() - 1), lowerEnd, upperEnd);
+			if (blockEnd < blockStart) {
+				return rejectEarly();
+			}
+			blockStartFraction.setValue(i, blockStart);
+			blockEndFraction.setValue(i, blockEnd);
+		}
+		return 0;
+	}
+
+	private double reflect(double x, double lower, double upper) {
+		if (upper <= lower) {
+			return lower;
+		}
+		while (x < lower || x > upper) {
+			if (x < lower) {
+				x = 2 * lower - x;
+			}
+			if (x > upper) {
+				x = 2 * upper - x;
+			}
+		}
+		return x;
+	}
+
+	// MCMC does not call optimize for proposals that return -infinity,
+	// so count these as rejections here to keep the acceptance rate used for tuning unbiased
+	private double rejectEarly() {
+		optimize(Double.NEGATIVE_INFINITY);
+		lastBranch = -1;
+		return Double.NEGATIVE_INFINITY;
+	}
+
+	/** tune window size of the branch of the last block fraction proposal towards target acceptance **/
+	@Override
+	public void optimize(double logAlpha) {
+		if (!adaptive || lastBranch < 0 || adaptationsLeft <= 0) {
+			return;
+		}
+		int i = lastBranch;
+		adaptationCount[i]++;
+		double acceptance = logAlpha >= 0 ? 1.0 : Math.exp(logAlpha);
+		double delta = (acceptance - getTargetAcceptanceProbability()) / Math.sqrt(adaptationCount[i]);
+		// window size is at most 1 since fractions are in [0,1]
+		logWindowSize[i] = Math.max(Math.log(1e-6), Math.min(0, logWindowSize[i] + delta));
+		adaptationsLeft--;
+	}
+
+	/** stores window sizes and adaptation progress with the operator state, so a resumed run continues tuning where it stopped **/
+	@Override
+	public void storeToFile(PrintWriter out) {
+		StringWriter base = new StringWriter();
+		super.storeToFile(new PrintWriter(base));
+		try {
+			JSONObject json = new JSONObject(base.toString());
+			JSONArray windowSize = new JSONArray();
+			JSONArray count = new JSONArray();
+			for (int i = 0; i < logWindowSize.length; i++) {
+				windowSize.put(logWindowSize[i]);
+				count.put(adaptationCount[i]);
+			}
+			json.put("logWindowSize", windowSize);
+			json.put("adaptationCount", count);
+			json.put("adaptationsLeft", adaptationsLeft);
+			out.print(json.toString());
+		} catch (JSONException e) {
+			// fall back to the state without adaptation
+			out.print(base.toString());
+		}
+	}
+
+	@Override
+	public void restoreFromFile(JSONObject o) {
+		super.restoreFromFile(o);
+		if (!o.has("logWindowSize")) {
+			return;
+		}
+		try {
+			JSONArray windowSize = o.getJSONArray("logWindowSize");
+			JSONArray count = o.getJSONArray("adaptationCount");
+			if (windowSize.length() != logWindowSize.length) {
+				throw new IllegalArgumentException("Cannot restore " + getID() + ": number of window sizes does not match number of branches");
+			}
+			for (int i = 0; i < logWindowSize.length; i++) {
+				logWindowSize[i] = windowSize.getDouble(i);
+				adaptationCount[i] = count.getInt(i);
+			}
+			adaptationsLeft = o.getLong("adaptationsLeft");
+		} catch (JSONException e) {
+			throw new IllegalArgumentException("Cannot restore " + getID() + ": " + e.getMessage());
+		}
+	}
+
 	private int eligbleInfectionCount = 0;
 	
 	
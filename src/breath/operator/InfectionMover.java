@@ -9,13 +9,12 @@ import beast.base.core.Input;
 import beast.base.core.Input.Validate;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.TreeInterface;
-import beast.base.evolution.tree.Tree;
 import beast.base.inference.Operator;
 import beast.base.inference.parameter.IntegerParameter;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.util.Randomizer;
+import breath.distribution.TransmissionColouring;
 import breath.distribution.TransmissionTreeLikelihood;
-import breath.distribution.Validator;
 
 @Description("Operator that randomly picks an infection and moves it elsewhere")
 public class InfectionMover extends Operator {
@@ -23,13 +22,16 @@ public class InfectionMover extends Operator {
     final public Input<RealParameter> blockEndFractionInput = new Input<>("blockend", "end of block in fraction of branch length", Validate.REQUIRED);
     final public Input<IntegerParameter> blockCountInput = new Input<>("blockcount", "number of transitions inside a block", Validate.REQUIRED);
 	final public Input<TransmissionTreeLikelihood> likelihoodInput = new Input<>("likelihood", "transmission treelikelihood containing the colouring", Validate.REQUIRED);
+	final public Input<TreePathIndex> pathIndexInput = new Input<>("pathIndex", "index for finding paths between leafs in the tree. "
+			+ "If not specified, a new one is created for this operator");
 
     private RealParameter blockStartFraction;
     private RealParameter blockEndFraction;
     private IntegerParameter blockCount;
     private TransmissionTreeLikelihood likelihood;
     private TreeInterface tree;
-    private int [] colourAtBase;
+    private TreePathIndex pathIndex;
+    private TransmissionColouring colouring;
 
     @Override
 	public void initAndValidate() {
@@ -38,6 +40,12 @@ public class InfectionMover extends Operator {
     	blockCount = blockCountInput.get();
     	likelihood = likelihoodInput.get();
     	tree = likelihood.treeInput.get();
+    	pathIndex = pathIndexInput.get();
+    	if (pathIndex == null) {
+    		pathIndex = new TreePathIndex();
+    		pathIndex.initByName("tree", tree, "blockcount", blockCount);
+    	}
+    	colouring = likelihood.getTransmissionColouring();
 	}
 
     
@@ -57,43 +65,40 @@ public class InfectionMover extends Operator {
 			j = Randomizer.nextInt(n);
 		}
 		
-		// get path between two leafs
-		List<Node> path = getPathExcludingMRCA(i, j);
-		double pathLength = 0;
-		for (Node node : path) {
-			pathLength += node.getLength();
-		}
+		// get path between two leafs, consisting of the branches
+		// from leaf i and from leaf j up to but excluding their MRCA
+		int mrca = pathIndex.getMRCA(i, j);
+		double pathLengthI = pathIndex.getPathLength(i, mrca);
+		double pathLength = pathLengthI + pathIndex.getPathLength(j, mrca);
 
 		
 		// 1. determine number of eligible infections 
-		int eligbleInfectionCount = 0;
-		for (Node node : path) {
-			int bc = blockCount.getValue(node.getNr());
-			if (bc == 0) {
-				eligbleInfectionCount += 1;
-			} else if (bc > 0) {
-				eligbleInfectionCount += 2;
-			}
+		int eligbleInfectionCountI = pathIndex.getEligibleInfectionCount(i, mrca);
+		int eligbleInfectionCount = eligbleInfectionCountI + pathIndex.getEligibleInfectionCount(j, mrca);
+		if (eligbleInfectionCount == 0) {
+			return Double.NEGATIVE_INFINITY;
 		}
 
 		// 2. pick one uniformly at random from eligble nodes
 		int k = Randomizer.nextInt(eligbleInfectionCount);
-		Node nodeWithInfectionRemoved = removeInfectionFromPath(path, k);
+		int nodeNr = k < eligbleInfectionCountI ? 
+				pathIndex.findInfection(i, mrca, k) :
+				pathIndex.findInfection(j, mrca, k - eligbleInfectionCountI);
+		Node nodeWithInfectionRemoved = removeInfection(tree.getNode(nodeNr));
+		pathIndex.update(nodeNr);
 		
 		logHR += Math.log(nodeWithInfectionRemoved.getLength()/pathLength) - Math.log(1.0/eligbleInfectionCount);
 		
 		
-		Node insertionNode = insertInfectionToPath(path, pathLength);
+		// 3. insert infection uniform randomly on path 
+		double r = Randomizer.nextDouble() * pathLength;
+		nodeNr = r < pathLengthI ? 
+				pathIndex.findHeight(i, mrca, tree.getNode(i).getHeight() + r) :
+				pathIndex.findHeight(j, mrca, tree.getNode(j).getHeight() + r - pathLengthI);
+		Node insertionNode = insertInfection(tree.getNode(nodeNr));
+		pathIndex.update(nodeNr);
 		
-		eligbleInfectionCount = 0;
-		for (Node node : path) {
-			int bc = blockCount.getValue(node.getNr());
-			if (bc == 0) {
-				eligbleInfectionCount += 1;
-			} else if (bc > 0) {
-				eligbleInfectionCount += 2;
-			}
-		}
+		eligbleInfectionCount = pathIndex.getEligibleInfectionCount(i, mrca) + pathIndex.getEligibleInfectionCount(j, mrca);
 		logHR += Math.log(1.0/eligbleInfectionCount) - Math.log(insertionNode.getLength()/pathLength);
 		
 
@@ -104,10 +109,9 @@ public class InfectionMover extends Operator {
 		}
 		
 		// make sure the colouring is valid
-		colourAtBase = likelihood.getFreshColouring();		
-		Validator validator = new Validator((Tree)tree, colourAtBase, blockCount, blockStartFraction, blockEndFraction);
-		if (!validator.isValid(colourAtBase)) {
+		if (!colouring.isValidProposal()) {
 			// System.err.println("x");
+			colouring.rejectProposal();
 			return Double.NEGATIVE_INFINITY;
 		}
 
@@ -140,136 +144,50 @@ public class InfectionMover extends Operator {
 		}
 	}
 
-	private Node removeInfectionFromPath(List<Node> path, int k) {
-		//delta = -1;
-		for (Node node : path) {
-			int nodeNr = node.getNr();
-			int bc = blockCount.getValue(nodeNr) + 1;
-			k -= bc > 2 ? 2 : bc;
-			if (k < 0) {
-				blockCount.setValue(node.getNr(), blockCount.getValue(node.getNr()) - 1);
-				if (blockCount.getValue(nodeNr) == -1) {
-					return node;
-				}
-				if (blockCount.getValue(nodeNr) == 0) {
-					if (Randomizer.nextBoolean()) {
-						blockStartFraction.setValue(nodeNr, blockEndFraction.getValue(nodeNr));
-					} else {
-						blockEndFraction.setValue(nodeNr, blockStartFraction.getValue(nodeNr));
-						
-					}
-					return node;
-				}
-				
-				// shrink the block if it is on a boundary
-				// which is just as well as positions 1 and 2
-				//if (k == -1 || k == -2) { // blockCount.getValue(node.getNr()) - k == 1) {
-				//	if (Randomizer.nextBoolean()) {
-				double blockStart = Randomizer.nextDouble();
-				double blockEnd = Randomizer.nextDouble();
-				if (blockEnd < blockStart) {
-					double tmp = blockEnd; blockEnd = blockStart; blockStart = tmp;
-				}
-				blockStartFraction.setValue(nodeNr, blockStart);
-				blockEndFraction.setValue(nodeNr, blockEnd);					
-//				if (k == -1) {
-//					delta = blockEndFraction.getValue(nodeNr);
-//					double newBlockStartFraction = Randomizer.nextDouble() * delta; //blockStartFraction.getValue(nodeNr) + Randomizer.nextDouble() * (blockEndFraction.getValue(nodeNr) -blockStartFraction.getValue(nodeNr));
-//					blockStartFraction.setValue(nodeNr, newBlockStartFraction);
-//				} else if (k == -2) {
-//					delta = 1.0 - blockStartFraction.getValue(nodeNr);
-//					double newBlockEndFraction = 1.0 - Randomizer.nextDouble() * delta; //blockEndFraction.getValue(nodeNr) - Randomizer.nextDouble() * (blockEndFraction.getValue(nodeNr) - blockStartFraction.getValue(nodeNr));
-//					blockEndFraction.setValue(nodeNr, newBlockEndFraction);						
-//				}
-				//}
-				return node;
+	private Node removeInfection(Node node) {
+		int nodeNr = node.getNr();
+		blockCount.setValue(nodeNr, blockCount.getValue(nodeNr) - 1);
+		if (blockCount.getValue(nodeNr) == -1) {
+			return node;
+		}
+		if (blockCount.getValue(nodeNr) == 0) {
+			if (Randomizer.nextBoolean()) {
+				blockStartFraction.setValue(nodeNr, blockEndFraction.getValue(nodeNr));
+			} else {
+				blockEndFraction.setValue(nodeNr, blockStartFraction.getValue(nodeNr));
 			}
-			
-//			if (bc == 0) {
-//				k--;
-//				if (k < 0) {
-//					// remove from top of block
-//					blockCount.setValue(nodeNr, -1);
-//					return;
-//				}
-//			} else if (bc > 0) {
-//				k -= 2;
-//				if (k < -1) {
-//					// remove from bottom of block
-//					blockCount.setValue(node.getNr(), blockCount.getValue(node.getNr()) - 1);
-//					if (blockCount.getValue(nodeNr) == 0) {
-//						blockStartFraction.setValue(nodeNr, blockEndFraction.getValue(nodeNr));						
-//					} else if (blockCount.getValue(nodeNr) > 0) {
-//						double newBlockStartFraction = blockStartFraction.getValue(nodeNr) + Randomizer.nextDouble() * (blockEndFraction.getValue(nodeNr) -blockStartFraction.getValue(nodeNr));
-//						blockStartFraction.setValue(nodeNr, newBlockStartFraction);
-//					}
-//					return;
-//				}
-//				if (k < 0) {
-//					// remove from top of block
-//					blockCount.setValue(node.getNr(), blockCount.getValue(node.getNr()) - 1);
-//					if (blockCount.getValue(nodeNr) == 0) {
-//						blockEndFraction.setValue(nodeNr, blockStartFraction.getValue(nodeNr));						
-//					} else if (blockCount.getValue(nodeNr) > 0) {
-//						double newBlockEndFraction = blockEndFraction.getValue(nodeNr) - Randomizer.nextDouble() * (blockEndFraction.getValue(nodeNr) - blockStartFraction.getValue(nodeNr));
-//						blockEndFraction.setValue(nodeNr, newBlockEndFraction);
-//					}
-//					return;
-//				}
-//			}
+			return node;
 		}
-		throw new RuntimeException("Programmer error: should not get here");
-	}	
-
-	private Node insertInfectionToPath(List<Node> path, double pathLength) {
-		// insert infection uniform randomly on path 
 
-		//delta = -1;
-//		int k = Randomizer.nextInt(path.size());
-//		Node node = path.get(k);
-		
-		double r = Randomizer.nextDouble() * pathLength;
-		for (Node node : path) {
-			if (node.getLength() > r) {
-				int nodeNr = node.getNr();
-				blockCount.setValue(nodeNr, blockCount.getValue(nodeNr) + 1);
-				if (blockCount.getValue(nodeNr) == 0) {
-					double f = Randomizer.nextDouble();
-					blockStartFraction.setValue(nodeNr, f);// / node.getLength());
-					blockEndFraction.setValue(nodeNr, f);// / node.getLength());
-					return node;
-				} else { // blockCount > 0
-					double blockStart = Randomizer.nextDouble();
-					double blockEnd = Randomizer.nextDouble();
-					if (blockEnd < blockStart) {
-						double tmp = blockEnd; blockEnd = blockStart; blockStart = tmp;
-					}
-					blockStartFraction.setValue(nodeNr, blockStart);
-					blockEndFraction.setValue(nodeNr, blockEnd);					
-//					if (Randomizer.nextBoolean()) {
-//						delta = blockEndFraction.getValue(nodeNr);
-//						double newBlockStartFraction = Randomizer.nextDouble() * delta; //blockStartFraction.getValue(nodeNr) + Randomizer.nextDouble() * (blockEndFraction.getValue(nodeNr) -blockStartFraction.getValue(nodeNr));
-//						blockStartFraction.setValue(nodeNr, newBlockStartFraction);
-//					} else if (k == -2) {
-//						delta = 1.0 - blockStartFraction.getValue(nodeNr);
-//						double newBlockEndFraction = 1.0 - Randomizer.nextDouble() * delta; //blockEndFraction.getValue(nodeNr) - Randomizer.nextDouble() * (blockEndFraction.getValue(nodeNr) - blockStartFraction.getValue(nodeNr));
-//						blockEndFraction.setValue(nodeNr, newBlockEndFraction);						
-//					}
+		// resample the block
+		double blockStart = Randomizer.nextDouble();
+		double blockEnd = Randomizer.nextDouble();
+		if (blockEnd < blockStart) {
+			double tmp = blockEnd; blockEnd = blockStart; blockStart = tmp;
+		}
+		blockStartFraction.setValue(nodeNr, blockStart);
+		blockEndFraction.setValue(nodeNr, blockEnd);					
+		return node;
+	}	
 
-//					if (blockStartFraction.getValue(nodeNr) * node.getLength()> r) {
-//						blockStartFraction.setValue(nodeNr, r / node.getLength());
-//						return;
-//					}
-//					if (blockEndFraction.getValue(nodeNr) * node.getLength() < r) {
-//						blockEndFraction.setValue(nodeNr, r / node.getLength());						
-//					}
-					// (blockStartFraction.getValue(nodeNr) < r && r < blockEndFraction.getValue(nodeNr))
-					return node;
-				}
-			}
-			r = r - node.getLength();
+	private Node insertInfection(Node node) {
+		int nodeNr = node.getNr();
+		blockCount.setValue(nodeNr, blockCount.getValue(nodeNr) + 1);
+		if (blockCount.getValue(nodeNr) == 0) {
+			double f = Randomizer.nextDouble();
+			blockStartFraction.setValue(nodeNr, f);
+			blockEndFraction.setValue(nodeNr, f);
+			return node;
+		}
+		// blockCount > 0
+		double blockStart = Randomizer.nextDouble();
+		double blockEnd = Randomizer.nextDouble();
+		if (blockEnd < blockStart) {
+			double tmp = blockEnd; blockEnd = blockStart; blockStart = tmp;
 		}
-		throw new RuntimeException("Progammer error 2: should never get here");
+		blockStartFraction.setValue(nodeNr, blockStart);
+		blockEndFraction.setValue(nodeNr, blockEnd);					
+		return node;
 	}
 
 	
@@ -1,7 +1,6 @@
 package breath.operator;
 
 
-import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -11,13 +10,11 @@ import beast.base.core.Input;
 import beast.base.core.Input.Validate;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.TreeInterface;
-import beast.base.evolution.tree.Tree;
 import beast.base.inference.Operator;
 import beast.base.inference.parameter.IntegerParameter;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.util.Randomizer;
 import breath.distribution.TransmissionTreeLikelihood;
-import breath.distribution.Validator;
 import breath.logger.ColouredTreeLogger;
 
 @Description("Operator that randomly picks an infection and moves it elsewhere")
@@ -26,13 +23,18 @@ public class InfectionMover2 extends Operator {
     final public Input<RealParameter> blockEndFractionInput = new Input<>("blockend", "end of block in fraction of branch length", Validate.REQUIRED);
     final public Input<IntegerParameter> blockCountInput = new Input<>("blockcount", "number of transitions inside a block", Validate.REQUIRED);
 	final public Input<TransmissionTreeLikelihood> likelihoodInput = new Input<>("likelihood", "transmission treelikelihood containing the colouring", Validate.REQUIRED);
+    final public Input<ActiveBranchIndex> activeBranchesInput = new Input<>("activeBranches", "index of branches with block count >= 0, can be shared between operators. "
+    		+ "If not specified, a new one is created for this operator");
 
     private RealParameter blockStartFraction;
     private RealParameter blockEndFraction;
     private IntegerParameter blockCount;
     private TransmissionTreeLikelihood likelihood;
     private TreeInterface tree;
+    private ActiveBranchIndex activeBranches;
     private int [] colourAtBase;
+    private SegmentIndex segmentIndex;
+    private double [] offset = new double[1];
 
     @Override
 	public void initAndValidate() {
@@ -41,6 +43,13 @@ public class InfectionMover2 extends Operator {
     	blockCount = blockCountInput.get();
     	likelihood = likelihoodInput.get();
     	tree = likelihood.treeInput.get();
+    	activeBranches = activeBranchesInput.get();
+    	if (activeBranches == null) {
+    		activeBranches = new ActiveBranchIndex();
+    		activeBranches.initByName("blockcount", blockCount);
+    	}
+    	segmentIndex = new SegmentIndex();
+    	segmentIndex.initByName("tree", tree, "blockcount", blockCount, "blockstart", blockStartFraction, "blockend", blockEndFraction);
 	}
 
     
@@ -53,30 +62,25 @@ public class InfectionMover2 extends Operator {
 		
 		int pre = blockCount.getValue(0);
 		double logHR = doproposal();
+		if (logHR == Double.NEGATIVE_INFINITY) {
+			return logHR;
+		}
 		// logHR = 0;
 		int post = blockCount.getValue(0);
 		updateStats(pre, post);
 
 		if (debug) {
-			colourAtBase = likelihood.getFreshColouring();		
-			Validator validator = new Validator((Tree)tree, colourAtBase, blockCount, blockStartFraction, blockEndFraction);
-			if (!validator.isValid(colourAtBase)) {
-				validator.isValid(colourAtBase);
+			if (!likelihood.getTransmissionColouring().isValidProposal()) {
 				System.err.println("Invalid state proposed");
+				likelihood.getTransmissionColouring().rejectProposal();
 			}
 		}
 		
 		// candidate set of infections to move may change after moving the infection, 
 		// so the HR must include that information		
 		// Therefore, we determine number of eligible infections after proposal
-		int afterEligbleInfectionCount = 0;
-		for (int i : blockCount.getValues()) {
-			if (i == 0) {
-				afterEligbleInfectionCount += 1;
-			} else if (i > 0) {
-				afterEligbleInfectionCount += 2;
-			}
-		}
+		activeBranches.update();
+		int afterEligbleInfectionCount = activeBranches.getEligibleInfectionCount();
 		logHR += Math.log(afterEligbleInfectionCount) - Math.log(eligbleInfectionCount);
 		
 		
@@ -112,9 +116,14 @@ public class InfectionMover2 extends Operator {
 
 	private double doproposal() {
 		colourAtBase = likelihood.getColouring();
+		segmentIndex.update(colourAtBase);
 		int leafCount = tree.getLeafNodeCount();
 		boolean [] topOfBlock = new boolean[1];
 		int i = randomlySelectInfection(topOfBlock);
+		if (i < 0) {
+			// no infection to move
+			return Double.NEGATIVE_INFINITY;
+		}
 
 		int bc = blockCount.getValue(Math.abs(i));
 		if (bc == 0) {
@@ -136,24 +145,6 @@ public class InfectionMover2 extends Operator {
 	}
 
 	
-	enum segmentType {top, bottom, all};
-	DecimalFormat format = new DecimalFormat("#.##");
-	class Segment {
-		int nodeNr;
-		double length;
-		segmentType type;
-		Segment(int nodeNr, double length, segmentType type) {
-			this.nodeNr = nodeNr;
-			this.length = length;
-			this.type = type;
-		}
-		
-		@Override
-		public String toString() {
-			return  nodeNr + ":" + type + format.format(length);
-		}
-	}
-	
 	private double moveInfectionAtTopOfSegment(int nodeNr) {
 		// 1. remove infection & remove uniformly part of block at end
 		blockCount.setValue(nodeNr, blockCount.getValue(nodeNr) - 1);
@@ -167,15 +158,14 @@ public class InfectionMover2 extends Operator {
 			deltaLength = (blockEndFraction.getValue(nodeNr) - newBlockEndFraction) * tree.getNode(nodeNr).getLength();
 			blockEndFraction.setValue(nodeNr, newBlockEndFraction);
 		}
+		segmentIndex.update(nodeNr);
 
 		// 2. determine segment
 		int parent = tree.getNode(nodeNr).getParent().getNr();
 		int parentColour = colourAtBase[parent];
-		List<Segment> segments = getSegments(parentColour);
-		segments.addAll(getSegments(colourAtBase[nodeNr]));
 
 		// 3. insert randomly in segment
-		double length = insertInfectionIntoSegments(segments);
+		double length = insertInfectionIntoSegments(parentColour, colourAtBase[nodeNr]);
 		return Math.log((length - deltaLength)/length);
 	}
 
@@ -191,135 +181,61 @@ public class InfectionMover2 extends Operator {
 			deltaLength = (newBlockStartFraction - blockStartFraction.getValue(nodeNr)) * tree.getNode(nodeNr).getLength();
 			blockStartFraction.setValue(nodeNr, newBlockStartFraction);
 		}
+		segmentIndex.update(nodeNr);
 
 		// 2. determine segment
-		List<Segment> segments = getSegments(colourAtBase[nodeNr]);
 		int parent = tree.getNode(nodeNr).getParent().getNr();
 		int parentColour = colourAtBase[parent];
-		segments.addAll(getSegments(parentColour));
 		
 		// 3. insert randomly in segment
-		double length = insertInfectionIntoSegments(segments);
+		double length = insertInfectionIntoSegments(colourAtBase[nodeNr], parentColour);
 		return Math.log((length - deltaLength)/length);
 	}
 
 	// infection is on border of at least one unsampled colour
 	private double moveInfectionAtSegment(int nodeNr) {
 		// 2. determine segment
-		List<Segment> segments = getSegments(colourAtBase[nodeNr]);
 		int parent = tree.getNode(nodeNr).getParent().getNr();
 		int parentColour = colourAtBase[parent];
-		segments.addAll(getSegments(parentColour));
-		
-//System.out.print(Arrays.toString(segments.toArray()));		
 
 		// 1. remove infection
+		// segments are those from before removal, so segment index is not updated here
 		blockCount.setValue(nodeNr, -1);
 
 		// 3. insert randomly in segment
-		insertInfectionIntoSegments(segments);
+		insertInfectionIntoSegments(colourAtBase[nodeNr], parentColour);
 
 		return 0;
 	}
 
-	private List<Segment> getSegments(int colour) {
-		List<Segment> list = new ArrayList<>();
-		int n = tree.getNodeCount();
-		for (int j = 0; j < n; j++) {
-			if (colourAtBase[j] == colour) {
-				if (blockCount.getValue(j) == -1) {
-					list.add(new Segment(j, tree.getNode(j).getLength(), segmentType.all));
-				} else {
-					list.add(new Segment(j, tree.getNode(j).getLength() * blockStartFraction.getValue(j), segmentType.bottom));
-				}
-				if (!tree.getNode(j).isLeaf()) {
-					Node left = tree.getNode(j).getLeft();
-					int leftIndex = left.getNr();
-					if (blockCount.getValue(leftIndex) != -1) {
-						list.add(new Segment(left.getNr(), left.getLength() * (1.0-blockEndFraction.getValue(leftIndex)), segmentType.top));					
-					}
-					Node right = tree.getNode(j).getRight();
-					int rightIndex = right.getNr();
-					if (blockCount.getValue(rightIndex) != -1) {
-						list.add(new Segment(right.getNr(), right.getLength() * (1.0-blockEndFraction.getValue(rightIndex)), segmentType.top));					
-					}
-				}
-			}
-		}
-		return list;
-	}
-
-	private double insertInfectionIntoSegments(List<Segment> segments) {
-		// randomly select non-zero length segment
-		int i = Randomizer.nextInt(segments.size());
-		Segment segment = segments.get(i);
-		while (segment.length <= 0) {
-			i = Randomizer.nextInt(segments.size());
-			segment = segments.get(i);
-		}
-		double r = Randomizer.nextDouble() * segment.length;
-		blockCount.setValue(segment.nodeNr, blockCount.getValue(segment.nodeNr) + 1);
-		Node node = tree.getNode(segment.nodeNr);
-		switch (segment.type) {
-		case top:
-			blockEndFraction.setValue(segment.nodeNr, 1.0 - r / node.getLength());
-			if (blockCount.getValue(segment.nodeNr) == 0) {
-				blockStartFraction.setValue(segment.nodeNr, 1.0 - r / node.getLength());
-			}
-			break;
-		case bottom:
-			blockStartFraction.setValue(segment.nodeNr, r / node.getLength());
-			if (blockCount.getValue(segment.nodeNr) == 0) {
-				blockEndFraction.setValue(segment.nodeNr, r / node.getLength());
-			}
-			break;
-		case all:
-			if (blockCount.getValue(segment.nodeNr) != 0) {
-				throw new RuntimeException("Expected block count to be 0");
-			}
-			blockStartFraction.setValue(segment.nodeNr, r / node.getLength());
-			blockEndFraction.setValue(segment.nodeNr, r / node.getLength());
-			break;
-		}
-		return segment.length;
-	}
-
-	private double insertInfectionIntoSegments0(List<Segment> segments) {
-		double length = 0;
-		for (Segment segment : segments) {
-			length += segment.length;
-		}
+	// insert infection uniformly at random in the segments of colour1 and colour2 
+	// returns total length of these segments
+	// Note: insertion is deliberately not adaptive. The Hastings ratios of the moves
+	// above assume uniform reinsertion; a learned per-host density would need the
+	// segment lengths of the proposed colouring for the reverse move, which are not
+	// available until the colouring is recalculated.
+	private double insertInfectionIntoSegments(int colour1, int colour2) {
+		double length1 = segmentIndex.getLength(colour1);
+		double length = colour1 == colour2 ? length1 : length1 + segmentIndex.getLength(colour2);
 		double r = Randomizer.nextDouble() * length;
-		for (Segment segment : segments) {
-			if (segment.length > r) {
-				blockCount.setValue(segment.nodeNr, blockCount.getValue(segment.nodeNr) + 1);
-				Node node = tree.getNode(segment.nodeNr);
-				switch (segment.type) {
-				case top:
-					blockEndFraction.setValue(segment.nodeNr, 1.0 - r / node.getLength());
-					if (blockCount.getValue(segment.nodeNr) == 0) {
-						blockStartFraction.setValue(segment.nodeNr, 1.0 - r / node.getLength());
-					}
-					break;
-				case bottom:
-					blockStartFraction.setValue(segment.nodeNr, r / node.getLength());
-					if (blockCount.getValue(segment.nodeNr) == 0) {
-						blockEndFraction.setValue(segment.nodeNr, r / node.getLength());
-					}
-					break;
-				case all:
-					if (blockCount.getValue(segment.nodeNr) != 0) {
-						throw new RuntimeException("Expected block count to be 0");
-					}
-					blockStartFraction.setValue(segment.nodeNr, r / node.getLength());
-					blockEndFraction.setValue(segment.nodeNr, r / node.getLength());
-					break;
-				}
-				return length;
+		int slot = r < length1 ? segmentIndex.find(colour1, r, offset) : segmentIndex.find(colour2, r - length1, offset);
+		r = offset[0];
+		
+		int nodeNr = SegmentIndex.nodeNr(slot);
+		blockCount.setValue(nodeNr, blockCount.getValue(nodeNr) + 1);
+		Node node = tree.getNode(nodeNr);
+		if (SegmentIndex.isTop(slot)) {
+			blockEndFraction.setValue(nodeNr, 1.0 - r / node.getLength());
+			if (blockCount.getValue(nodeNr) == 0) {
+				blockStartFraction.setValue(nodeNr, 1.0 - r / node.getLength());
+			}
+		} else {
+			blockStartFraction.setValue(nodeNr, r / node.getLength());
+			if (blockCount.getValue(nodeNr) == 0) {
+				blockEndFraction.setValue(nodeNr, r / node.getLength());
 			}
-			r = r - segment.length;
 		}
-		throw new RuntimeException("Progammer error 1: should never get here");
+		return length;
 	}
 
 	private double moveInfectionOnBorderOfTwoSampledColours(int nodeNr, int otherColour) {
@@ -356,40 +272,8 @@ public class InfectionMover2 extends Operator {
 	// use topOfBlock to indicate using top of block (true), or for bottom of block (false)
 	private int eligbleInfectionCount = 0;
 	private int randomlySelectInfection(boolean [] topOfBlock) {
-		// 1. determine number of eligible infections 
-		eligbleInfectionCount = 0;
-		for (int i : blockCount.getValues()) {
-			if (i == 0) {
-				eligbleInfectionCount += 1;
-			} else if (i > 0) {
-				eligbleInfectionCount += 2;
-			}
-		}
-
-		// 2. pick one uniformly at random;
-		int k = Randomizer.nextInt(eligbleInfectionCount);
-		for (int i = 0; i < blockCount.getDimension(); i++) {
-		//for (int i = blockCount.getDimension()-1; i >= 0; i--) {
-			int bc = blockCount.getValue(i);
-			if (bc == 0) {
-				k--;
-				if (k < 0) {
-					topOfBlock[0] = true;
-					return i;
-				}
-			} else if (bc > 0) {
-				k -= 2;
-				if (k < 0) {
-					topOfBlock[0] = true;
-					return i;
-				}
-				if (k < -1) {
-					topOfBlock[0] = false;
-					return i;
-				}
-			}
-		}
-		throw new RuntimeException("Programmer error: should not get here");
+		eligbleInfectionCount = activeBranches.getEligibleInfectionCount();
+		return activeBranches.randomlySelectInfection(topOfBlock);
 	}
 
 	
@@ -0,0 +1,297 @@
+package breath.operator;
+
+import java.util.Arrays;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeInterface;
+import beast.base.inference.CalculationNode;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+
+/**
+ * Every branch k has two segments:
+ * slot 2k is the bottom part of the branch (the whole branch if blockcount = -1,
+ * otherwise the part below the block), which has colour colourAtBase[k];
+ * slot 2k+1 is the top part above the block, which has the colour of the parent
+ * (and is empty if blockcount = -1).
+ *
+ * Segments of a colour are kept in a list with a Fenwick tree over their lengths,
+ * so that sampling a position uniformly from the total length of a colour takes O(log n).
+ * The index is synchronised with a colouring by only moving the segments that
+ * changed colour or length. Branches whose length or block changed are picked up
+ * from dirty flags at every MCMC step, so a synchronisation only visits those and
+ * the branches whose colour changed.
+ */
+@Description("Per colour index of segments of the tree where an infection can be inserted, "
+		+ "that is, parts of branches outside blocks")
+public class SegmentIndex extends CalculationNode {
+	final public Input<TreeInterface> treeInput = new Input<>("tree", "transmission tree", Validate.REQUIRED);
+	final public Input<RealParameter> blockStartFractionInput = new Input<>("blockstart", "start of block in fraction of branch length", Validate.REQUIRED);
+	final public Input<RealParameter> blockEndFractionInput = new Input<>("blockend", "end of block in fraction of branch length", Validate.REQUIRED);
+	final public Input<IntegerParameter> blockCountInput = new Input<>("blockcount", "number of transitions inside a block", Validate.REQUIRED);
+
+	final static int REBUILD_INTERVAL = 1000;
+
+	private TreeInterface tree;
+	private IntegerParameter blockCount;
+	private RealParameter blockStartFraction;
+	private RealParameter blockEndFraction;
+	private int [] colourAtBase;
+	// colour of every node at the last synchronisation, -1 if never synchronised
+	private int [] syncedColour;
+	// branches that may be out of sync with the tree or block parameters
+	private int [] pending;
+	private int pendingCount;
+	private boolean [] isPending;
+
+	// per slot: colour, length and position in member list of that colour
+	private int [] slotColour;
+	private double [] slotLength;
+	private int [] slotPos;
+
+	// per colour: member slots, 1-based Fenwick tree over member lengths, number of members
+	private int [][] members;
+	private double [][] fenwick;
+	private int [] memberCount;
+	// number of incremental updates since Fenwick tree was rebuilt, to limit accumulating round off
+	private int [] updateCount;
+
+	@Override
+	public void initAndValidate() {
+		tree = treeInput.get();
+		blockCount = blockCountInput.get();
+		blockStartFraction = blockStartFractionInput.get();
+		blockEndFraction = blockEndFractionInput.get();
+		int n = tree.getNodeCount();
+		syncedColour = new int[n];
+		Arrays.fill(syncedColour, -1);
+		pending = new int[n];
+		isPending = new boolean[n];
+		pendingCount = 0;
+		slotColour = new int[2 * n];
+		Arrays.fill(slotColour, -1);
+		slotLength = new double[2 * n];
+		slotPos = new int[2 * n];
+		members = new int[n][];
+		fenwick = new double[n][];
+		memberCount = new int[n];
+		updateCount = new int[n];
+	}
+
+	/** synchronise with colouring colourAtBase and current block parameters **/
+	public void update(int [] colourAtBase) {
+		this.colourAtBase = colourAtBase;
+		// bottom segment of a branch has its colour, top segments of its children too
+		int n = colourAtBase.length;
+		int k = Arrays.mismatch(colourAtBase, syncedColour);
+		while (k >= 0) {
+			syncedColour[k] = colourAtBase[k];
+			markPending(k);
+			for (Node child : tree.getNode(k).getChildren()) {
+				markPending(child.getNr());
+			}
+			k++;
+			if (k == n) {
+				break;
+			}
+			int next = Arrays.mismatch(colourAtBase, k, n, syncedColour, k, n);
+			k = next < 0 ? -1 : k + next;
+		}
+		for (int i = 0; i < pendingCount; i++) {
+			int j = pending[i];
+			isPending[j] = false;
+			sync(j);
+		}
+		pendingCount = 0;
+	}
+
+	/** synchronise segments of branch above node k,
+	 * using the colouring of the last call to update(colourAtBase).
+	 * Operators call this for branches they change during a proposal. **/
+	public void update(int k) {
+		sync(k);
+		// the proposal may still be rejected, so check again at the next synchronisation
+		markPending(k);
+	}
+
+	private void markPending(int k) {
+		if (!isPending[k]) {
+			isPending[k] = true;
+			pending[pendingCount++] = k;
+		}
+	}
+
+	private void sync(int k) {
+		Node node = tree.getNode(k);
+		double length = node.getLength();
+		int bc = blockCount.getValue(k);
+		if (bc == -1) {
+			setSlot(2 * k, colourAtBase[k], length);
+			setSlot(2 * k + 1, node.isRoot() ? -1 : colourAtBase[node.getParent().getNr()], 0);
+		} else {
+			setSlot(2 * k, colourAtBase[k], length * blockStartFraction.getValue(k));
+			setSlot(2 * k + 1, node.isRoot() ? -1 : colourAtBase[node.getParent().getNr()], length * (1.0 - blockEndFraction.getValue(k)));
+		}
+	}
+
+	@Override
+	protected boolean requiresRecalculation() {
+		// remember branches that changed, for the next synchronisation.
+		// Values of rejected proposals are restored, but the same dirty flags mark them.
+		boolean treeIsDirty = tree.somethingIsDirty();
+		boolean blocksAreDirty = blockCount.somethingIsDirty() || blockStartFraction.somethingIsDirty() || blockEndFraction.somethingIsDirty();
+		if (treeIsDirty || blocksAreDirty) {
+			for (int k = 0; k < isPending.length; k++) {
+				if ((treeIsDirty && tree.getNode(k).isDirty() != Tree.IS_CLEAN) ||
+						(blocksAreDirty && (blockCount.isDirty(k) || blockStartFraction.isDirty(k) || blockEndFraction.isDirty(k)))) {
+					markPending(k);
+				}
+			}
+		}
+		return false;
+	}
+
+	/** total length of segments with given colour **/
+	public double getLength(int colour) {
+		double [] f = fenwick[colour];
+		if (f == null) {
+			return 0;
+		}
+		double sum = 0;
+		for (int i = memberCount[colour]; i > 0; i -= i & -i) {
+			sum += f[i];
+		}
+		return sum;
+	}
+
+	/**
+	 * find segment containing position r when segments of colour are laid out consecutively
+	 * @return slot number, with offset[0] set to the position of r within the segment
+	 */
+	public int find(int colour, double r, double [] offset) {
+		double [] f = fenwick[colour];
+		int count = memberCount[colour];
+		if (count == 0) {
+			throw new RuntimeException("Programmer error: no segments of colour " + colour);
+		}
+		int pos = 0;
+		for (int step = Integer.highestOneBit(f.length - 1); step > 0; step >>= 1) {
+			if (pos + step <= count && f[pos + step] <= r) {
+				pos += step;
+				r -= f[pos];
+			}
+		}
+		if (pos >= count) {
+			// r is beyond total length due to round off: use last non-empty segment
+			pos = count - 1;
+			while (pos > 0 && slotLength[members[colour][pos]] <= 0) {
+				pos--;
+			}
+			r = slotLength[members[colour][pos]];
+		}
+		offset[0] = r;
+		return members[colour][pos];
+	}
+
+	/** whether slot is at the top of a branch (otherwise it is at the bottom) **/
+	public static boolean isTop(int slot) {
+		return slot % 2 == 1;
+	}
+
+	/** node number of branch containing slot **/
+	public static int nodeNr(int slot) {
+		return slot / 2;
+	}
+
+	private void setSlot(int s, int colour, double length) {
+		int oldColour = slotColour[s];
+		if (oldColour == colour) {
+			if (colour >= 0 && length != slotLength[s]) {
+				double delta = length - slotLength[s];
+				slotLength[s] = length;
+				add(colour, slotPos[s], delta);
+				checkRebuild(colour);
+			}
+			return;
+		}
+		if (oldColour >= 0) {
+			remove(oldColour, s);
+			checkRebuild(oldColour);
+		}
+		slotColour[s] = colour;
+		slotLength[s] = length;
+		if (colour >= 0) {
+			append(colour, s);
+			checkRebuild(colour);
+		}
+	}
+
+	private void append(int colour, int s) {
+		int count = memberCount[colour];
+		if (members[colour] == null) {
+			members[colour] = new int[4];
+			fenwick[colour] = new double[5];
+		} else if (count == members[colour].length) {
+			members[colour] = Arrays.copyOf(members[colour], count * 2);
+			fenwick[colour] = new double[count * 2 + 1];
+			memberCount[colour] = count + 1;
+			members[colour][count] = s;
+			slotPos[s] = count;
+			rebuild(colour);
+			return;
+		}
+		members[colour][count] = s;
+		slotPos[s] = count;
+		memberCount[colour] = count + 1;
+		add(colour, count, slotLength[s]);
+	}
+
+	// remove slot s by moving last member of colour into its place
+	private void remove(int colour, int s) {
+		int pos = slotPos[s];
+		int last = memberCount[colour] - 1;
+		int lastSlot = members[colour][last];
+		if (pos != last) {
+			add(colour, pos, slotLength[lastSlot] - slotLength[s]);
+			members[colour][pos] = lastSlot;
+			slotPos[lastSlot] = pos;
+		}
+		add(colour, last, -slotLength[lastSlot]);
+		memberCount[colour] = last;
+	}
+
+	// add delta to length of member at (0-based) position pos
+	private void add(int colour, int pos, double delta) {
+		updateCount[colour]++;
+		double [] f = fenwick[colour];
+		for (int i = pos + 1; i < f.length; i += i & -i) {
+			f[i] += delta;
+		}
+	}
+
+	private void checkRebuild(int colour) {
+		if (updateCount[colour] > REBUILD_INTERVAL) {
+			rebuild(colour);
+		}
+	}
+
+	private void rebuild(int colour) {
+		double [] f = fenwick[colour];
+		Arrays.fill(f, 0);
+		int count = memberCount[colour];
+		for (int i = 1; i < f.length; i++) {
+			if (i <= count) {
+				f[i] += slotLength[members[colour][i - 1]];
+			}
+			int j = i + (i & -i);
+			if (j < f.length) {
+				f[j] += f[i];
+			}
+		}
+		updateCount[colour] = 0;
+	}
+}
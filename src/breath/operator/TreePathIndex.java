@@ -0,0 +1,292 @@
+package breath.operator;
+
+import java.util.Arrays;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.TreeInterface;
+import beast.base.inference.CalculationNode;
+import beast.base.inference.parameter.IntegerParameter;
+
+@Description("Index for paths between nodes in a tree, answering lowest common ancestor, "
+		+ "path length and number of eligible infections on a path in O(log n)")
+public class TreePathIndex extends CalculationNode {
+    final public Input<TreeInterface> treeInput = new Input<>("tree", "tree over which paths are indexed", Validate.REQUIRED);
+    final public Input<IntegerParameter> blockCountInput = new Input<>("blockcount", "number of transitions inside a block", Validate.REQUIRED);
+
+    private TreeInterface tree;
+    private IntegerParameter blockCount;
+    private int nodeCount;
+
+    // topology as of last rebuild
+    private int [] parentNr;
+    private int [] depth;
+    // Euler tour with first occurrence of each node and sparse table over depths for LCA queries
+    private int [] eulerNode;
+    private int [] first;
+    private int [][] sparse;
+    // binary lifting: up[b][v] is the 2^b-th ancestor of v (or the root)
+    private int [][] up;
+    // pre-order interval [tin, tout] of subtree of each node
+    private int [] tin, tout;
+    // Fenwick tree for range update/point query of number of eligible infections
+    // summed over a node and its ancestors
+    private int [] fenwick;
+    // eligible infections per branch: 0 for blockcount -1, 1 for blockcount 0, 2 for blockcount > 0
+    private int [] weight;
+    // branches changed by operators during a proposal, which are resynchronised with
+    // blockcount at every query until the proposal is accepted or restored, since
+    // a proposal returning -infinity is rejected without restoring calculation nodes
+    private int [] pending;
+    private boolean [] isPending;
+    private int pendingCount;
+
+    private boolean needsRebuild = true;
+    private boolean topologyChanged = false;
+
+	@Override
+	public void initAndValidate() {
+		tree = treeInput.get();
+		blockCount = blockCountInput.get();
+		nodeCount = tree.getNodeCount();
+		parentNr = new int[nodeCount];
+		depth = new int[nodeCount];
+		eulerNode = new int[2 * nodeCount - 1];
+		first = new int[nodeCount];
+		int levels = 32 - Integer.numberOfLeadingZeros(2 * nodeCount - 1);
+		sparse = new int[levels][2 * nodeCount - 1];
+		up = new int[32 - Integer.numberOfLeadingZeros(nodeCount)][nodeCount];
+		tin = new int[nodeCount];
+		tout = new int[nodeCount];
+		fenwick = new int[nodeCount + 1];
+		weight = new int[nodeCount];
+		pending = new int[nodeCount];
+		isPending = new boolean[nodeCount];
+		pendingCount = 0;
+		needsRebuild = true;
+	}
+
+	/** lowest common ancestor of nodes with numbers i and j **/
+	public int getMRCA(int i, int j) {
+		checkRebuild();
+		int a = first[i], b = first[j];
+		if (a > b) {
+			int tmp = a; a = b; b = tmp;
+		}
+		int level = 31 - Integer.numberOfLeadingZeros(b - a + 1);
+		int x = sparse[level][a];
+		int y = sparse[level][b - (1 << level) + 1];
+		return eulerNode[depth[eulerNode[x]] <= depth[eulerNode[y]] ? x : y];
+	}
+
+	/** sum of branch lengths on path between node i and its ancestor mrca,
+	 * excluding the branch above mrca **/
+	public double getPathLength(int i, int mrca) {
+		return tree.getNode(mrca).getHeight() - tree.getNode(i).getHeight();
+	}
+
+	/** number of eligible infections on branches between node i and its ancestor mrca,
+	 * excluding the branch above mrca **/
+	public int getEligibleInfectionCount(int i, int mrca) {
+		checkRebuild();
+		return prefix(tin[i]) - prefix(tin[mrca]);
+	}
+
+	/** find node on path from node i up to (but excluding) ancestor mrca
+	 * that contains the k-th eligible infection counting from node i upwards **/
+	public int findInfection(int i, int mrca, int k) {
+		checkRebuild();
+		// highest node v below mrca with at least sumI - k eligible infections over v and its ancestors
+		int target = prefix(tin[i]) - k;
+		int v = i;
+		for (int b = up.length - 1; b >= 0; b--) {
+			int a = up[b][v];
+			if (depth[a] > depth[mrca] && prefix(tin[a]) >= target) {
+				v = a;
+			}
+		}
+		return v;
+	}
+
+	/** find node on path from node i up to (but excluding) ancestor mrca
+	 * with branch containing height h **/
+	public int findHeight(int i, int mrca, double h) {
+		checkRebuild();
+		int v = i;
+		for (int b = up.length - 1; b >= 0; b--) {
+			int a = up[b][v];
+			if (depth[a] > depth[mrca] && tree.getNode(a).getHeight() <= h) {
+				v = a;
+			}
+		}
+		return v;
+	}
+
+	/** synchronise number of eligible infections of branch above node i
+	 * with its current block count, e.g. after an operator changed it **/
+	public void update(int i) {
+		sync(i);
+		// the proposal may still be rejected, so check again at the next query
+		if (!isPending[i]) {
+			isPending[i] = true;
+			pending[pendingCount++] = i;
+		}
+	}
+
+	private void sync(int i) {
+		if (needsRebuild) {
+			return;
+		}
+		int bc = blockCount.getValue(i);
+		int w = bc < 0 ? 0 : (bc == 0 ? 1 : 2);
+		if (w != weight[i]) {
+			add(tin[i], w - weight[i]);
+			add(tout[i] + 1, weight[i] - w);
+			weight[i] = w;
+		}
+	}
+
+	private void checkRebuild() {
+		if (needsRebuild) {
+			rebuild();
+		}
+		syncPending();
+	}
+
+	private void syncPending() {
+		for (int k = 0; k < pendingCount; k++) {
+			sync(pending[k]);
+		}
+	}
+
+	private void clearPending() {
+		syncPending();
+		for (int k = 0; k < pendingCount; k++) {
+			isPending[pending[k]] = false;
+		}
+		pendingCount = 0;
+	}
+
+	private void rebuild() {
+		Node root = tree.getRoot();
+		int [] counter = new int[2];
+		depth[root.getNr()] = 0;
+		parentNr[root.getNr()] = root.getNr();
+		traverse(root, counter);
+
+		// sparse table over Euler tour
+		int m = eulerNode.length;
+		for (int x = 0; x < m; x++) {
+			sparse[0][x] = x;
+		}
+		for (int level = 1; level < sparse.length; level++) {
+			int half = 1 << (level - 1);
+			for (int x = 0; x + (1 << level) <= m; x++) {
+				int a = sparse[level - 1][x];
+				int b = sparse[level - 1][x + half];
+				sparse[level][x] = depth[eulerNode[a]] <= depth[eulerNode[b]] ? a : b;
+			}
+		}
+
+		// binary lifting
+		System.arraycopy(parentNr, 0, up[0], 0, nodeCount);
+		for (int b = 1; b < up.length; b++) {
+			for (int v = 0; v < nodeCount; v++) {
+				up[b][v] = up[b - 1][up[b - 1][v]];
+			}
+		}
+
+		// eligible infections
+		Arrays.fill(fenwick, 0);
+		Arrays.fill(weight, 0);
+		needsRebuild = false;
+		for (int i = 0; i < nodeCount; i++) {
+			sync(i);
+		}
+	}
+
+	// counter[0] = position in Euler tour, counter[1] = pre-order number
+	private void traverse(Node node, int [] counter) {
+		int nr = node.getNr();
+		first[nr] = counter[0];
+		eulerNode[counter[0]++] = nr;
+		tin[nr] = counter[1]++;
+		for (Node child : node.getChildren()) {
+			int childNr = child.getNr();
+			parentNr[childNr] = nr;
+			depth[childNr] = depth[nr] + 1;
+			traverse(child, counter);
+			eulerNode[counter[0]++] = nr;
+		}
+		tout[nr] = counter[1] - 1;
+	}
+
+	// Fenwick tree over pre-order positions, 0-based
+	private void add(int pos, int delta) {
+		for (int i = pos + 1; i < fenwick.length; i += i & -i) {
+			fenwick[i] += delta;
+		}
+	}
+
+	private int prefix(int pos) {
+		int sum = 0;
+		for (int i = pos + 1; i > 0; i -= i & -i) {
+			sum += fenwick[i];
+		}
+		return sum;
+	}
+
+	private boolean topologyChanged() {
+		for (int i = 0; i < nodeCount; i++) {
+			Node node = tree.getNode(i);
+			int p = node.isRoot() ? i : node.getParent().getNr();
+			if (p != parentNr[i]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void updateFromDirtyFlags() {
+		if (needsRebuild || !blockCount.somethingIsDirty()) {
+			return;
+		}
+		for (int i = 0; i < nodeCount; i++) {
+			if (blockCount.isDirty(i)) {
+				sync(i);
+			}
+		}
+	}
+
+	@Override
+	protected boolean requiresRecalculation() {
+		// heights are read straight from the tree, so only topology changes require a rebuild
+		if (!needsRebuild && tree.somethingIsDirty() && topologyChanged()) {
+			needsRebuild = true;
+			topologyChanged = true;
+		}
+		updateFromDirtyFlags();
+		return false;
+	}
+
+	@Override
+	protected void accept() {
+		clearPending();
+		topologyChanged = false;
+		super.accept();
+	}
+
+	@Override
+	protected void restore() {
+		if (topologyChanged) {
+			needsRebuild = true;
+			topologyChanged = false;
+		}
+		// block counts are restored by now, and dirty flags still mark the changed entries
+		updateFromDirtyFlags();
+		clearPending();
+		super.restore();
+	}
+}
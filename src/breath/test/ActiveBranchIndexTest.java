@@ -0,0 +1,96 @@
+package breath.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.util.Randomizer;
+import breath.operator.ActiveBranchIndex;
+
+public class ActiveBranchIndexTest {
+
+	@Test
+	public void testAgainstBruteForce() {
+		Randomizer.setSeed(127);
+		for (int rep = 0; rep < 20; rep++) {
+			int n = 1 + Randomizer.nextInt(40);
+			IntegerParameter blockCount = new IntegerParameter();
+			blockCount.initByName("dimension", n, "value", "-1");
+			for (int i = 0; i < n; i++) {
+				blockCount.setValue(i, Randomizer.nextInt(4) - 1);
+			}
+			ActiveBranchIndex index = new ActiveBranchIndex();
+			index.initByName("blockcount", blockCount);
+			blockCount.setEverythingDirty(false);
+			check(blockCount, index);
+
+			for (int step = 0; step < 100; step++) {
+				int changes = 1 + Randomizer.nextInt(3);
+				for (int j = 0; j < changes; j++) {
+					int k = Randomizer.nextInt(n);
+					blockCount.setValue(k, Randomizer.nextInt(4) - 1);
+					if (Randomizer.nextBoolean()) {
+						// as operators do during a proposal
+						index.update(k);
+					}
+				}
+				// as at the end of a proposal, from dirty flags
+				index.update();
+				blockCount.setEverythingDirty(false);
+				check(blockCount, index);
+			}
+		}
+	}
+
+	// compare counts with counting over all branches, and check every branch
+	// that can be selected is selected, and only those
+	private void check(IntegerParameter blockCount, ActiveBranchIndex index) {
+		int n = blockCount.getDimension();
+		int active = 0, blocks = 0;
+		for (int i = 0; i < n; i++) {
+			if (blockCount.getValue(i) >= 0) {
+				active++;
+			}
+			if (blockCount.getValue(i) > 0) {
+				blocks++;
+			}
+		}
+		assertEquals(active, index.getActiveBranchCount());
+		assertEquals(blocks, index.getBlockBranchCount());
+		assertEquals(active + blocks, index.getEligibleInfectionCount());
+
+		boolean [] selected = new boolean[n];
+		boolean [] selectedBlock = new boolean[n];
+		boolean [] topOfBlock = new boolean[1];
+		for (int j = 0; j < 50 * n; j++) {
+			int i = index.randomlySelectActiveBranch();
+			if (active == 0) {
+				assertEquals(-1, i);
+			} else {
+				assertTrue(blockCount.getValue(i) >= 0);
+				selected[i] = true;
+			}
+			i = index.randomlySelectBlockBranch();
+			if (blocks == 0) {
+				assertEquals(-1, i);
+			} else {
+				assertTrue(blockCount.getValue(i) > 0);
+				selectedBlock[i] = true;
+			}
+			i = index.randomlySelectInfection(topOfBlock);
+			if (active == 0) {
+				assertEquals(-1, i);
+			} else {
+				assertTrue(blockCount.getValue(i) >= 0);
+				// bottom of block only exists for blockcount > 0
+				assertTrue(topOfBlock[0] || blockCount.getValue(i) > 0);
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			assertEquals(blockCount.getValue(i) >= 0, selected[i]);
+			assertEquals(blockCount.getValue(i) > 0, selectedBlock[i]);
+		}
+	}
+}
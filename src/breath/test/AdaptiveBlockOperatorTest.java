@@ -0,0 +1,70 @@
+package breath.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import breath.operator.BlockOperator;
+
+public class AdaptiveBlockOperatorTest {
+
+	private BlockOperator newOperator(TreeParser tree, IntegerParameter blockCount, RealParameter blockStart, RealParameter blockEnd) {
+		BlockOperator operator = new BlockOperator();
+		operator.initByName("tree", tree, "blockcount", blockCount, "blockstart", blockStart, "blockend", blockEnd,
+				"adaptive", true, "adaptationLength", 50L, "weight", 1.0);
+		operator.setID("BlockOperator");
+		return operator;
+	}
+
+	private String store(BlockOperator operator) {
+		StringWriter out = new StringWriter();
+		PrintWriter writer = new PrintWriter(out);
+		operator.storeToFile(writer);
+		writer.flush();
+		return out.toString();
+	}
+
+	// window sizes and adaptation progress survive storing and restoring the operator state,
+	// so tuning does not start over when a run is resumed
+	@Test
+	public void testResumeKeepsAdaptation() throws Exception {
+		Randomizer.setSeed(127);
+		TreeParser tree = new TreeParser("((A:1,B:1):1,C:2);");
+		IntegerParameter blockCount = new IntegerParameter(); blockCount.initByName("dimension", 5, "value", "0 1 -1 0 -1");
+		RealParameter blockStart = new RealParameter(); blockStart.initByName("dimension", 5, "value", "0.25 0.25 0.5 0.5 0.5");
+		RealParameter blockEnd = new RealParameter(); blockEnd.initByName("dimension", 5, "value", "0.25 0.75 0.5 0.5 0.5");
+
+		BlockOperator operator = newOperator(tree, blockCount, blockStart, blockEnd);
+		for (int i = 0; i < 20; i++) {
+			operator.proposal();
+			operator.optimize(-0.5);
+		}
+		String halfway = store(operator);
+		BlockOperator resumed = newOperator(tree, blockCount, blockStart, blockEnd);
+		resumed.restoreFromFile(new JSONObject(halfway));
+		assertEquals(halfway, store(resumed));
+
+		// once adaptation is over, restored window sizes do not change anymore
+		for (int i = 0; i < 200; i++) {
+			operator.proposal();
+			operator.optimize(-0.5);
+		}
+		String done = store(operator);
+		resumed = newOperator(tree, blockCount, blockStart, blockEnd);
+		resumed.restoreFromFile(new JSONObject(done));
+		for (int i = 0; i < 20; i++) {
+			resumed.proposal();
+			resumed.optimize(-0.5);
+		}
+		assertEquals(new JSONObject(done).getJSONArray("logWindowSize").toString(),
+				new JSONObject(store(resumed)).getJSONArray("logWindowSize").toString());
+	}
+}
@@ -0,0 +1,57 @@
+package breath.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.util.Randomizer;
+import transmission2.AddOrDeleteInfectionOperator;
+import transmission2.TransmissionSet;
+import transmission2.VariableIntegerParameter;
+import transmission2.VariableRealParameter;
+
+public class AddOrDeleteInfectionOperatorTest {
+
+	// a delete removes one of the eligible transmissions, never the only
+	// transmission between two sampled hosts
+	@Test
+	public void testDeleteRemovesEligibleTransmission() {
+		Randomizer.setSeed(127);
+		TreeParser tree = new TreeParser("((A:1,B:1):1,C:2);");
+		Node a = tree.getNode(0);
+		int ab = a.getParent().getNr();
+		int deletes = 0;
+		for (int rep = 0; rep < 100; rep++) {
+			// the transmission above A separates A and B, the two above (A,B) are eligible
+			VariableIntegerParameter nodeNr = new VariableIntegerParameter();
+			nodeNr.initByName("value", ab + " " + a.getNr() + " " + ab);
+			VariableRealParameter branchFraction = new VariableRealParameter();
+			branchFraction.initByName("value", "0.25 0.5 0.75");
+			TransmissionSet transmissions = new TransmissionSet();
+			transmissions.initByName("nodeNr", nodeNr, "branchFraction", branchFraction, "tree", tree);
+			AddOrDeleteInfectionOperator operator = new AddOrDeleteInfectionOperator();
+			operator.initByName("transmissions", transmissions, "tree", tree, "weight", 1.0);
+
+			operator.proposal();
+			if (nodeNr.getDimension() == 2) {
+				deletes++;
+				int onA = nodeNr.getValue(0) == a.getNr() ? 0 : 1;
+				assertEquals(a.getNr(), (int) nodeNr.getValue(onA));
+				assertEquals(0.5, branchFraction.getValue(onA), 0.0);
+				assertEquals(ab, (int) nodeNr.getValue(1 - onA));
+				double f = branchFraction.getValue(1 - onA);
+				assertTrue(f == 0.25 || f == 0.75);
+
+				TransmissionSet check = new TransmissionSet();
+				check.initByName("nodeNr", nodeNr, "branchFraction", branchFraction, "tree", tree);
+				assertTrue(check.getColour(new int[tree.getNodeCount()]));
+			} else {
+				assertEquals(4, nodeNr.getDimension());
+			}
+		}
+		assertTrue(deletes > 0);
+	}
+}
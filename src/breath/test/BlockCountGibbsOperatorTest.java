@@ -0,0 +1,107 @@
+package breath.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.evolution.tree.TreeParser;
+import beast.base.evolution.tree.coalescent.ConstantPopulation;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import breath.distribution.GammaHazardFunction;
+import breath.distribution.TransmissionTreeLikelihood;
+import breath.operator.BlockCountGibbsOperator;
+
+public class BlockCountGibbsOperatorTest {
+
+	// branch of B is the only one with a block
+	private static final int BLOCK_BRANCH = 1;
+
+	private IntegerParameter blockCount;
+	private RealParameter blockStart;
+	private RealParameter blockEnd;
+	private TransmissionTreeLikelihood likelihood;
+
+	private void setUp() {
+		TreeParser tree = new TreeParser("((A:1,B:1):1,C:2);");
+		blockCount = new IntegerParameter(); blockCount.initByName("dimension", 5, "value", "0 2 -1 0 -1", "lower", -1, "upper", 1000);
+		blockStart = new RealParameter(); blockStart.initByName("dimension", 4, "value", "0.5 0.2 0.5 0.5", "lower", 0.0, "upper", 1.0);
+		blockEnd = new RealParameter(); blockEnd.initByName("dimension", 4, "value", "0.5 0.8 0.5 0.5", "lower", 0.0, "upper", 1.0);
+
+		ConstantPopulation popFun = new ConstantPopulation();
+		popFun.initByName("popSize", "0.1");
+		GammaHazardFunction transmissionHazard = new GammaHazardFunction();
+		transmissionHazard.initByName("shape", "2.5", "rate", "10.0", "C", "1.5");
+		GammaHazardFunction sampleHazard = new GammaHazardFunction();
+		sampleHazard.initByName("shape", "2.0", "rate", "5.0", "C", "0.75");
+
+		likelihood = new TransmissionTreeLikelihood();
+		likelihood.initByName("tree", tree,
+				"blockstart", blockStart,
+				"blockend", blockEnd,
+				"blockcount", blockCount,
+				"populationModel", popFun,
+				"endTime", new RealParameter("0.0"),
+				"samplingHazard", sampleHazard,
+				"transmissionHazard", transmissionHazard);
+	}
+
+	private BlockCountGibbsOperator newOperator(int maxCount) {
+		BlockCountGibbsOperator operator = new BlockCountGibbsOperator();
+		operator.initByName("blockstart", blockStart, "blockend", blockEnd, "blockcount", blockCount,
+				"likelihood", likelihood, "maxCount", maxCount, "weight", 1.0);
+		return operator;
+	}
+
+	// new block counts are drawn proportional to exp(logP), whatever the current count,
+	// and the Hastings ratio is logP[old] - logP[new]
+	@Test
+	public void testSamplesFullConditional() {
+		Randomizer.setSeed(127);
+		setUp();
+		double tblock = 1.0 * (0.8 - 0.2);
+		int draws = 20000;
+		for (int maxCount : new int[] {1, 3, 6}) {
+			BlockCountGibbsOperator operator = newOperator(maxCount);
+			double [] logP = new double[maxCount];
+			likelihood.calcLogBlockCountConditional(tblock, logP);
+			double [] p = new double[maxCount];
+			double sum = 0;
+			for (int n = 1; n <= maxCount; n++) {
+				p[n - 1] = Math.exp(logP[n - 1]);
+				sum += p[n - 1];
+			}
+
+			for (int oldCount = 1; oldCount <= Math.min(3, maxCount); oldCount++) {
+				int [] counts = new int[maxCount];
+				for (int j = 0; j < draws; j++) {
+					blockCount.setValue(BLOCK_BRANCH, oldCount);
+					blockCount.setEverythingDirty(false);
+					double logHR = operator.proposal();
+					int newCount = blockCount.getValue(BLOCK_BRANCH);
+					counts[newCount - 1]++;
+					assertEquals(logP[oldCount - 1] - logP[newCount - 1], logHR, 1e-12);
+				}
+				for (int n = 1; n <= maxCount; n++) {
+					double expected = p[n - 1] / sum;
+					// allow for 5 standard deviations of the sampled frequency
+					double tolerance = 5 * Math.sqrt(expected * (1 - expected) / draws) + 1e-12;
+					assertEquals(expected, counts[n - 1] / (double) draws, tolerance, "maxCount=" + maxCount + " old=" + oldCount + " n=" + n);
+				}
+			}
+		}
+	}
+
+	// counts above maxCount cannot be reached by the reverse move, so are left alone
+	@Test
+	public void testCountAboveMaxCountIsRejected() {
+		Randomizer.setSeed(127);
+		setUp();
+		BlockCountGibbsOperator operator = newOperator(3);
+		blockCount.setValue(BLOCK_BRANCH, 4);
+		blockCount.setEverythingDirty(false);
+		assertEquals(Double.NEGATIVE_INFINITY, operator.proposal());
+		assertEquals(4, blockCount.getValue(BLOCK_BRANCH));
+	}
+}
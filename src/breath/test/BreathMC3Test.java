@@ -0,0 +1,147 @@
+package breath.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.inference.Distribution;
+import beast.base.inference.Logger;
+import beast.base.inference.MCMC;
+import beast.base.inference.Operator;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import breath.inference.BreathMC3;
+
+public class BreathMC3Test {
+
+	// two well separated modes, so heated chains help the cold chain to move between them
+	public static class BimodalDensity extends Distribution {
+		final public Input<RealParameter> xInput = new Input<>("x", "parameter the density is over", Validate.REQUIRED);
+
+		@Override
+		public void initAndValidate() {
+		}
+
+		@Override
+		public double calculateLogP() {
+			logP = logDensity(xInput.get().getValue());
+			return logP;
+		}
+
+		static double logDensity(double x) {
+			return Math.log(Math.exp(-2 * (x - 3) * (x - 3)) + Math.exp(-2 * (x + 3) * (x + 3)));
+		}
+
+		@Override
+		public List<String> getArguments() {
+			return null;
+		}
+
+		@Override
+		public List<String> getConditions() {
+			return null;
+		}
+
+		@Override
+		public void sample(State state, Random random) {
+		}
+	}
+
+	public static class RandomWalk extends Operator {
+		final public Input<RealParameter> xInput = new Input<>("x", "parameter to operate on", Validate.REQUIRED);
+
+		@Override
+		public void initAndValidate() {
+		}
+
+		@Override
+		public double proposal() {
+			RealParameter x = xInput.get();
+			x.setValue(x.getValue() + 2 * Randomizer.nextDouble() - 1);
+			return 0;
+		}
+	}
+
+	// runs analysis with a fresh copy of the model, and returns the lines of its trace log
+	private List<String> run(boolean mc3, Object... inputs) throws Exception {
+		File log = File.createTempFile("BreathMC3Test", ".log");
+		File stateFile = File.createTempFile("BreathMC3Test", ".state");
+		log.delete();
+		stateFile.delete();
+
+		RealParameter x = new RealParameter("3.0");
+		x.setID("x");
+		BimodalDensity density = new BimodalDensity();
+		density.initByName("x", x);
+		density.setID("posterior");
+		RandomWalk operator = new RandomWalk();
+		operator.initByName("x", x, "weight", 1.0);
+		State state = new State();
+		state.initByName("stateNode", x);
+		Logger logger = new Logger();
+		logger.initByName("fileName", log.getPath(), "logEvery", 10, "log", density, "log", x);
+
+		MCMC analysis = mc3 ? new BreathMC3() : new MCMC();
+		List<Object> args = new ArrayList<>(List.of("chainLength", 2000L, "state", state, "distribution", density,
+				"operator", operator, "logger", logger));
+		args.addAll(List.of(inputs));
+		analysis.initByName(args.toArray());
+		analysis.setStateFile(stateFile.getPath(), false);
+		analysis.run();
+
+		List<String> lines = new ArrayList<>();
+		for (String line : Files.readAllLines(log.toPath())) {
+			if (!line.startsWith("#")) {
+				lines.add(line);
+			}
+		}
+		log.delete();
+		stateFile.delete();
+		new File(stateFile.getPath() + ".new").delete();
+		return lines;
+	}
+
+	// with one chain, BreathMC3 draws the same random numbers as MCMC, so logs the same trace
+	@Test
+	public void testSingleChainMatchesMCMC() throws Exception {
+		Randomizer.setSeed(127);
+		List<String> mcmc = run(false);
+		Randomizer.setSeed(127);
+		List<String> mc3 = run(true, "chains", 1, "resampleEvery", 7, "threads", 1);
+		assertEquals(202, mcmc.size());
+		assertEquals(mcmc, mc3);
+	}
+
+	// after temperatures are swapped, the logged state is that of the new cold chain:
+	// the logged posterior is the unheated density of the logged x.
+	// With threads=1 every chain has its own random number stream, so runs can be reproduced.
+	@Test
+	public void testSwapsKeepLoggedStateConsistent() throws Exception {
+		Randomizer.setSeed(127);
+		List<String> lines = run(true, "chains", 3, "deltaTemperature", 2.0, "resampleEvery", 5, "threads", 1);
+		assertEquals(202, lines.size());
+		boolean [] visited = new boolean[2];
+		for (String line : lines.subList(1, lines.size())) {
+			String [] strs = line.trim().split("\t");
+			double logP = Double.parseDouble(strs[1]);
+			double x = Double.parseDouble(strs[2]);
+			assertEquals(BimodalDensity.logDensity(x), logP, 1e-6 * Math.max(1, Math.abs(logP)));
+			visited[x < 0 ? 0 : 1] = true;
+		}
+		// heated chains let the cold chain visit both modes
+		assertTrue(visited[0] && visited[1]);
+
+		Randomizer.setSeed(127);
+		assertEquals(lines, run(true, "chains", 3, "deltaTemperature", 2.0, "resampleEvery", 5, "threads", 1));
+	}
+}
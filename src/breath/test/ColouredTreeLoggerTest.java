@@ -0,0 +1,148 @@
+package breath.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import breath.distribution.ColourProvider;
+import breath.logger.ColouredTreeLogger;
+
+public class ColouredTreeLoggerTest {
+
+	// random tree with leaves t0,...,t(n-1) where internal nodes have 2 to 4 children,
+	// numbered in the order they are created
+	static Tree randomMultifurcatingTree(int taxonCount) {
+		List<Node> clades = new ArrayList<>();
+		for (int i = 0; i < taxonCount; i++) {
+			Node leaf = new Node();
+			leaf.setNr(i);
+			leaf.setID("t" + i);
+			leaf.setHeight(Randomizer.nextDouble());
+			clades.add(leaf);
+		}
+		int nr = taxonCount;
+		while (clades.size() > 1) {
+			int childCount = Math.min(clades.size(), 2 + Randomizer.nextInt(3));
+			Node node = new Node();
+			node.setNr(nr++);
+			double h = 0;
+			for (int k = 0; k < childCount; k++) {
+				Node child = clades.remove(Randomizer.nextInt(clades.size()));
+				h = Math.max(h, child.getHeight());
+				node.addChild(child);
+			}
+			node.setHeight(h + 0.01 + Randomizer.nextDouble());
+			clades.add(node);
+		}
+		return new Tree(clades.get(0));
+	}
+
+	// output of the iterative writer equals that of the recursive one it replaced,
+	// including the order of children of multifurcating nodes
+	@Test
+	public void testAgainstRecursiveWriter() {
+		Randomizer.setSeed(127);
+		for (int rep = 0; rep < 200; rep++) {
+			Tree tree = randomMultifurcatingTree(2 + Randomizer.nextInt(20));
+			int n = tree.getNodeCount();
+			IntegerParameter blockCount = new IntegerParameter(); blockCount.initByName("dimension", n, "value", "-1");
+			RealParameter blockStart = new RealParameter(); blockStart.initByName("dimension", n, "value", "0.5");
+			RealParameter blockEnd = new RealParameter(); blockEnd.initByName("dimension", n, "value", "0.5");
+			for (int i = 0; i < n; i++) {
+				if (i != tree.getRoot().getNr()) {
+					blockCount.setValue(i, Randomizer.nextInt(4) - 1);
+					double start = Randomizer.nextDouble();
+					double end = Randomizer.nextDouble();
+					blockStart.setValue(i, Math.min(start, end));
+					blockEnd.setValue(i, blockCount.getValue(i) == 0 ? Math.min(start, end) : Math.max(start, end));
+				}
+			}
+			ColouredTreeLogger logger = new ColouredTreeLogger();
+			logger.initByName("tree", tree, "blockcount", blockCount, "blockstart", blockStart, "blockend", blockEnd);
+
+			int [] colourAtBase = new int[n];
+			ColourProvider.getColour(tree.getRoot(), blockCount, tree.getLeafNodeCount(), colourAtBase);
+			assertEquals(toSortedNewick(tree.getRoot(), new int[1], blockCount, blockStart, blockEnd, colourAtBase, false),
+					logger.toString());
+
+			// internal nodes are labelled when the logger has an ID
+			logger.setID("ColouredTreeLogger");
+			String expected = toSortedNewick(tree.getRoot(), new int[1], blockCount, blockStart, blockEnd, colourAtBase, true);
+			assertEquals(expected, logger.toString());
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			PrintStream out = new PrintStream(bytes);
+			logger.log(rep, out);
+			out.flush();
+			assertEquals("tree STATE_" + rep + " = " + expected + ";", bytes.toString());
+		}
+	}
+
+	// the recursive writer ColouredTreeLogger used before, as reference
+	private String toSortedNewick(Node node, int [] maxNodeInClade, IntegerParameter blockCount,
+			RealParameter blockStartFraction, RealParameter blockEndFraction, int [] colourAtBase, boolean hasID) {
+		StringBuilder buf = new StringBuilder();
+		if (!node.isLeaf()) {
+			String [] childStrings = new String[node.getChildCount()];
+			int [] maxNodeNrs = new int[node.getChildCount()];
+			Integer [] indices = new Integer[node.getChildCount()];
+			for (int i = 0; i < node.getChildCount(); i++) {
+				childStrings[i] = toSortedNewick(node.getChild(i), maxNodeInClade, blockCount, blockStartFraction, blockEndFraction, colourAtBase, hasID);
+				maxNodeNrs[i] = maxNodeInClade[0];
+				indices[i] = i;
+			}
+			Arrays.sort(indices, (i1, i2) -> Integer.compare(maxNodeNrs[i1], maxNodeNrs[i2]));
+			maxNodeInClade[0] = maxNodeNrs[maxNodeNrs.length - 1];
+
+			buf.append("(");
+			for (int i = 0; i < indices.length; i++) {
+				if (i > 0) {
+					buf.append(",");
+				}
+				buf.append(childStrings[indices[i]]);
+			}
+			buf.append(")");
+			if (hasID) {
+				buf.append(node.getNr() + 1);
+			}
+		} else {
+			maxNodeInClade[0] = node.getNr();
+			buf.append(node.getNr() + 1);
+		}
+
+		int i = node.getNr();
+		switch (blockCount.getValue(i)) {
+		case -1:
+			buf.append("[&colour=" + colourAtBase[i] + "]:");
+			buf.append(node.getLength());
+			return buf.toString();
+		case 0:
+			buf.append("[&colour=" + colourAtBase[i] + "]:");
+			buf.append(node.getLength() * blockStartFraction.getValue(i));
+			buf.append(")");
+			buf.append("[&colour=" + colourAtBase[node.getParent().getNr()] + "]:");
+			buf.append(node.getLength() * (1.0 - blockEndFraction.getValue(i)));
+			return "(" + buf.toString();
+		default:
+			buf.append("[&colour=" + colourAtBase[i] + "]:");
+			buf.append(node.getLength() * blockStartFraction.getValue(i));
+			buf.append(")");
+			buf.append("[&colour=-1,count=" + blockCount.getValue(i) + "]:");
+			buf.append(node.getLength() * (blockEndFraction.getValue(i) - blockStartFraction.getValue(i)));
+			buf.append(")");
+			buf.append("[&colour=" + colourAtBase[node.getParent().getNr()] + "]:");
+			buf.append(node.getLength() * (1.0 - blockEndFraction.getValue(i)));
+			return "((" + buf.toString();
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package breath.test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.util.Randomizer;
+import breath.distribution.ColourProvider;
+import breath.util.InfectorOfLogger;
+
+public class InfectorOfLoggerTest {
+
+	// single pass over the branches gives the same infectors and infection count
+	// as climbing from every node to the top of its colour
+	@Test
+	public void testAgainstClimbingLoop() {
+		Randomizer.setSeed(127);
+		for (int rep = 0; rep < 500; rep++) {
+			Tree tree = TreePathIndexTest.randomTree(2 + Randomizer.nextInt(30));
+			int n = tree.getNodeCount();
+			int [] parent = new int[n];
+			for (Node node : tree.getNodesAsArray()) {
+				parent[node.getNr()] = node.isRoot() ? -1 : node.getParent().getNr();
+			}
+			check(parent, tree.getLeafNodeCount());
+		}
+	}
+
+	// as above, with the root somewhere other than at the last node number
+	@Test
+	public void testRootNotLast() {
+		Randomizer.setSeed(127);
+		for (int rep = 0; rep < 500; rep++) {
+			Tree tree = TreePathIndexTest.randomTree(2 + Randomizer.nextInt(30));
+			int n = tree.getNodeCount();
+			int leafCount = tree.getLeafNodeCount();
+			// swap numbers of the root and another internal node
+			int other = leafCount + Randomizer.nextInt(n - leafCount);
+			int root = tree.getRoot().getNr();
+			int [] nr = new int[n];
+			for (int i = 0; i < n; i++) {
+				nr[i] = i == root ? other : (i == other ? root : i);
+			}
+			int [] parent = new int[n];
+			for (Node node : tree.getNodesAsArray()) {
+				parent[nr[node.getNr()]] = node.isRoot() ? -1 : nr[node.getParent().getNr()];
+			}
+			check(parent, leafCount);
+		}
+	}
+
+	private void check(int [] parent, int leafCount) {
+		int n = parent.length;
+		int [] blockCount = new int[n];
+		int [] transmissionCount = new int[n];
+		for (int i = 0; i < n; i++) {
+			blockCount[i] = parent[i] < 0 ? -1 : Randomizer.nextInt(4) - 1;
+			transmissionCount[i] = blockCount[i] + 1;
+		}
+		int [] colourAtBase = new int[n];
+		ColourProvider.getColour(parent, transmissionCount, leafCount, colourAtBase, new int[n]);
+
+		for (boolean directOnly : new boolean[] {false, true}) {
+			int [] expected = new int[leafCount];
+			int expectedCount = climb(parent, colourAtBase, blockCount, directOnly, expected);
+			int [] infectedBy = new int[leafCount];
+			assertEquals(expectedCount, InfectorOfLogger.calcInfectedBy(parent, colourAtBase, blockCount, directOnly, infectedBy));
+			assertArrayEquals(expected, infectedBy);
+		}
+	}
+
+	// the loop InfectorOfLogger used before, visiting all non-root nodes
+	// instead of assuming the root is the last node
+	private int climb(int [] parent, int [] colourAtBase, int [] blockCount, boolean directOnly, int [] infectedBy) {
+		int n = infectedBy.length;
+		Arrays.fill(infectedBy, -1);
+		int infectionCount = 0;
+		for (int i = 0; i < parent.length; i++) {
+			if (parent[i] < 0) {
+				continue;
+			}
+			int node = i;
+			int colour = colourAtBase[node];
+			while (parent[node] >= 0 && colourAtBase[parent[node]] == colour) {
+				node = parent[node];
+			}
+			int p = parent[node];
+			if (p >= 0 && colourAtBase[node] < n && colourAtBase[p] < n && colourAtBase[node] != colourAtBase[p]) {
+				if (!directOnly || blockCount[node] == 0) {
+					infectedBy[colourAtBase[node]] = colourAtBase[p];
+				}
+			}
+			infectionCount += blockCount[i] + 1;
+		}
+		return infectionCount;
+	}
+}
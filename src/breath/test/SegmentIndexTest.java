@@ -0,0 +1,124 @@
+package breath.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import breath.distribution.TransmissionColouring;
+import breath.operator.SegmentIndex;
+
+public class SegmentIndexTest {
+
+	@Test
+	public void testAgainstBruteForce() {
+		Randomizer.setSeed(127);
+		for (int rep = 0; rep < 20; rep++) {
+			TreeParser tree = TreePathIndexTest.randomTree(2 + Randomizer.nextInt(20));
+			int n = tree.getNodeCount();
+			int root = tree.getRoot().getNr();
+			// a transmission on every branch always gives a valid colouring
+			IntegerParameter blockCount = new IntegerParameter(); blockCount.initByName("dimension", n, "value", "0");
+			blockCount.setValue(root, -1);
+			RealParameter blockStart = new RealParameter(); blockStart.initByName("dimension", n, "value", "0.5");
+			RealParameter blockEnd = new RealParameter(); blockEnd.initByName("dimension", n, "value", "0.5");
+
+			TransmissionColouring colouring = new TransmissionColouring();
+			colouring.initByName("tree", tree, "blockcount", blockCount, "blockstart", blockStart, "blockend", blockEnd);
+			SegmentIndex index = new SegmentIndex();
+			index.initByName("tree", tree, "blockcount", blockCount, "blockstart", blockStart, "blockend", blockEnd);
+			int [] colourAtBase = colouring.getFreshColouring();
+			index.update(colourAtBase);
+			check(tree, blockCount, blockStart, blockEnd, colourAtBase, index);
+
+			for (int step = 0; step < 100; step++) {
+				int k = Randomizer.nextInt(n);
+				if (k == root) {
+					continue;
+				}
+				Node node = tree.getNode(k);
+				if (!node.isLeaf() && Randomizer.nextBoolean()) {
+					// move node height between its children and its parent
+					double lower = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+					node.setHeight(lower + Randomizer.nextDouble() * (node.getParent().getHeight() - lower));
+					index.update(k);
+					index.update(node.getLeft().getNr());
+					index.update(node.getRight().getNr());
+				} else {
+					int oldCount = blockCount.getValue(k);
+					double oldStart = blockStart.getValue(k);
+					double oldEnd = blockEnd.getValue(k);
+					setBlock(blockCount, blockStart, blockEnd, k);
+					colourAtBase = colouring.getFreshColouring();
+					if (!colouring.hasColouring()) {
+						// path between leafs without transmission: undo
+						blockCount.setValue(k, oldCount);
+						blockStart.setValue(k, oldStart);
+						blockEnd.setValue(k, oldEnd);
+						colourAtBase = colouring.getFreshColouring();
+						continue;
+					}
+					index.update(k);
+				}
+				index.update(colourAtBase);
+				check(tree, blockCount, blockStart, blockEnd, colourAtBase, index);
+			}
+		}
+	}
+
+	private void setBlock(IntegerParameter blockCount, RealParameter blockStart, RealParameter blockEnd, int k) {
+		int count = Randomizer.nextInt(4) - 1;
+		double start = Randomizer.nextDouble();
+		double end = count == 0 ? start : Randomizer.nextDouble();
+		blockCount.setValue(k, count);
+		blockStart.setValue(k, Math.min(start, end));
+		blockEnd.setValue(k, Math.max(start, end));
+	}
+
+	// compare total length per colour with summing over all branches,
+	// and check that positions are found in segments of the right colour
+	private void check(Tree tree, IntegerParameter blockCount, RealParameter blockStart, RealParameter blockEnd,
+			int [] colourAtBase, SegmentIndex index) {
+		int n = tree.getNodeCount();
+		double [] length = new double[n];
+		for (int k = 0; k < n; k++) {
+			Node node = tree.getNode(k);
+			length[colourAtBase[k]] += bottomLength(node, blockCount, blockStart);
+			if (!node.isRoot()) {
+				length[colourAtBase[node.getParent().getNr()]] += topLength(node, blockCount, blockEnd);
+			}
+		}
+		double [] offset = new double[1];
+		for (int c = 0; c < n; c++) {
+			assertEquals(length[c], index.getLength(c), 1e-10);
+			if (length[c] > 0) {
+				int slot = index.find(c, Randomizer.nextDouble() * length[c], offset);
+				Node node = tree.getNode(SegmentIndex.nodeNr(slot));
+				if (SegmentIndex.isTop(slot)) {
+					assertEquals(c, colourAtBase[node.getParent().getNr()]);
+					assertTrue(offset[0] <= topLength(node, blockCount, blockEnd) + 1e-10);
+				} else {
+					assertEquals(c, colourAtBase[node.getNr()]);
+					assertTrue(offset[0] <= bottomLength(node, blockCount, blockStart) + 1e-10);
+				}
+				assertTrue(offset[0] >= 0);
+			}
+		}
+	}
+
+	private double bottomLength(Node node, IntegerParameter blockCount, RealParameter blockStart) {
+		int k = node.getNr();
+		return blockCount.getValue(k) == -1 ? node.getLength() : node.getLength() * blockStart.getValue(k);
+	}
+
+	private double topLength(Node node, IntegerParameter blockCount, RealParameter blockEnd) {
+		int k = node.getNr();
+		return blockCount.getValue(k) == -1 ? 0 : node.getLength() * (1.0 - blockEnd.getValue(k));
+	}
+}
@@ -234,4 +234,58 @@ public class SimpleTransmissionLikelihoodTest3 {
         
         assertEquals( -11.24239, transmissionLikelihood, 1e-3);
 	}
+
+	@Test
+	public void testBranchContribution() {
+		TreeParser tree = new TreeParser("((A:1.0,B:1.2):1.0,(C:1.5,D:1.5):0.5);");
+		
+        ConstantPopulation cp = new ConstantPopulation();
+        cp.initByName("popSize", Double.toString(1.0));
+
+        RealParameter blockStart = new RealParameter(); blockStart.initByName("dimension", 7, "value", "0.5");
+        RealParameter blockEnd = new RealParameter(); blockEnd.initByName("dimension", 7, "value", "0.5");
+        IntegerParameter blockcount = new IntegerParameter(); blockcount.initByName("dimension", 7, "value", "0 0 0 0 0 0 -1");
+        
+        HazardFunction samplingHazard = new GammaHazardFunction();
+        samplingHazard.initByName("C", "0.9", "shape", "2.5", "rate", "10.0");
+        samplingHazard.setID("s");
+        
+        HazardFunction transmissionHazard = new GammaHazardFunction();
+        transmissionHazard.initByName("C", "1.5", "shape", "2.0", "rate", "10.0");
+        transmissionHazard.setID("tr");
+        
+        TransmissionTreeLikelihood coal = new TransmissionTreeLikelihood();
+        coal.initByName(
+        		"tree", tree,
+        		"populationModel", cp, 
+        		"blockstart", blockStart, 
+        		"blockend", blockEnd, 
+        		"blockcount", blockcount, 
+        		"endTime", "-0.9",
+        		"samplingHazard", samplingHazard,
+        		"transmissionHazard", transmissionHazard,
+        		"lambda", "1.0");
+
+        // changing block parameters of one branch changes its contribution as much as the full likelihood
+        int [] counts = {-1, 0, 2};
+        double [][] fractions = {{0.5, 0.5}, {0.3, 0.3}, {0.2, 0.8}};
+        for (int i = 0; i < 6; i++) {
+        	coal.calcColourAtBase();
+        	double logP0 = coal.calculateLogP();
+        	double contribution0 = coal.calculateBranchContribution(i);
+        	for (int j = 0; j < counts.length; j++) {
+        		blockcount.setValue(i, counts[j]);
+        		blockStart.setValue(i, fractions[j][0]);
+        		blockEnd.setValue(i, fractions[j][1]);
+        		coal.calcColourAtBase();
+        		double logP = coal.calculateLogP();
+        		if (!Double.isInfinite(logP)) {
+        			assertEquals(logP - logP0, coal.calculateBranchContribution(i) - contribution0, 1e-8);
+        		}
+        	}
+    		blockcount.setValue(i, 0);
+    		blockStart.setValue(i, 0.5);
+    		blockEnd.setValue(i, 0.5);
+        }
+	}
 }
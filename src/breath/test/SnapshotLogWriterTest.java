@@ -0,0 +1,104 @@
+package breath.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import beastfx.app.util.OutFile;
+import breath.logger.ColouredTreeLogger;
+import breath.util.SnapshotLogWriter;
+
+public class SnapshotLogWriterTest {
+
+	// writes count snapshots of a changing state, with a formatter that is slow now and then
+	// so that the MCMC thread gets a full ring ahead of the writer
+	private String write(boolean async, int count) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(bytes);
+		SnapshotLogWriter<int[]> writer = new SnapshotLogWriter<>(out, () -> new int[5], (s, o) -> {
+			if (s[0] % 37 == 0) {
+				try {
+					Thread.sleep(5);
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			o.println(Arrays.toString(s));
+		}, async);
+		int [] state = new int[5];
+		for (int i = 0; i < count; i++) {
+			state[0] = i;
+			state[1 + i % 4] += i;
+			int [] s = writer.take();
+			System.arraycopy(state, 0, s, 0, state.length);
+			writer.put(s);
+		}
+		writer.close();
+		out.flush();
+		return bytes.toString();
+	}
+
+	@Test
+	public void testAsyncAgreesWithSync() {
+		String sync = write(false, 1000);
+		assertEquals(1000, sync.split("\n").length);
+		for (int rep = 0; rep < 5; rep++) {
+			assertEquals(sync, write(true, 1000));
+		}
+	}
+
+	// a tree log written asynchronously is identical to one written on the MCMC thread
+	@Test
+	public void testColouredTreeLoggerAsyncAgreesWithSync() throws IOException {
+		assertEquals(logTrees(false), logTrees(true));
+	}
+
+	private String logTrees(boolean async) throws IOException {
+		Randomizer.setSeed(127);
+		Tree tree = TreePathIndexTest.randomTree(20);
+		int n = tree.getNodeCount();
+		int root = tree.getRoot().getNr();
+		IntegerParameter blockCount = new IntegerParameter(); blockCount.initByName("dimension", n, "value", "0");
+		blockCount.setValue(root, -1);
+		RealParameter blockStart = new RealParameter(); blockStart.initByName("dimension", n, "value", "0.25");
+		RealParameter blockEnd = new RealParameter(); blockEnd.initByName("dimension", n, "value", "0.75");
+
+		File file = File.createTempFile("SnapshotLogWriterTest", ".trees");
+		file.deleteOnExit();
+		// loggers do not overwrite existing files
+		file.delete();
+		ColouredTreeLogger logger = new ColouredTreeLogger();
+		logger.initByName("tree", tree, "blockcount", blockCount, "blockstart", blockStart, "blockend", blockEnd,
+				"out", new OutFile(file.getPath()), "async", async);
+		logger.init(null);
+		for (long sample = 0; sample < 200; sample++) {
+			// change blocks and node heights between samples, as the MCMC would
+			int k = Randomizer.nextInt(n);
+			if (k != root) {
+				blockCount.setValue(k, Randomizer.nextInt(3));
+				blockStart.setValue(k, Randomizer.nextDouble() * 0.5);
+				blockEnd.setValue(k, 0.5 + Randomizer.nextDouble() * 0.5);
+				Node node = tree.getNode(k);
+				if (!node.isLeaf()) {
+					double lower = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+					node.setHeight(lower + Randomizer.nextDouble() * (node.getParent().getHeight() - lower));
+				}
+			}
+			logger.log(sample * 1000, null);
+		}
+		logger.close(null);
+		return Files.readString(file.toPath());
+	}
+}
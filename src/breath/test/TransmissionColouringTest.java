@@ -0,0 +1,55 @@
+package breath.test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import breath.distribution.TransmissionColouring;
+
+public class TransmissionColouringTest {
+
+	// exposes the calculation node life cycle that MCMC drives
+	class TestColouring extends TransmissionColouring {
+		void proposalDone() {
+			requiresRecalculation();
+		}
+		void acceptProposal() {
+			accept();
+		}
+	}
+
+	@Test
+	public void testInvalidThenValidProposal() {
+		TreeParser tree = new TreeParser("((A:1,B:1):1,C:2);");
+		// A and B infected by C, so all nodes but A and B have the colour of C
+		IntegerParameter blockCount = new IntegerParameter(); blockCount.initByName("dimension", 5, "value", "0 0 -1 -1 -1");
+		RealParameter blockStart = new RealParameter(); blockStart.initByName("dimension", 5, "value", "0.5");
+		RealParameter blockEnd = new RealParameter(); blockEnd.initByName("dimension", 5, "value", "0.5");
+
+		TestColouring colouring = new TestColouring();
+		colouring.initByName("tree", tree, "blockcount", blockCount, "blockstart", blockStart, "blockend", blockEnd);
+		assertTrue(colouring.isValid());
+		int [] accepted = colouring.getColouring().clone();
+		colouring.acceptProposal();
+
+		// invalid proposal: no transmission between B and C, which operator rejects by returning -infinity
+		blockCount.setValue(1, -1);
+		assertFalse(colouring.isValidProposal());
+		colouring.rejectProposal();
+		// MCMC restores the state, but not the calculation nodes
+		blockCount.setValue(1, 0);
+		assertArrayEquals(accepted, colouring.getColouring());
+
+		// valid proposal: move infection of A
+		blockStart.setValue(0, 0.25);
+		blockEnd.setValue(0, 0.25);
+		colouring.proposalDone();
+		assertTrue(colouring.isValid());
+		assertArrayEquals(accepted, colouring.getColouring());
+	}
+}
@@ -0,0 +1,145 @@
+package breath.test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.evolution.tree.TreeParser;
+import beast.base.util.Randomizer;
+import breath.distribution.ColourProvider;
+import transmission2.TransmissionSet;
+import transmission2.VariableIntegerParameter;
+import transmission2.VariableRealParameter;
+
+public class TransmissionSetTest {
+
+	// exposes the calculation node life cycle that MCMC drives
+	class TestTransmissionSet extends TransmissionSet {
+		void storeState() {
+			store();
+		}
+		void proposalDone() {
+			requiresRecalculation();
+		}
+		void acceptProposal() {
+			accept();
+		}
+		void rejectProposal() {
+			restore();
+		}
+	}
+
+	@Test
+	public void testAgainstBruteForce() {
+		Randomizer.setSeed(127);
+		for (int rep = 0; rep < 10; rep++) {
+			TreeParser tree = TreePathIndexTest.randomTree(2 + Randomizer.nextInt(15));
+			int root = tree.getRoot().getNr();
+			int m = 1 + Randomizer.nextInt(10);
+			String nodes = "", fractions = "";
+			for (int i = 0; i < m; i++) {
+				nodes += randomBranch(tree.getNodeCount(), root) + " ";
+				fractions += Randomizer.nextDouble() + " ";
+			}
+			VariableIntegerParameter nodeNr = new VariableIntegerParameter();
+			nodeNr.initByName("value", nodes);
+			VariableRealParameter branchFraction = new VariableRealParameter();
+			branchFraction.initByName("value", fractions);
+			TestTransmissionSet set = new TestTransmissionSet();
+			set.initByName("nodeNr", nodeNr, "branchFraction", branchFraction, "tree", tree);
+			check(tree, nodeNr, branchFraction, set);
+
+			for (int step = 0; step < 200; step++) {
+				set.storeState();
+				Integer [] storedNodes = nodeNr.getValues();
+				Double [] storedFractions = branchFraction.getValues();
+
+				int changes = 1 + Randomizer.nextInt(3);
+				for (int j = 0; j < changes; j++) {
+					propose(tree.getNodeCount(), root, nodeNr, branchFraction);
+				}
+				set.proposalDone();
+				check(tree, nodeNr, branchFraction, set);
+				Integer [] proposedNodes = nodeNr.getValues();
+				Double [] proposedFractions = branchFraction.getValues();
+
+				if (Randomizer.nextBoolean()) {
+					set.acceptProposal();
+					assertArrayEquals(proposedNodes, nodeNr.getValues());
+					assertArrayEquals(proposedFractions, branchFraction.getValues());
+				} else {
+					// MCMC restores the state nodes that changed before the calculation nodes
+					if (nodeNr.somethingIsDirty()) {
+						nodeNr.restore();
+					}
+					if (branchFraction.somethingIsDirty()) {
+						branchFraction.restore();
+					}
+					set.rejectProposal();
+					assertArrayEquals(storedNodes, nodeNr.getValues());
+					assertArrayEquals(storedFractions, branchFraction.getValues());
+				}
+				nodeNr.setEverythingDirty(false);
+				branchFraction.setEverythingDirty(false);
+				check(tree, nodeNr, branchFraction, set);
+			}
+		}
+	}
+
+	private int randomBranch(int nodeCount, int root) {
+		int i = Randomizer.nextInt(nodeCount - 1);
+		return i >= root ? i + 1 : i;
+	}
+
+	// add, delete or move a transmission, as operators do
+	private void propose(int nodeCount, int root, VariableIntegerParameter nodeNr, VariableRealParameter branchFraction) {
+		int n = nodeNr.getDimension();
+		switch (Randomizer.nextInt(3)) {
+		case 0:
+			nodeNr.setDimension(n + 1);
+			branchFraction.setDimension(n + 1);
+			nodeNr.setValue(n, randomBranch(nodeCount, root));
+			branchFraction.setValue(n, Randomizer.nextDouble());
+			break;
+		case 1:
+			if (n > 1) {
+				int k = Randomizer.nextInt(n);
+				nodeNr.removeBySwapWithLast(k);
+				branchFraction.removeBySwapWithLast(k);
+			}
+			break;
+		default:
+			int k = Randomizer.nextInt(n);
+			if (Randomizer.nextBoolean()) {
+				nodeNr.setValue(k, randomBranch(nodeCount, root));
+			}
+			branchFraction.setValue(k, Randomizer.nextDouble());
+		}
+	}
+
+	// compare per node lists and colouring with those calculated from scratch
+	private void check(TreeParser tree, VariableIntegerParameter nodeNr, VariableRealParameter branchFraction, TransmissionSet set) {
+		int nodeCount = tree.getNodeCount();
+		int [] counts = new int[nodeCount];
+		double [][] expected = new double[nodeCount][nodeNr.getDimension()];
+		for (int k = 0; k < nodeNr.getDimension(); k++) {
+			int i = nodeNr.getValue(k);
+			expected[i][counts[i]++] = branchFraction.getValue(k);
+		}
+		for (int i = 0; i < nodeCount; i++) {
+			double [] fractions = Arrays.copyOf(expected[i], counts[i]);
+			Arrays.sort(fractions);
+			assertEquals(counts[i], set.infectionCount(i));
+			assertArrayEquals(fractions, Arrays.copyOf(set.getTransmissionForNode(i), counts[i]));
+		}
+
+		int [] colourAtBase = new int[nodeCount];
+		int [] expectedColour = new int[nodeCount];
+		boolean isValid = ColourProvider.getColour(tree.getRoot(), counts, tree.getLeafNodeCount(), expectedColour, new int[nodeCount]);
+		assertEquals(isValid, set.getColour(colourAtBase));
+		assertArrayEquals(expectedColour, colourAtBase);
+	}
+}
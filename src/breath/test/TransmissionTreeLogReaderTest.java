@@ -0,0 +1,359 @@
+package breath.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.evolution.TreeWithMetaDataLogger;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.Logger;
+import beast.base.inference.Logger.LogFileMode;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import beastfx.app.util.OutFile;
+import breath.logger.TransmissionStateLogger;
+import breath.util.TransmissionTreeLogReader;
+
+public class TransmissionTreeLogReaderTest {
+
+	// records what consumers see of every leaf and of the root
+	class Recorder implements TransmissionTreeLogReader.Consumer {
+		List<String> samples = new ArrayList<>();
+		List<Long> states = new ArrayList<>();
+
+		@Override
+		public void init(TransmissionTreeLogReader reader) {
+		}
+
+		@Override
+		public void process(TransmissionTreeLogReader reader) {
+			int n = reader.getLeafNodeCount();
+			int [] infectedBy = new int[n];
+			int [] directlyInfectedBy = new int[n];
+			reader.calcInfectedBy(infectedBy, false);
+			reader.calcInfectedBy(directlyInfectedBy, true);
+			StringBuilder b = new StringBuilder();
+			b.append(reader.getSampleNr()).append(' ');
+			b.append(reader.hasColouring()).append(' ');
+			b.append(Arrays.toString(infectedBy)).append(' ');
+			b.append(Arrays.toString(directlyInfectedBy)).append(' ');
+			for (int i = 0; i < n; i++) {
+				b.append(reader.getTree().getNode(i).getID()).append(':');
+				b.append(reader.getColourAtBase()[i]).append(':');
+				b.append(reader.getBlockCount()[i]).append(':');
+				b.append(reader.getBlockStart()[i]).append(':');
+				b.append(reader.getBlockEnd()[i]).append(':');
+				b.append(reader.getLength(i)).append(' ');
+			}
+			for (int i = 0; i < reader.getNodeCount(); i++) {
+				if (reader.getParent()[i] < 0) {
+					b.append("root ").append(reader.getBlockCount()[i]).append(' ').append(reader.getHeight()[i]);
+				}
+			}
+			samples.add(b.toString());
+			states.add(reader.getState());
+		}
+
+		@Override
+		public void done() {
+		}
+	}
+
+	@Test
+	public void testBinaryAndTextLogAgree() throws IOException {
+		TreeParser tree = new TreeParser("((A:1,B:1):1,(C:1.5,D:1.5):0.5);");
+		// root has a non-zero block count, which is not part of the transmission tree
+		IntegerParameter blockCount = new IntegerParameter(); blockCount.initByName("dimension", 7, "value", "0 1 -1 0 2 0 3");
+		blockCount.setID("blockcount");
+		RealParameter blockStart = new RealParameter(); blockStart.initByName("dimension", 7, "value", "0.25 0.5 0.5 0.125 0.25 0.5 0.75");
+		blockStart.setID("blockstart");
+		RealParameter blockEnd = new RealParameter(); blockEnd.initByName("dimension", 7, "value", "0.25 0.75 0.5 0.125 0.5 0.5 0.75");
+		blockEnd.setID("blockend");
+
+		File binaryFile = File.createTempFile("TransmissionTreeLogReaderTest", ".bin");
+		File textFile = File.createTempFile("TransmissionTreeLogReaderTest", ".trees");
+		binaryFile.deleteOnExit();
+		textFile.deleteOnExit();
+		// loggers do not overwrite existing files
+		binaryFile.delete();
+
+		TransmissionStateLogger binaryLogger = new TransmissionStateLogger();
+		binaryLogger.initByName("tree", tree, "blockcount", blockCount, "blockstart", blockStart, "blockend", blockEnd,
+				"out", new OutFile(binaryFile.getPath()));
+		TreeWithMetaDataLogger textLogger = new TreeWithMetaDataLogger();
+		textLogger.initByName("tree", tree, "metadata", blockStart, "metadata", blockEnd, "metadata", blockCount);
+
+		PrintStream text = new PrintStream(textFile);
+		binaryLogger.init(null);
+		textLogger.init(text);
+		for (long sample = 0; sample < 3; sample++) {
+			binaryLogger.log(sample, null);
+			textLogger.log(sample, text);
+			text.println();
+		}
+		binaryLogger.close(null);
+		textLogger.close(text);
+		text.close();
+
+		Recorder fromBinary = new Recorder();
+		new TransmissionTreeLogReader(binaryFile, 0, null).run(fromBinary);
+		Recorder fromText = new Recorder();
+		new TransmissionTreeLogReader(textFile, 0, null).run(fromText);
+
+		assertEquals(3, fromBinary.samples.size());
+		assertEquals(fromText.samples, fromBinary.samples);
+		assertEquals(true, fromBinary.samples.get(0).contains("root -1 "));
+	}
+
+	// text log of count trees with taxa in a translate block, logged every 1000 states,
+	// where topology, heights and blocks differ between trees
+	private File writeTextLog(int count) throws IOException {
+		File file = File.createTempFile("TransmissionTreeLogReaderTest", ".trees");
+		file.deleteOnExit();
+		new File(file.getPath() + ".idx").deleteOnExit();
+		PrintStream out = new PrintStream(file);
+		for (int i = 0; i < count; i++) {
+			TreeParser tree = new TreeParser(i % 2 == 0 ?
+					"((A:1,B:1):" + (1 + i / 10.0) + ",(C:1.5,D:1.5):" + (0.5 + i / 10.0) + ");" :
+					"((A:" + (2 + i / 10.0) + ",(B:1,C:1):" + (1 + i / 10.0) + "):0.5,D:" + (2.5 + i / 10.0) + ");");
+			IntegerParameter blockCount = new IntegerParameter(); blockCount.initByName("dimension", 7, "value", "0 1 -1 0 -1 0 -1");
+			blockCount.setID("blockcount");
+			blockCount.setValue(i % 6, i % 3);
+			RealParameter blockStart = new RealParameter(); blockStart.initByName("dimension", 7, "value", "0.25");
+			blockStart.setID("blockstart");
+			blockStart.setValue(i % 6, i / 100.0);
+			RealParameter blockEnd = new RealParameter(); blockEnd.initByName("dimension", 7, "value", "0.75");
+			blockEnd.setID("blockend");
+			TreeWithMetaDataLogger logger = new TreeWithMetaDataLogger();
+			logger.initByName("tree", tree, "metadata", blockStart, "metadata", blockEnd, "metadata", blockCount);
+			if (i == 0) {
+				logger.init(out);
+			}
+			logger.log(i * 1000L, out);
+			out.println();
+			if (i == count - 1) {
+				logger.close(out);
+			}
+		}
+		out.close();
+		return file;
+	}
+
+	// the indexed path (threads > 1 or thin > 1) hands consumers the same trees,
+	// node numbers, sample numbers and burn-in as the MemoryFriendlyTreeSet path
+	@Test
+	public void testIndexedAgreesWithSequential() throws IOException {
+		File file = writeTextLog(11);
+		for (int burnIn : new int[] {0, 10, 25, 50, 99}) {
+			Recorder sequential = new Recorder();
+			new TransmissionTreeLogReader(file, burnIn, null).run(sequential);
+			Recorder indexed = new Recorder();
+			new TransmissionTreeLogReader(file, burnIn, null, 3).run(indexed);
+			assertEquals(11 - burnIn * 11 / 100, sequential.samples.size());
+			assertEquals(sequential.samples, indexed.samples);
+
+			// the sequential path does not know state numbers, the indexed path takes them from the tree lines
+			for (int i = 0; i < indexed.states.size(); i++) {
+				assertEquals((burnIn * 11 / 100 + i) * 1000L, (long) indexed.states.get(i));
+			}
+
+			// thinning keeps every thin-th tree after burn-in
+			for (int thin = 2; thin <= 4; thin++) {
+				TransmissionTreeLogReader reader = new TransmissionTreeLogReader(file, burnIn, null);
+				reader.setThin(thin);
+				Recorder thinned = new Recorder();
+				reader.run(thinned);
+				assertEquals((sequential.samples.size() + thin - 1) / thin, thinned.samples.size());
+				for (int i = 0; i < thinned.samples.size(); i++) {
+					assertEquals(withoutSampleNr(sequential.samples.get(i * thin)), withoutSampleNr(thinned.samples.get(i)));
+					assertEquals((burnIn * 11 / 100 + i * thin) * 1000L, (long) thinned.states.get(i));
+				}
+			}
+		}
+	}
+
+	// tree lines crossing the boundary between memory mapped blocks are indexed like any other
+	@Test
+	public void testIndexAcrossBlockBoundaries() throws IOException {
+		File file = writeTextLog(5);
+		File indexFile = new File(file.getPath() + ".idx");
+		Recorder sequential = new Recorder();
+		new TransmissionTreeLogReader(file, 0, null).run(sequential);
+		for (long mapSize = 1; mapSize < 400; mapSize += 7) {
+			indexFile.delete();
+			TransmissionTreeLogReader reader = new TransmissionTreeLogReader(file, 0, null, 2);
+			reader.setMapSize(mapSize);
+			Recorder indexed = new Recorder();
+			reader.run(indexed);
+			assertEquals(sequential.samples, indexed.samples);
+			assertEquals(Arrays.asList(0L, 1000L, 2000L, 3000L, 4000L), indexed.states);
+		}
+	}
+
+	private Recorder runIndexed(File file, int thin) throws IOException {
+		TransmissionTreeLogReader reader = new TransmissionTreeLogReader(file, 0, null, 2);
+		reader.setThin(thin);
+		Recorder recorder = new Recorder();
+		reader.run(recorder);
+		return recorder;
+	}
+
+	// the index next to the log is not used once the log changed size or modification time
+	@Test
+	public void testStaleIndexIsRebuilt() throws IOException {
+		File file = writeTextLog(5);
+		File indexFile = new File(file.getPath() + ".idx");
+		indexFile.delete();
+		assertEquals(Arrays.asList(0L, 1000L, 2000L, 3000L, 4000L), runIndexed(file, 1).states);
+		assertTrue(indexFile.exists());
+
+		// same size, other modification time
+		String log = Files.readString(file.toPath());
+		long lastModified = file.lastModified();
+		Files.writeString(file.toPath(), log.replace("tree STATE_4000 ", "tree STATE_9000 "));
+		file.setLastModified(lastModified + 10000);
+		assertEquals(Arrays.asList(0L, 1000L, 2000L, 3000L, 9000L), runIndexed(file, 1).states);
+
+		// other size, same modification time
+		lastModified = file.lastModified();
+		Files.writeString(file.toPath(), log.replace("tree STATE_4000 ", "tree STATE_10000 "));
+		file.setLastModified(lastModified);
+		assertEquals(Arrays.asList(0L, 1000L, 2000L, 3000L, 10000L), runIndexed(file, 1).states);
+	}
+
+	// an index that cannot be read or does not fit the log is rebuilt
+	@Test
+	public void testCorruptIndexIsIgnored() throws IOException {
+		File file = writeTextLog(5);
+		File indexFile = new File(file.getPath() + ".idx");
+		Recorder sequential = new Recorder();
+		new TransmissionTreeLogReader(file, 0, null).run(sequential);
+
+		byte [] garbage = new byte[100];
+		Arrays.fill(garbage, (byte) 0x5a);
+		Files.write(indexFile.toPath(), garbage);
+		assertEquals(sequential.samples, runIndexed(file, 1).samples);
+
+		Files.write(indexFile.toPath(), new byte[0]);
+		assertEquals(sequential.samples, runIndexed(file, 1).samples);
+
+		// header matches the log, but the tree count is more than the file holds
+		writeIndex(indexFile, file, Integer.MAX_VALUE, new long[0]);
+		assertEquals(sequential.samples, runIndexed(file, 1).samples);
+
+		// header matches the log, but offsets point beyond its end
+		writeIndex(indexFile, file, 1, new long[] {0, file.length() + 10, file.length() + 20});
+		assertEquals(sequential.samples, runIndexed(file, 1).samples);
+
+		// truncated in the middle of an entry
+		writeIndex(indexFile, file, 5, new long[] {0, 10});
+		assertEquals(sequential.samples, runIndexed(file, 1).samples);
+	}
+
+	// version, size and modification time of the log, tree count, and then the given entries
+	private void writeIndex(File indexFile, File file, int count, long [] entries) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new FileOutputStream(indexFile))) {
+			out.writeInt(1);
+			out.writeLong(file.length());
+			out.writeLong(file.lastModified());
+			out.writeInt(count);
+			for (long entry : entries) {
+				out.writeLong(entry);
+			}
+		}
+	}
+
+	// thinning on a stored index selects the same trees as reading all trees and thinning afterwards
+	@Test
+	public void testThinWithStoredIndex() throws IOException {
+		File file = writeTextLog(10);
+		Recorder all = runIndexed(file, 1);
+		assertTrue(new File(file.getPath() + ".idx").exists());
+		for (int thin = 2; thin <= 11; thin++) {
+			Recorder thinned = runIndexed(file, thin);
+			assertEquals((all.samples.size() + thin - 1) / thin, thinned.samples.size());
+			for (int i = 0; i < thinned.samples.size(); i++) {
+				assertEquals(withoutSampleNr(all.samples.get(i * thin)), withoutSampleNr(thinned.samples.get(i)));
+				assertEquals(all.states.get(i * thin), thinned.states.get(i));
+			}
+		}
+	}
+
+	// sample numbers count delivered trees, so differ between thinned and unthinned runs
+	private String withoutSampleNr(String sample) {
+		return sample.substring(sample.indexOf(' ') + 1);
+	}
+
+	@Test
+	public void testTruncatedBinaryLog() throws IOException {
+		testTruncatedBinaryLog(".bin");
+		testTruncatedBinaryLog(".bin.gz");
+	}
+
+	// a run killed while writing leaves a partial last sample: it is ignored when reading,
+	// and removed when resuming so that appended samples line up
+	private void testTruncatedBinaryLog(String extension) throws IOException {
+		TreeParser tree = new TreeParser("((A:1,B:1):1,(C:1.5,D:1.5):0.5);");
+		IntegerParameter blockCount = new IntegerParameter(); blockCount.initByName("dimension", 7, "value", "0 1 -1 0 2 0 -1");
+		RealParameter blockStart = new RealParameter(); blockStart.initByName("dimension", 7, "value", "0.25 0.5 0.5 0.125 0.25 0.5 0.75");
+		RealParameter blockEnd = new RealParameter(); blockEnd.initByName("dimension", 7, "value", "0.25 0.75 0.5 0.125 0.5 0.5 0.75");
+		File file = File.createTempFile("TransmissionTreeLogReaderTest", extension);
+		file.deleteOnExit();
+		file.delete();
+
+		TransmissionStateLogger logger = new TransmissionStateLogger();
+		logger.initByName("tree", tree, "blockcount", blockCount, "blockstart", blockStart, "blockend", blockEnd,
+				"out", new OutFile(file.getPath()));
+		logger.init(null);
+		for (long sample = 0; sample < 20; sample++) {
+			// make every sample different
+			blockStart.setValue(0, sample / 100.0);
+			logger.log(sample, null);
+		}
+		logger.close(null);
+		Recorder complete = new Recorder();
+		new TransmissionTreeLogReader(file, 0, null).run(complete);
+		assertEquals(20, complete.samples.size());
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() * 2 / 3);
+		}
+		Recorder truncated = new Recorder();
+		new TransmissionTreeLogReader(file, 0, null).run(truncated);
+		int count = truncated.samples.size();
+		assertEquals(true, count > 0 && count < 20);
+		assertEquals(complete.samples.subList(0, count), truncated.samples);
+
+		LogFileMode mode = Logger.FILE_MODE;
+		try {
+			Logger.FILE_MODE = LogFileMode.resume;
+			logger = new TransmissionStateLogger();
+			logger.initByName("tree", tree, "blockcount", blockCount, "blockstart", blockStart, "blockend", blockEnd,
+					"out", new OutFile(file.getPath()));
+			logger.init(null);
+			for (long sample = count; sample < 20; sample++) {
+				blockStart.setValue(0, sample / 100.0);
+				logger.log(sample, null);
+			}
+			logger.close(null);
+		} finally {
+			Logger.FILE_MODE = mode;
+		}
+		Recorder resumed = new Recorder();
+		new TransmissionTreeLogReader(file, 0, null).run(resumed);
+		assertEquals(complete.samples, resumed.samples);
+	}
+}
@@ -0,0 +1,196 @@
+package breath.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.evolution.tree.coalescent.ConstantPopulation;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import beastfx.app.util.OutFile;
+import breath.distribution.ColourProvider;
+import breath.distribution.GammaHazardFunction;
+import breath.distribution.TransmissionTreeLikelihood;
+import breath.util.TransmissionTreeSimulator;
+
+public class TransmissionTreeSimulatorTest {
+
+	// runs the simulator with the given inputs, and returns the contents of its tree file and trace file
+	static String [] simulate(Object... inputs) throws IOException {
+		File out = File.createTempFile("TransmissionTreeSimulatorTest", ".trees");
+		File trace = File.createTempFile("TransmissionTreeSimulatorTest", ".log");
+		out.deleteOnExit();
+		trace.deleteOnExit();
+		Object [] args = new Object[inputs.length + 6];
+		System.arraycopy(inputs, 0, args, 0, inputs.length);
+		args[inputs.length] = "out";
+		args[inputs.length + 1] = new OutFile(out.getPath());
+		args[inputs.length + 2] = "trace";
+		args[inputs.length + 3] = new OutFile(trace.getPath());
+		args[inputs.length + 4] = "quiet";
+		args[inputs.length + 5] = true;
+		TransmissionTreeSimulator simulator = new TransmissionTreeSimulator();
+		simulator.initByName(args);
+		try {
+			simulator.run();
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		return new String[] {Files.readString(out.toPath()), Files.readString(trace.toPath())};
+	}
+
+	// every tree has its own random number stream, so the number of threads does not change the output
+	@Test
+	public void testThreadsGiveSameTrees() throws IOException {
+		for (boolean prune : new boolean[] {false, true}) {
+			String [] serial = simulate("seed", 127L, "treeCount", 40, "taxonCount", 5, "calcLogP", true, "prune", prune);
+			assertEquals(40, serial[0].split("\n").length);
+			for (int threads : new int[] {2, 3, 8}) {
+				String [] parallel = simulate("seed", 127L, "treeCount", 40, "taxonCount", 5, "calcLogP", true, "prune", prune,
+						"threads", threads);
+				assertEquals(serial[0], parallel[0]);
+				assertEquals(serial[1], parallel[1]);
+			}
+		}
+	}
+
+	// calcLogP reuses one likelihood for all trees of the same size: its logP matches
+	// that of a likelihood built from scratch for the tree in the tree file
+	@Test
+	public void testReusedLikelihoodMatchesFresh() throws IOException {
+		// a fixed taxon count makes all trees the same size
+		for (int taxonCount : new int[] {3, 6}) {
+			String [] output = simulate("seed", 127L, "treeCount", 30, "taxonCount", taxonCount, "calcLogP", true);
+			String [] trees = output[0].split("\n");
+			String [] trace = output[1].split("\n");
+			assertEquals(30, trees.length);
+			// header line, then sample, endTime, height, length, origin, logP and logP2 per tree
+			assertTrue(trace[0].endsWith("logP2"));
+			for (int i = 0; i < trees.length; i++) {
+				String [] strs = trace[i + 1].split("\t");
+				double origin = Double.parseDouble(strs[4]);
+				double logP2 = Double.parseDouble(strs[6]);
+				assertEquals(calcLogP(trees[i], origin), logP2, 1e-8 * Math.max(1, Math.abs(logP2)));
+			}
+		}
+	}
+
+	// likelihood of simulated tree with the simulator's default settings, built from newick
+	private double calcLogP(String newick, double origin) {
+		TreeParser tree = new TreeParser(newick.endsWith(";") ? newick : newick + ";");
+		int n = tree.getNodeCount();
+		IntegerParameter blockCount = new IntegerParameter();
+		RealParameter blockStart = new RealParameter();
+		RealParameter blockEnd = new RealParameter();
+		blockCount.initByName("dimension", n, "value", "-1", "lower", -1, "upper", 1000);
+		blockStart.initByName("dimension", Math.max(n - 1, 1), "value", "0.5", "lower", 0.0, "upper", 1.0);
+		blockEnd.initByName("dimension", Math.max(n - 1, 1), "value", "0.5", "lower", 0.0, "upper", 1.0);
+		for (Node node : tree.getNodesAsArray()) {
+			if (!node.isRoot()) {
+				int i = node.getNr();
+				blockCount.setValue(i, (int)(double) node.getMetaData("blockcount"));
+				if (blockCount.getValue(i) >= 0) {
+					blockStart.setValue(i, (double) node.getMetaData("blockstart"));
+					blockEnd.setValue(i, (double) node.getMetaData("blockend"));
+				}
+			}
+		}
+		ConstantPopulation popFun = new ConstantPopulation();
+		popFun.initByName("popSize", "0.1");
+		GammaHazardFunction transmissionHazard = new GammaHazardFunction();
+		transmissionHazard.initByName("shape", "2.5", "rate", "10.0", "C", "1.5");
+		GammaHazardFunction sampleHazard = new GammaHazardFunction();
+		sampleHazard.initByName("shape", "2.0", "rate", "5.0", "C", "0.75");
+
+		TransmissionTreeLikelihood likelihood = new TransmissionTreeLikelihood();
+		likelihood.initByName("tree", tree,
+				"blockstart", blockStart,
+				"blockend", blockEnd,
+				"blockcount", blockCount,
+				"populationModel", popFun,
+				"endTime", new RealParameter(-origin + ""),
+				"origin", new RealParameter(origin + ""),
+				"samplingHazard", sampleHazard,
+				"transmissionHazard", transmissionHazard,
+				"includeCoalescent", true);
+		return likelihood.calculateLogP();
+	}
+
+	// trees simulated with bounded memory have the requested number of taxa,
+	// and a valid colouring consistent with their block counts
+	@Test
+	public void testPrunedTreesAreValid() throws IOException {
+		String [] output = simulate("seed", 127L, "treeCount", 50, "taxonCount", 5, "prune", true);
+		for (String newick : output[0].split("\n")) {
+			checkTree(newick, 5);
+		}
+		output = simulate("seed", 127L, "treeCount", 20, "taxonCount", 12, "maxTaxonCount", 20, "prune", true);
+		for (String newick : output[0].split("\n")) {
+			checkTree(newick, 12);
+		}
+	}
+
+	// as above, for the array-based simulation that keeps the whole outbreak
+	@Test
+	public void testTreesAreValid() throws IOException {
+		String [] output = simulate("seed", 127L, "treeCount", 50, "taxonCount", 5);
+		for (String newick : output[0].split("\n")) {
+			checkTree(newick, 5);
+		}
+	}
+
+	private void checkTree(String newick, int taxonCount) {
+		TreeParser tree = new TreeParser(newick.endsWith(";") ? newick : newick + ";");
+		int leafCount = tree.getLeafNodeCount();
+		assertEquals(taxonCount, leafCount);
+		assertEquals(2 * leafCount - 1, tree.getNodeCount());
+
+		// taxa are t001, t002, ... and every sampled host has a colour of its own
+		Set<String> taxa = new HashSet<>();
+		Set<Integer> leafColours = new HashSet<>();
+		int n = tree.getNodeCount();
+		int [] transmissionCount = new int[n];
+		for (Node node : tree.getNodesAsArray()) {
+			if (node.isLeaf()) {
+				taxa.add(node.getID());
+				leafColours.add(colour(node));
+			}
+			if (node.isRoot()) {
+				continue;
+			}
+			assertTrue(node.getLength() >= 0);
+			int bc = (int)(double) node.getMetaData("blockcount");
+			assertTrue(bc >= -1);
+			transmissionCount[node.getNr()] = bc + 1;
+			// the colour changes along a branch if and only if there is a transmission on it
+			// (the root has no annotation, so its colour is not known)
+			if (!node.getParent().isRoot()) {
+				assertEquals(bc >= 0, colour(node) != colour(node.getParent()));
+			}
+			if (bc >= 0) {
+				double start = (double) node.getMetaData("blockstart");
+				double end = (double) node.getMetaData("blockend");
+				assertTrue(0 <= start && start <= end && end <= 1);
+			}
+		}
+		for (int i = 1; i <= leafCount; i++) {
+			assertTrue(taxa.contains(String.format("t%03d", i)));
+		}
+		assertEquals(leafCount, leafColours.size());
+		// every path between two sampled hosts has a transmission
+		assertTrue(ColourProvider.getColour(tree.getRoot(), transmissionCount, leafCount, new int[n], new int[n]));
+	}
+
+	private int colour(Node node) {
+		return (int)(double) node.getMetaData("color");
+	}
+}
@@ -0,0 +1,141 @@
+package breath.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.util.Randomizer;
+import breath.operator.TreePathIndex;
+
+public class TreePathIndexTest {
+
+	// random binary tree with leaves t0,...,t(n-1) at different heights
+	static TreeParser randomTree(int taxonCount) {
+		List<String> newick = new ArrayList<>();
+		List<Double> heights = new ArrayList<>();
+		for (int i = 0; i < taxonCount; i++) {
+			newick.add("t" + i);
+			heights.add(Randomizer.nextDouble());
+		}
+		while (newick.size() > 1) {
+			int i = Randomizer.nextInt(newick.size());
+			String left = newick.remove(i);
+			double leftHeight = heights.remove(i);
+			int j = Randomizer.nextInt(newick.size());
+			String right = newick.remove(j);
+			double rightHeight = heights.remove(j);
+			double h = Math.max(leftHeight, rightHeight) + 0.01 + Randomizer.nextDouble();
+			newick.add("(" + left + ":" + (h - leftHeight) + "," + right + ":" + (h - rightHeight) + ")");
+			heights.add(h);
+		}
+		return new TreeParser(newick.get(0) + ";");
+	}
+
+	@Test
+	public void testAgainstBruteForce() {
+		Randomizer.setSeed(127);
+		for (int rep = 0; rep < 20; rep++) {
+			TreeParser tree = randomTree(2 + Randomizer.nextInt(30));
+			int n = tree.getNodeCount();
+			IntegerParameter blockCount = new IntegerParameter();
+			blockCount.initByName("dimension", n, "value", "-1");
+			for (int i = 0; i < n; i++) {
+				blockCount.setValue(i, Randomizer.nextInt(4) - 1);
+			}
+			TreePathIndex index = new TreePathIndex();
+			index.initByName("tree", tree, "blockcount", blockCount);
+
+			for (int step = 0; step < 50; step++) {
+				// change a block count the way operators do during a proposal
+				int k = Randomizer.nextInt(n);
+				blockCount.setValue(k, Randomizer.nextInt(4) - 1);
+				index.update(k);
+
+				int i = Randomizer.nextInt(n);
+				int j = Randomizer.nextInt(n);
+				int mrca = index.getMRCA(i, j);
+				assertEquals(getMRCA(tree, i, j), mrca);
+				checkPath(tree, blockCount, index, i, mrca);
+				checkPath(tree, blockCount, index, j, mrca);
+			}
+		}
+	}
+
+	@Test
+	public void testRejectedProposal() {
+		Randomizer.setSeed(127);
+		for (int rep = 0; rep < 20; rep++) {
+			TreeParser tree = randomTree(2 + Randomizer.nextInt(30));
+			int n = tree.getNodeCount();
+			IntegerParameter blockCount = new IntegerParameter();
+			blockCount.initByName("dimension", n, "value", "0");
+			TreePathIndex index = new TreePathIndex();
+			index.initByName("tree", tree, "blockcount", blockCount);
+			blockCount.setEverythingDirty(false);
+
+			for (int step = 0; step < 50; step++) {
+				int i = Randomizer.nextInt(n);
+				int j = Randomizer.nextInt(n);
+				int mrca = index.getMRCA(i, j);
+				checkPath(tree, blockCount, index, i, mrca);
+
+				// proposal changes a block count, as InfectionMover does
+				int k = Randomizer.nextInt(n);
+				int old = blockCount.getValue(k);
+				blockCount.setValue(k, Randomizer.nextInt(4) - 1);
+				index.update(k);
+				checkPath(tree, blockCount, index, i, mrca);
+
+				// operator returns -infinity: MCMC restores the state, but not the calculation nodes
+				blockCount.setValue(k, old);
+				blockCount.setEverythingDirty(false);
+				checkPath(tree, blockCount, index, i, mrca);
+				checkPath(tree, blockCount, index, j, mrca);
+			}
+		}
+	}
+
+	private int getMRCA(Tree tree, int i, int j) {
+		List<Node> ancestors = new ArrayList<>();
+		for (Node node = tree.getNode(i); node != null; node = node.getParent()) {
+			ancestors.add(node);
+		}
+		Node node = tree.getNode(j);
+		while (!ancestors.contains(node)) {
+			node = node.getParent();
+		}
+		return node.getNr();
+	}
+
+	// compare queries for path from node i up to its ancestor mrca with walking the path
+	private void checkPath(Tree tree, IntegerParameter blockCount, TreePathIndex index, int i, int mrca) {
+		Node top = tree.getNode(mrca);
+		int count = 0;
+		for (Node node = tree.getNode(i); node != top; node = node.getParent()) {
+			int bc = blockCount.getValue(node.getNr());
+			int weight = bc < 0 ? 0 : (bc == 0 ? 1 : 2);
+			for (int k = count; k < count + weight; k++) {
+				assertEquals(node.getNr(), index.findInfection(i, mrca, k));
+			}
+			count += weight;
+		}
+		assertEquals(count, index.getEligibleInfectionCount(i, mrca));
+		assertEquals(top.getHeight() - tree.getNode(i).getHeight(), index.getPathLength(i, mrca), 1e-10);
+
+		if (i != mrca) {
+			double h = tree.getNode(i).getHeight() + Randomizer.nextDouble() * (top.getHeight() - tree.getNode(i).getHeight());
+			Node node = tree.getNode(i);
+			while (node.getParent() != top && node.getParent().getHeight() <= h) {
+				node = node.getParent();
+			}
+			assertEquals(node.getNr(), index.findHeight(i, mrca, h));
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package breath.test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import transmission2.VariableIntegerParameter;
+import transmission2.VariableRealParameter;
+
+public class VariableParameterTest {
+
+	// exposes store, which MCMC calls through the state
+	class TestIntegerParameter extends VariableIntegerParameter {
+		void storeState() {
+			store();
+		}
+	}
+
+	class TestRealParameter extends VariableRealParameter {
+		void storeState() {
+			store();
+		}
+	}
+
+	@Test
+	public void testShrinkGrowRestore() {
+		TestIntegerParameter p = new TestIntegerParameter();
+		p.initByName("value", "1 2 3 4");
+		p.storeState();
+
+		// entries 2 and 3 are dropped, then overwritten when growing again
+		p.setDimension(2);
+		p.setDimension(4);
+		assertArrayEquals(new Integer[] {1, 2, 2, 2}, p.getValues());
+		p.setValue(3, 9);
+		p.restore();
+		assertEquals(4, p.getDimension());
+		assertArrayEquals(new Integer[] {1, 2, 3, 4}, p.getValues());
+
+		// grow beyond the stored dimension and the original capacity
+		p.storeState();
+		p.setDimension(1);
+		p.setDimension(6);
+		p.setValue(5, 7);
+		p.restore();
+		assertArrayEquals(new Integer[] {1, 2, 3, 4}, p.getValues());
+	}
+
+	@Test
+	public void testRemoveGrowRestore() {
+		TestRealParameter p = new TestRealParameter();
+		p.initByName("value", "0.1 0.2 0.3");
+		p.storeState();
+
+		// as AddOrDeleteInfectionOperator does for a delete followed by an add
+		p.removeBySwapWithLast(0);
+		assertArrayEquals(new Double[] {0.3, 0.2}, p.getValues());
+		p.setDimension(3);
+		p.setValue(2, 0.5);
+		assertArrayEquals(new Double[] {0.3, 0.2, 0.5}, p.getValues());
+		p.restore();
+		assertEquals(3, p.getDimension());
+		assertArrayEquals(new Double[] {0.1, 0.2, 0.3}, p.getValues());
+	}
+}
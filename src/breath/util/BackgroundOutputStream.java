@@ -0,0 +1,227 @@
+package breath.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import beast.base.inference.Logger;
+import beast.base.inference.Logger.LogFileMode;
+
+/**
+ * Output stream that collects output in large buffers and writes full buffers
+ * on a background thread, so that the thread producing output (e.g. simulating
+ * trees or running an MCMC chain) does not wait for compression or disk I/O.
+ *
+ * Only a few buffers are in use at any time: if the background thread cannot
+ * keep up, writing blocks till a buffer becomes available.
+ * Data is only guaranteed to be written after close() returns.
+ */
+public class BackgroundOutputStream extends OutputStream {
+	final static int BUFFER_SIZE = 1 << 20;
+	final static int BUFFER_COUNT = 4;
+
+	private final OutputStream out;
+	// buffers ready to be filled, and filled buffers waiting to be written
+	private final BlockingQueue<Buffer> freeBuffers = new ArrayBlockingQueue<>(BUFFER_COUNT);
+	private final BlockingQueue<Buffer> fullBuffers = new ArrayBlockingQueue<>(BUFFER_COUNT);
+	private final Thread writer;
+	private Buffer current;
+	private volatile IOException exception;
+	private boolean closed = false;
+
+	private static class Buffer {
+		final byte [] bytes = new byte[BUFFER_SIZE];
+		int count;
+	}
+
+	// signals end of output to writer thread
+	private final static Buffer END = new Buffer();
+
+	/** open print stream for file, gzip compressed if the file name ends in .gz **/
+	public static PrintStream newPrintStream(File file) throws IOException {
+		return new PrintStream(newOutputStream(file), false);
+	}
+
+	/** open stream for file, gzip compressed if the file name ends in .gz **/
+	public static OutputStream newOutputStream(File file) throws IOException {
+		return newOutputStream(file, false);
+	}
+
+	/** open stream for file, gzip compressed if the file name ends in .gz.
+	 * If append is true, output is added to the end of the file, as a new gzip member if compressed **/
+	public static OutputStream newOutputStream(File file, boolean append) throws IOException {
+		OutputStream out = new FileOutputStream(file, append);
+		if (isCompressed(file)) {
+			out = new GZIPOutputStream(out, BUFFER_SIZE);
+		}
+		return new BackgroundOutputStream(out);
+	}
+
+	/**
+	 * Open stream for a file written by a logger of an MCMC analysis, following the mode of Logger:
+	 * when resuming, output is appended to the existing file, and an existing file is only
+	 * replaced when overwriting.
+	 */
+	public static OutputStream newLogOutputStream(File file) throws IOException {
+		if (isResuming(file)) {
+			return newOutputStream(file, true);
+		}
+		if (file.exists() && Logger.FILE_MODE != LogFileMode.overwrite && Logger.FILE_MODE != LogFileMode.resume) {
+			throw new IllegalArgumentException("Trying to write file " + file.getPath() + " but the file already exists. "
+					+ "Use the overwrite or resume option, or remove the file");
+		}
+		return newOutputStream(file, false);
+	}
+
+	/**
+	 * Like newLogOutputStream, but when resuming the last line of the file is removed if
+	 * it equals trailer, e.g. the "End;" line of a NEXUS tree log, so output continues the log.
+	 * This rewrites the file, like Logger does for tree logs.
+	 */
+	public static PrintStream newLogPrintStream(File file, String trailer) throws IOException {
+		if (trailer == null || !isResuming(file)) {
+			return new PrintStream(newLogOutputStream(file), false);
+		}
+		File backup = new File(file.getPath() + ".bu");
+		Files.move(file.toPath(), backup.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		PrintStream out = newPrintStream(file);
+		InputStream in = new FileInputStream(backup);
+		if (isCompressed(file)) {
+			in = new GZIPInputStream(in, BUFFER_SIZE);
+		}
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(in), BUFFER_SIZE)) {
+			String previous = null;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (previous != null) {
+					out.println(previous);
+				}
+				previous = line;
+			}
+			if (previous != null && !previous.trim().equals(trailer)) {
+				out.println(previous);
+			}
+		}
+		Files.delete(backup.toPath());
+		return out;
+	}
+
+	/** whether a log opened now for file continues the existing file, because the analysis is resumed **/
+	public static boolean isResuming(File file) {
+		return Logger.FILE_MODE == LogFileMode.resume && file.exists() && file.length() > 0;
+	}
+
+	static boolean isCompressed(File file) {
+		return file.getName().endsWith(".gz");
+	}
+
+	public BackgroundOutputStream(OutputStream out) {
+		this.out = out;
+		for (int i = 0; i < BUFFER_COUNT - 1; i++) {
+			freeBuffers.add(new Buffer());
+		}
+		current = new Buffer();
+		writer = new Thread(this::writeBuffers, "BackgroundOutputStream");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private void writeBuffers() {
+		try {
+			while (true) {
+				Buffer buffer = fullBuffers.take();
+				if (buffer == END) {
+					return;
+				}
+				if (exception == null) {
+					try {
+						out.write(buffer.bytes, 0, buffer.count);
+					} catch (IOException e) {
+						exception = e;
+					}
+				}
+				buffer.count = 0;
+				freeBuffers.put(buffer);
+			}
+		} catch (InterruptedException e) {
+			exception = new IOException(e);
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (current.count == BUFFER_SIZE) {
+			handOver();
+		}
+		current.bytes[current.count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte [] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (current.count == BUFFER_SIZE) {
+				handOver();
+			}
+			int n = Math.min(len, BUFFER_SIZE - current.count);
+			System.arraycopy(b, off, current.bytes, current.count, n);
+			current.count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	// pass current buffer to the writer thread, and continue with an empty one
+	private void handOver() throws IOException {
+		checkException();
+		if (current.count == 0) {
+			return;
+		}
+		try {
+			fullBuffers.put(current);
+			current = freeBuffers.take();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private void checkException() throws IOException {
+		if (exception != null) {
+			throw exception;
+		}
+	}
+
+	/** passes buffered output to the writer thread, but does not wait till it is written **/
+	@Override
+	public void flush() throws IOException {
+		handOver();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		handOver();
+		try {
+			fullBuffers.put(END);
+			writer.join();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+		out.close();
+		checkException();
+	}
+}
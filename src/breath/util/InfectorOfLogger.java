@@ -1,5 +1,6 @@
 package breath.util;
 
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.Arrays;
 
@@ -11,70 +12,153 @@ import beast.base.core.Input.Validate;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.TreeInterface;
 import beast.base.inference.parameter.IntegerParameter;
+import beastfx.app.util.OutFile;
 import breath.distribution.TransmissionTreeLikelihood;
 
 @Description("Reports infector of leaf nodes, or -1 if infected from unsampled case")
 public class InfectorOfLogger extends BEASTObject implements Loggable {
 	final public Input<TransmissionTreeLikelihood> likelihoodInput = new Input<>("likelihood", "transmission treelikelihood containing the colouring", Validate.REQUIRED);
 	final public Input<Boolean> directOnlyInput = new Input<>("directOnly", "consider direct infections only, if false block counts are ignored", true);
+	final public Input<OutFile> outputInput = new Input<>("out", "tab separated file to write infectors to, gzip compressed if the name ends in .gz. "
+			+ "If specified, infectors are written to this file instead of to the logger containing this logger");
+	final public Input<Boolean> asyncInput = new Input<>("async", "if true, the MCMC thread only takes a snapshot of the colouring, "
+			+ "and infectors are determined and written on a background thread. Only used if out is specified", false);
 
 	private TransmissionTreeLikelihood likelihood;
 	private TreeInterface tree;
 	private boolean directOnly;
+	// stream for infectors if outputInput is specified
+	private PrintStream infectorOut;
+	private SnapshotLogWriter<Snapshot> writer;
+	// used for logging if outputInput is not specified
+	private Snapshot snapshot;
 	
 	@Override
 	public void initAndValidate() {
 		likelihood = likelihoodInput.get();
 		tree = likelihood.treeInput.get();
 		directOnly = directOnlyInput.get();
+		snapshot = new Snapshot(tree.getNodeCount(), tree.getLeafNodeCount());
 	}
 
 	@Override
 	public void init(PrintStream out) {
+		if (outputInput.get() != null) {
+			// when resuming, samples are appended to the existing log, which already has a header
+			boolean resuming = BackgroundOutputStream.isResuming(outputInput.get());
+			try {
+				infectorOut = BackgroundOutputStream.newLogPrintStream(outputInput.get(), null);
+			} catch (IOException e) {
+				throw new IllegalArgumentException("Could not open file " + outputInput.get().getPath() + ": " + e.getMessage());
+			}
+			if (!resuming) {
+				infectorOut.print("Sample\t");
+				printHeader(infectorOut);
+				infectorOut.println();
+			}
+			writer = new SnapshotLogWriter<>(infectorOut, () -> new Snapshot(tree.getNodeCount(), tree.getLeafNodeCount()), 
+					(s, o) -> {
+						o.print(s.sample + "\t");
+						s.print(o);
+						o.println();
+					}, asyncInput.get());
+		} else {
+			printHeader(out);
+		}
+	}
+	
+	private void printHeader(PrintStream out) {
 		for (int i = 0; i < tree.getLeafNodeCount(); i++) {
 			out.print("infectorOf." + (i+1) + "\t");
 		}
 		out.print("infectionCount\t");
-		
-		
 	}
 
 	@Override
 	public void log(long sample, PrintStream out) {
-		int [] colourAtBase = likelihood.getColouring();
+		if (writer != null) {
+			Snapshot s = writer.take();
+			s.copy(sample);
+			writer.put(s);
+			return;
+		}
+		snapshot.copy(sample);
+		snapshot.print(out);
+	}
+	
+	// colouring, parents and block counts of a sample, with buffer for determining infectors
+	private class Snapshot {
+		long sample;
+		final int [] colourAtBase;
+		final int [] parent;
+		final int [] blockCount;
+		final int [] infectedBy;
 		
-    	// determine who infected who
-    	int n = tree.getLeafNodeCount();
-    	int [] infectedBy = new int[n];
-    	Arrays.fill(infectedBy, -1);
-    	IntegerParameter blockCount = likelihood.blockCountInput.get();
-    	int infectionCount = 0;
-    	for (int i = 0; i < 2 * n - 2; i++) {
-    		Node node = tree.getNode(i);
-    		int colour = colourAtBase[node.getNr()];
-    		while (!node.isRoot() && colourAtBase[node.getParent().getNr()] == colour) {
-    			node = node.getParent();
-    		}
-        	Node parent = node.getParent();
-    		if (parent != null &&
-    				colourAtBase[node.getNr()] < n && colourAtBase[parent.getNr()] < n && 
-    				colourAtBase[node.getNr()] != colourAtBase[parent.getNr()]) {
-    			if (!directOnly || blockCount.getValue(node.getNr()) == 0) {
-    				infectedBy[colourAtBase[node.getNr()]] = colourAtBase[parent.getNr()];
-    			}
-    		}
-    		infectionCount += blockCount.getValue(i) + 1;
-    	}
-    	
-    	for (int i = 0; i < n; i++) {
-    		out.print(infectedBy[i] + "\t");
-    	}
-    	out.print(infectionCount + "\t");
+		Snapshot(int nodeCount, int leafCount) {
+			colourAtBase = new int[nodeCount];
+			parent = new int[nodeCount];
+			blockCount = new int[nodeCount];
+			infectedBy = new int[leafCount];
+		}
+		
+		void copy(long sample) {
+			this.sample = sample;
+			System.arraycopy(likelihood.getColouring(), 0, colourAtBase, 0, colourAtBase.length);
+			IntegerParameter blockCountParameter = likelihood.blockCountInput.get();
+			Node [] nodes = tree.getNodesAsArray();
+			for (int i = 0; i < nodes.length; i++) {
+				parent[i] = nodes[i].isRoot() ? -1 : nodes[i].getParent().getNr();
+				blockCount[i] = blockCountParameter.getValue(i);
+			}
+		}
+
+		void print(PrintStream out) {
+	    	int infectionCount = calcInfectedBy(parent, colourAtBase, blockCount, directOnly, infectedBy);
+	    	for (int i = 0; i < infectedBy.length; i++) {
+	    		out.print(infectedBy[i] + "\t");
+	    	}
+	    	out.print(infectionCount + "\t");
+		}
+	}
+
+	/**
+	 * Determines who infected who in a single pass over the branches: a node is the top of the segment
+	 * of its colour if its parent has another colour, and the infector is the colour of that parent.
+	 * @param parent node number of parents, -1 for the root
+	 * @param colourAtBase colouring with leaf i having colour i
+	 * @param blockCount block counts, -1 if there is no transmission on a branch
+	 * @param directOnly if true, only count infections without unsampled hosts in between (block count 0)
+	 * @param infectedBy filled with infector of every leaf, or -1 if the infector is not sampled
+	 * @return total number of infections
+	 */
+	public static int calcInfectedBy(int [] parent, int [] colourAtBase, int [] blockCount, boolean directOnly, int [] infectedBy) {
+		int n = infectedBy.length;
+		Arrays.fill(infectedBy, -1);
+		int infectionCount = 0;
+		// the root need not be the last node, so visit all nodes and skip the root
+		for (int i = 0; i < parent.length; i++) {
+			int p = parent[i];
+			if (p < 0) {
+				continue;
+			}
+			if (colourAtBase[i] != colourAtBase[p] && colourAtBase[i] < n && colourAtBase[p] < n) {
+				if (!directOnly || blockCount[i] == 0) {
+					infectedBy[colourAtBase[i]] = colourAtBase[p];
+				}
+			}
+			infectionCount += blockCount[i] + 1;
+		}
+		return infectionCount;
 	}
 
 	@Override
 	public void close(PrintStream out) {
-		// nothing to do
+		if (infectorOut != null) {
+			writer.close();
+			writer = null;
+			infectorOut.close();
+			infectorOut = null;
+		}
 	}
 
 }
@@ -0,0 +1,127 @@
+package breath.util;
+
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * Hands snapshots of the state from the MCMC thread to a background thread that
+ * formats and writes them, so the sampler does not wait for string formatting or disk I/O.
+ *
+ * Snapshots are recycled through a ring of fixed size: the MCMC thread takes a free snapshot,
+ * copies the state into it and puts it back, and only blocks if the background thread
+ * is that many snapshots behind. If not asynchronous, snapshots are written immediately
+ * on the calling thread.
+ */
+public class SnapshotLogWriter<S> {
+
+	/** writes a snapshot to the log **/
+	public interface Formatter<S> {
+		void write(S snapshot, PrintStream out);
+	}
+
+	final static int CAPACITY = 16;
+
+	private final PrintStream out;
+	private final Formatter<S> formatter;
+	private final BlockingQueue<S> freeSnapshots;
+	private final BlockingQueue<Object> fullSnapshots;
+	private final Thread writer;
+	private volatile RuntimeException exception;
+	private S current;
+
+	// signals end of log to writer thread
+	private final static Object END = new Object();
+
+	/**
+	 * @param factory creates empty snapshots
+	 * @param async if true, snapshots are written on a background thread
+	 */
+	public SnapshotLogWriter(PrintStream out, Supplier<S> factory, Formatter<S> formatter, boolean async) {
+		this.out = out;
+		this.formatter = formatter;
+		if (async) {
+			freeSnapshots = new ArrayBlockingQueue<>(CAPACITY);
+			fullSnapshots = new ArrayBlockingQueue<>(CAPACITY + 1);
+			for (int i = 0; i < CAPACITY; i++) {
+				freeSnapshots.add(factory.get());
+			}
+			writer = new Thread(this::writeSnapshots, "SnapshotLogWriter");
+			writer.setDaemon(true);
+			writer.start();
+		} else {
+			freeSnapshots = null;
+			fullSnapshots = null;
+			writer = null;
+			current = factory.get();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void writeSnapshots() {
+		try {
+			while (true) {
+				Object snapshot = fullSnapshots.take();
+				if (snapshot == END) {
+					return;
+				}
+				if (exception == null) {
+					try {
+						formatter.write((S) snapshot, out);
+					} catch (RuntimeException e) {
+						exception = e;
+					}
+				}
+				freeSnapshots.put((S) snapshot);
+			}
+		} catch (InterruptedException e) {
+			exception = new RuntimeException(e);
+		}
+	}
+
+	/** snapshot to copy the current state into, to be passed to put() **/
+	public S take() {
+		checkException();
+		if (writer == null) {
+			return current;
+		}
+		try {
+			return freeSnapshots.take();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** write snapshot obtained from take() **/
+	public void put(S snapshot) {
+		if (writer == null) {
+			formatter.write(snapshot, out);
+			return;
+		}
+		try {
+			fullSnapshots.put(snapshot);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** wait till all snapshots are written, but leave the output stream open **/
+	public void close() {
+		if (writer != null && writer.isAlive()) {
+			try {
+				fullSnapshots.put(END);
+				writer.join();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		checkException();
+	}
+
+	private void checkException() {
+		if (exception != null) {
+			throw exception;
+		}
+	}
+}
@@ -0,0 +1,715 @@
+package breath.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipException;
+
+import beast.base.core.Log;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import beastfx.app.treeannotator.TreeAnnotator;
+import beastfx.app.treeannotator.TreeAnnotator.MemoryFriendlyTreeSet;
+import breath.distribution.ColourProvider;
+import breath.logger.TransmissionStateLogger;
+
+/**
+ * Reads a transmission tree log in a single pass and hands every tree to a set of consumers
+ * with its block parameters, node heights, parents and colouring in primitive arrays indexed by node number.
+ *
+ * Metadata keys (e.g. blockcount or blockcount.t:partition) are resolved on the first tree,
+ * so there are no fall back lookups per node. Nodes without block count get block count 0,
+ * except the root, which gets -1. Nodes without block start or end get 0.5.
+ *
+ * With more than one thread, or when thinning, the file is memory mapped and the offsets of all tree lines are
+ * indexed first, so burn-in and thinning are applied without parsing. Trees are then parsed on a pool of
+ * worker threads, and handed to consumers in the order they appear in the file.
+ * The index is stored next to the log (with extension .idx added) and reused as long as
+ * size and modification time of the log do not change.
+ *
+ * Binary logs written by TransmissionStateLogger are recognised by their first bytes, and read
+ * directly into the arrays without parsing. The tree is only built when a consumer asks for it.
+ * Text logs that are gzip compressed (file name ending in .gz) are decompressed to a temporary file first.
+ *
+ * The arrays are reused, so consumers should copy what they want to keep.
+ */
+public class TransmissionTreeLogReader {
+
+	/** analysis that processes trees from a transmission tree log **/
+	public interface Consumer {
+		/** called with the first tree after burn-in, before any tree is processed **/
+		void init(TransmissionTreeLogReader reader) throws IOException;
+
+		/** called for every tree after burn-in **/
+		void process(TransmissionTreeLogReader reader) throws IOException;
+
+		/** called after the last tree is processed **/
+		void done() throws IOException;
+	}
+
+	// default size of memory mapped blocks when indexing the file
+	final static long MAP_SIZE = 1L << 30;
+	final static byte [] TREE_PREFIX = "tree STATE_".getBytes(StandardCharsets.US_ASCII);
+	final static String INDEX_EXTENSION = ".idx";
+	final static int INDEX_VERSION = 1;
+
+	private final File file;
+	private final int burnInPercentage;
+	private final String partition;
+	private final int threads;
+	private int thin = 1;
+	private long mapSize = MAP_SIZE;
+
+	private String blockCountKey, blockStartKey, blockEndKey;
+	private int leafNodeCount;
+	private int nodeCount;
+	private int sampleNr;
+	private Sample current;
+	// taxon names of binary log
+	private String [] taxa;
+
+	// tree with its block parameters and colouring as arrays
+	private class Sample {
+		Tree tree;
+		// number of the state the tree was logged at, -1 if unknown
+		long state = -1;
+		final int [] blockCount;
+		final double [] blockStart;
+		final double [] blockEnd;
+		final double [] height;
+		final int [] parent;
+		final int [] colourAtBase;
+		boolean hasColouring;
+		// scratch arrays for colouring
+		final int [] transmissionCount;
+		final int [] permutation;
+
+		Sample(int n) {
+			blockCount = new int[n];
+			blockStart = new double[n];
+			blockEnd = new double[n];
+			height = new double[n];
+			parent = new int[n];
+			colourAtBase = new int[n];
+			transmissionCount = new int[n];
+			permutation = new int[n];
+		}
+
+		void read(Tree tree) {
+			if (tree.getNodeCount() != height.length) {
+				throw new IllegalArgumentException("All trees in " + file.getPath() + " should have the same number of nodes");
+			}
+			this.tree = tree;
+			for (Node node : tree.getNodesAsArray()) {
+				int i = node.getNr();
+				height[i] = node.getHeight();
+				if (node.isRoot()) {
+					parent[i] = -1;
+					blockCount[i] = -1;
+				} else {
+					parent[i] = node.getParent().getNr();
+					blockCount[i] = (int) value(node, blockCountKey, 0);
+				}
+				blockStart[i] = value(node, blockStartKey, 0.5);
+				blockEnd[i] = value(node, blockEndKey, 0.5);
+				transmissionCount[i] = blockCount[i] + 1;
+			}
+			hasColouring = ColourProvider.getColour(tree.getRoot(), transmissionCount, leafNodeCount, colourAtBase, permutation);
+		}
+
+		// read sample from binary log written by TransmissionStateLogger,
+		// only parents are read if full is false
+		void read(DataInputStream in, ByteBuffer buf, boolean full) throws IOException {
+			int n = height.length;
+			state = in.readLong();
+			if (in.readByte() == TransmissionStateLogger.TOPOLOGY) {
+				in.readFully(buf.array(), 0, n * Integer.BYTES);
+				buf.clear();
+				for (int i = 0; i < n; i++) {
+					parent[i] = buf.getInt();
+				}
+			}
+			tree = null;
+			if (!full) {
+				in.skipNBytes(n * (3 * Double.BYTES + Integer.BYTES));
+				return;
+			}
+			in.readFully(buf.array(), 0, n * (3 * Double.BYTES + Integer.BYTES));
+			buf.clear();
+			for (int i = 0; i < n; i++) {
+				height[i] = buf.getDouble();
+			}
+			for (int i = 0; i < n; i++) {
+				blockCount[i] = buf.getInt();
+				if (parent[i] < 0) {
+					// the logger writes the root's block count as is, but like text logs ignore it
+					blockCount[i] = -1;
+				}
+				transmissionCount[i] = blockCount[i] + 1;
+			}
+			for (int i = 0; i < n; i++) {
+				blockStart[i] = buf.getDouble();
+			}
+			for (int i = 0; i < n; i++) {
+				blockEnd[i] = buf.getDouble();
+			}
+			hasColouring = ColourProvider.getColour(parent, transmissionCount, leafNodeCount, colourAtBase, permutation);
+		}
+	}
+
+	/**
+	 * @param file tree log
+	 * @param burnInPercentage percentage of trees at the start of the log to skip
+	 * @param partition name of partition appended to metadata keys, may be null
+	 */
+	public TransmissionTreeLogReader(File file, int burnInPercentage, String partition) {
+		this(file, burnInPercentage, partition, 1);
+	}
+
+	/**
+	 * @param threads number of threads used for parsing trees. Uses all available processors if not positive
+	 */
+	public TransmissionTreeLogReader(File file, int burnInPercentage, String partition, int threads) {
+		this.file = file;
+		this.burnInPercentage = burnInPercentage;
+		this.partition = partition;
+		this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+	}
+
+	/** only pass every thin-th tree after burn-in to consumers **/
+	public void setThin(int thin) {
+		if (thin < 1) {
+			throw new IllegalArgumentException("thin should be at least 1");
+		}
+		this.thin = thin;
+	}
+
+	/** size of memory mapped blocks used when indexing the file, only lowered from the default for testing **/
+	public void setMapSize(long mapSize) {
+		if (mapSize < 1) {
+			throw new IllegalArgumentException("map size should be positive");
+		}
+		this.mapSize = mapSize;
+	}
+
+	/** read log and pass every tree to all consumers **/
+	public void run(Consumer... consumers) throws IOException {
+		if (isBinary()) {
+			runBinary(consumers);
+			return;
+		}
+		if (BackgroundOutputStream.isCompressed(file)) {
+			runCompressed(consumers);
+			return;
+		}
+		if (threads > 1 || thin > 1) {
+			runIndexed(consumers);
+			return;
+		}
+		MemoryFriendlyTreeSet trees = new TreeAnnotator().new MemoryFriendlyTreeSet(file.getAbsolutePath(), burnInPercentage);
+		trees.reset();
+		sampleNr = 0;
+		while (trees.hasNext()) {
+			Tree tree = trees.next();
+			if (sampleNr == 0) {
+				initKeys(tree);
+				current = new Sample(nodeCount);
+			}
+			current.read(tree);
+			deliver(consumers);
+		}
+		if (sampleNr > 0) {
+			for (Consumer consumer : consumers) {
+				consumer.done();
+			}
+		}
+	}
+
+	// text trees are parsed from a plain file, so decompress into a temporary one
+	private void runCompressed(Consumer [] consumers) throws IOException {
+		File tmp = File.createTempFile("breath", ".trees");
+		File tmpIndex = new File(tmp.getPath() + INDEX_EXTENSION);
+		try {
+			try (InputStream in = new GZIPInputStream(new FileInputStream(file), BackgroundOutputStream.BUFFER_SIZE)) {
+				Files.copy(in, tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} catch (ZipException e) {
+				throw new IllegalArgumentException("The name of " + file.getPath() + " ends in .gz, but it is not gzip compressed: " + e.getMessage());
+			}
+			TransmissionTreeLogReader reader = new TransmissionTreeLogReader(tmp, burnInPercentage, partition, threads);
+			reader.setThin(thin);
+			reader.setMapSize(mapSize);
+			reader.run(consumers);
+		} finally {
+			Files.deleteIfExists(tmp.toPath());
+			Files.deleteIfExists(tmpIndex.toPath());
+		}
+	}
+
+	private void deliver(Consumer [] consumers) throws IOException {
+		if (sampleNr == 0) {
+			for (Consumer consumer : consumers) {
+				consumer.init(this);
+			}
+		}
+		for (Consumer consumer : consumers) {
+			consumer.process(this);
+		}
+		sampleNr++;
+	}
+
+	private void runIndexed(Consumer [] consumers) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long [][] index = getIndex(channel);
+			long [] start = index[0], end = index[1];
+			int burnIn = (int)((long) burnInPercentage * start.length / 100);
+			sampleNr = 0;
+			if (burnIn >= start.length) {
+				return;
+			}
+			List<String> taxa = parseTranslateBlock(readString(channel, 0, start[0]));
+
+			// parse first tree here, since metadata keys are resolved on it
+			Tree first = parseTree(readString(channel, start[burnIn], end[burnIn]), taxa);
+			initKeys(first);
+			current = new Sample(nodeCount);
+			current.read(first);
+			current.state = index[2][burnIn];
+			deliver(consumers);
+
+			// keep a bounded number of trees in flight, and recycle samples once they are processed
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			Deque<Future<Sample>> inFlight = new ArrayDeque<>();
+			Deque<Sample> free = new ArrayDeque<>();
+			free.add(current);
+			try {
+				int next = burnIn + thin;
+				while (next < start.length || !inFlight.isEmpty()) {
+					while (next < start.length && inFlight.size() < 4 * threads) {
+						Sample sample = free.isEmpty() ? new Sample(nodeCount) : free.poll();
+						final long from = start[next], to = end[next];
+						sample.state = index[2][next];
+						inFlight.add(executor.submit(() -> {
+							sample.read(parseTree(readString(channel, from, to), taxa));
+							return sample;
+						}));
+						next += thin;
+					}
+					current = inFlight.poll().get();
+					deliver(consumers);
+					free.add(current);
+				}
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				throw new RuntimeException(cause);
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+		for (Consumer consumer : consumers) {
+			consumer.done();
+		}
+	}
+
+	// binary logs start with the magic bytes of TransmissionStateLogger
+	private boolean isBinary() throws IOException {
+		try (DataInputStream in = openBinary()) {
+			byte [] magic = new byte[TransmissionStateLogger.MAGIC.length];
+			return in.read(magic) == magic.length && Arrays.equals(magic, TransmissionStateLogger.MAGIC);
+		} catch (ZipException e) {
+			return false;
+		}
+	}
+
+	private DataInputStream openBinary() throws IOException {
+		InputStream in = new FileInputStream(file);
+		if (file.getName().endsWith(".gz")) {
+			in = new GZIPInputStream(in, BackgroundOutputStream.BUFFER_SIZE);
+		}
+		return new DataInputStream(new BufferedInputStream(in, BackgroundOutputStream.BUFFER_SIZE));
+	}
+
+	// header of binary log, leaves taxa in taxa field
+	private void readBinaryHeader(DataInputStream in) throws IOException {
+		in.skipNBytes(TransmissionStateLogger.MAGIC.length);
+		int version = in.readInt();
+		if (version != TransmissionStateLogger.VERSION) {
+			throw new IllegalArgumentException("Cannot read version " + version + " of binary log " + file.getPath());
+		}
+		nodeCount = in.readInt();
+		leafNodeCount = in.readInt();
+		taxa = new String[leafNodeCount];
+		for (int i = 0; i < leafNodeCount; i++) {
+			byte [] id = new byte[in.readInt()];
+			in.readFully(id);
+			taxa[i] = new String(id, StandardCharsets.UTF_8);
+		}
+	}
+
+	// binary logs are read in two passes: one to count samples for the burn-in, one to read samples
+	private void runBinary(Consumer [] consumers) throws IOException {
+		int count = 0;
+		try (DataInputStream in = openBinary()) {
+			readBinaryHeader(in);
+			int size;
+			while ((size = TransmissionStateLogger.skipSample(in, nodeCount)) > 0) {
+				count++;
+			}
+			if (size < 0) {
+				Log.warning("Binary log " + file.getPath() + " ends in a partial sample, which is ignored");
+			}
+		}
+
+		int burnIn = (int)((long) burnInPercentage * count / 100);
+		sampleNr = 0;
+		try (DataInputStream in = openBinary()) {
+			readBinaryHeader(in);
+			current = new Sample(nodeCount);
+			ByteBuffer buf = ByteBuffer.allocate(nodeCount * (3 * Double.BYTES + Integer.BYTES));
+			for (int i = 0; i < count; i++) {
+				// burn-in samples are skipped, but their topology may be needed for later samples
+				boolean full = i >= burnIn && (i - burnIn) % thin == 0;
+				current.read(in, buf, full);
+				if (full) {
+					deliver(consumers);
+				}
+			}
+		}
+		if (sampleNr > 0) {
+			for (Consumer consumer : consumers) {
+				consumer.done();
+			}
+		}
+	}
+
+	// tree of current sample of binary log
+	private Tree buildTree() {
+		Node [] nodes = new Node[nodeCount];
+		for (int i = 0; i < nodeCount; i++) {
+			nodes[i] = new Node();
+			nodes[i].setNr(i);
+			nodes[i].setHeight(current.height[i]);
+			if (i < leafNodeCount) {
+				nodes[i].setID(taxa[i]);
+			}
+		}
+		Node root = null;
+		for (int i = 0; i < nodeCount; i++) {
+			if (current.parent[i] < 0) {
+				root = nodes[i];
+			} else {
+				nodes[current.parent[i]].addChild(nodes[i]);
+			}
+		}
+		return new Tree(root);
+	}
+
+	/** index from file next to the log if it is up to date, otherwise a freshly built index, which is then saved **/
+	private long [][] getIndex(FileChannel channel) throws IOException {
+		File indexFile = new File(file.getPath() + INDEX_EXTENSION);
+		long size = channel.size(), lastModified = file.lastModified();
+		if (indexFile.exists()) {
+			try {
+				long [][] index = loadIndex(indexFile, size, lastModified);
+				if (index != null) {
+					return index;
+				}
+			} catch (IOException e) {
+				// corrupt or truncated index: rebuild it
+			}
+		}
+		long [][] index = indexTrees(channel, mapSize);
+		try {
+			saveIndex(indexFile, index, size, lastModified);
+		} catch (IOException e) {
+			Log.warning("Could not write tree index " + indexFile.getPath() + ": " + e.getMessage());
+		}
+		return index;
+	}
+
+	/**
+	 * index file layout: version, size and modification time of the log, number of trees,
+	 * then for every tree its sample number, start offset and end offset
+	 * @return index, or null if it does not match the log or its offsets are inconsistent
+	 */
+	static long [][] loadIndex(File indexFile, long size, long lastModified) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+			if (in.readInt() != INDEX_VERSION || in.readLong() != size || in.readLong() != lastModified) {
+				return null;
+			}
+			int count = in.readInt();
+			// header takes 24 bytes, every tree 24 bytes
+			if (count < 0 || count > (indexFile.length() - 24) / 24) {
+				return null;
+			}
+			long [][] index = new long[3][count];
+			for (int i = 0; i < count; i++) {
+				index[2][i] = in.readLong();
+				index[0][i] = in.readLong();
+				index[1][i] = in.readLong();
+				if (index[0][i] < (i == 0 ? 0 : index[1][i - 1]) || index[1][i] < index[0][i] || index[1][i] > size) {
+					return null;
+				}
+			}
+			return index;
+		}
+	}
+
+	static void saveIndex(File indexFile, long [][] index, long size, long lastModified) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)))) {
+			out.writeInt(INDEX_VERSION);
+			out.writeLong(size);
+			out.writeLong(lastModified);
+			int count = index[0].length;
+			out.writeInt(count);
+			for (int i = 0; i < count; i++) {
+				out.writeLong(index[2][i]);
+				out.writeLong(index[0][i]);
+				out.writeLong(index[1][i]);
+			}
+		}
+	}
+
+	/**
+	 * find start and end offsets and sample numbers of all lines starting with "tree STATE_"
+	 * by scanning memory mapped blocks of mapSize bytes of the file
+	 * @return array with start offsets, end offsets and sample numbers
+	 */
+	static long [][] indexTrees(FileChannel channel, long mapSize) throws IOException {
+		long size = channel.size();
+		long [] start = new long[1024], end = new long[1024], sample = new long[1024];
+		int count = 0;
+		boolean inTree = false;
+		for (long pos = 0; pos < size; pos += mapSize) {
+			// overlap blocks a little so the prefix and sample number can be matched at block boundaries
+			int blockSize = (int) Math.min(mapSize, size - pos);
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(mapSize + 64, size - pos));
+			for (int i = 0; i < blockSize; i++) {
+				byte b = buf.get(i);
+				if (b == '\n') {
+					if (inTree) {
+						end[count - 1] = pos + i;
+						inTree = false;
+					}
+				} else if (!inTree && (i == 0 ? pos == 0 || lastByte(channel, pos) == '\n' : buf.get(i - 1) == '\n')
+						&& startsWith(buf, i, TREE_PREFIX)) {
+					if (count == start.length) {
+						start = Arrays.copyOf(start, count * 2);
+						end = Arrays.copyOf(end, count * 2);
+						sample = Arrays.copyOf(sample, count * 2);
+					}
+					sample[count] = parseSampleNr(buf, i + TREE_PREFIX.length);
+					start[count++] = pos + i;
+					inTree = true;
+				}
+			}
+		}
+		if (inTree) {
+			end[count - 1] = size;
+		}
+		return new long[][]{Arrays.copyOf(start, count), Arrays.copyOf(end, count), Arrays.copyOf(sample, count)};
+	}
+
+	private static long parseSampleNr(MappedByteBuffer buf, int i) {
+		long nr = 0;
+		while (i < buf.limit() && buf.get(i) >= '0' && buf.get(i) <= '9') {
+			nr = nr * 10 + buf.get(i) - '0';
+			i++;
+		}
+		return nr;
+	}
+
+	private static byte lastByte(FileChannel channel, long pos) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(1);
+		channel.read(b, pos - 1);
+		return b.get(0);
+	}
+
+	private static boolean startsWith(MappedByteBuffer buf, int i, byte [] prefix) {
+		if (i + prefix.length > buf.limit()) {
+			return false;
+		}
+		for (int k = 0; k < prefix.length; k++) {
+			if (buf.get(i + k) != prefix[k]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// positional reads do not change the channel position, so are safe from worker threads
+	static String readString(FileChannel channel, long from, long to) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate((int)(to - from));
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, from + buf.position()) < 0) {
+				break;
+			}
+		}
+		return new String(buf.array(), 0, buf.position(), StandardCharsets.UTF_8);
+	}
+
+	/** taxon names from translate block in NEXUS header, or null if there is none **/
+	static List<String> parseTranslateBlock(String header) {
+		int i = header.toLowerCase().indexOf("translate");
+		if (i < 0) {
+			return null;
+		}
+		int j = header.indexOf(';', i);
+		List<String> taxa = new ArrayList<>();
+		for (String entry : header.substring(i + "translate".length(), j).split(",")) {
+			String [] strs = entry.trim().split("\\s+", 2);
+			if (strs.length < 2) {
+				continue;
+			}
+			int nr = Integer.parseInt(strs[0]);
+			String name = strs[1].trim();
+			if (name.length() > 1 && (name.charAt(0) == '\'' || name.charAt(0) == '"')) {
+				name = name.substring(1, name.length() - 1);
+			}
+			while (taxa.size() < nr) {
+				taxa.add(null);
+			}
+			taxa.set(nr - 1, name);
+		}
+		return taxa;
+	}
+
+	static Tree parseTree(String line, List<String> taxa) {
+		String newick = line.substring(line.indexOf('('));
+		if (taxa != null) {
+			return new TreeParser(taxa, newick, 1, false);
+		}
+		return new TreeParser(newick, false, false, true, 1);
+	}
+
+	private void initKeys(Tree tree) {
+		nodeCount = tree.getNodeCount();
+		leafNodeCount = tree.getLeafNodeCount();
+		blockCountKey = resolveKey(tree, "blockcount", "blockcount.t:" + partition);
+		blockStartKey = resolveKey(tree, "start", "blockstart", "blockstart.t:" + partition);
+		blockEndKey = resolveKey(tree, "end", "blockend", "blockend.t:" + partition);
+	}
+
+	// first of the keys present in the metadata of a non-root node, or null if there is none
+	private static String resolveKey(Tree tree, String... keys) {
+		for (String key : keys) {
+			for (Node node : tree.getNodesAsArray()) {
+				if (!node.isRoot() && node.getMetaDataNames().contains(key)) {
+					return key;
+				}
+			}
+		}
+		return null;
+	}
+
+	private static double value(Node node, String key, double defaultValue) {
+		if (key == null) {
+			return defaultValue;
+		}
+		Object o = node.getMetaData(key);
+		return o instanceof Number ? ((Number) o).doubleValue() : defaultValue;
+	}
+
+	/**
+	 * fill infectedBy (of length leaf node count) such that infectedBy[i] = j if leaf i is infected by leaf j,
+	 * and -1 if the infector is not sampled.
+	 * @param directOnly if true, only count infections without unsampled hosts in between (block count 0)
+	 */
+	public void calcInfectedBy(int [] infectedBy, boolean directOnly) {
+		InfectorOfLogger.calcInfectedBy(current.parent, current.colourAtBase, current.blockCount, directOnly, infectedBy);
+	}
+
+	/** length of branch above node i, 0 for the root **/
+	public double getLength(int i) {
+		int p = current.parent[i];
+		return p < 0 ? 0 : current.height[p] - current.height[i];
+	}
+
+	/** current tree **/
+	public Tree getTree() {
+		if (current.tree == null) {
+			current.tree = buildTree();
+		}
+		return current.tree;
+	}
+
+	/** index of current tree, counting from 0 for the first tree after burn-in **/
+	public int getSampleNr() {
+		return sampleNr;
+	}
+
+	/** number of the state at which the current tree was logged, or -1 if not known **/
+	public long getState() {
+		return current.state;
+	}
+
+	public int getLeafNodeCount() {
+		return leafNodeCount;
+	}
+
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	public int [] getBlockCount() {
+		return current.blockCount;
+	}
+
+	public double [] getBlockStart() {
+		return current.blockStart;
+	}
+
+	public double [] getBlockEnd() {
+		return current.blockEnd;
+	}
+
+	public double [] getHeight() {
+		return current.height;
+	}
+
+	/** node number of parent, or -1 for the root **/
+	public int [] getParent() {
+		return current.parent;
+	}
+
+	/** colour at base of every branch, where leaf i has colour i **/
+	public int [] getColourAtBase() {
+		return current.colourAtBase;
+	}
+
+	/** false if there is a path between leafs without transmission in current tree **/
+	public boolean hasColouring() {
+		return current.hasColouring;
+	}
+}
@@ -5,10 +5,11 @@ import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.math.MathException;
 import org.apache.commons.math.distribution.GammaDistribution;
@@ -22,14 +23,14 @@ import beast.base.core.Function.Constant;
 import beast.base.core.Input;
 import beast.base.core.Log;
 import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeParser;
 import beast.base.evolution.tree.coalescent.ConstantPopulation;
-import beast.base.evolution.tree.coalescent.PopulationFunction;
 import beast.base.inference.Runnable;
 import beast.base.inference.parameter.IntegerParameter;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.util.Binomial;
-import beast.base.util.HeapSort;
+import beast.base.util.MersenneTwisterFast;
 import beast.base.util.Randomizer;
 import beastfx.app.tools.Application;
 import beastfx.app.util.OutFile;
@@ -57,9 +58,11 @@ public class TransmissionTreeSimulator extends Runnable {
 	final public Input<Function> transmissionConstantInput = new Input<>("transmissionConstant",
 			"constant multiplier of the transmission intensity function", new Constant("1.5"));
 
-	final public Input<OutFile> outputInput = new Input<>("out","output file. Print to stdout if not specified");
-	final public Input<OutFile> traceOutputInput = new Input<>("trace", "trace output file with end time, tree heights and tree lengths, or stdout if not specified", new OutFile("[[none]]"));
-	final public Input<Long> seedInput = new Input<>("seed","random number seed used to initialise the random number generator");
+	final public Input<OutFile> outputInput = new Input<>("out","output file. Print to stdout if not specified. Compressed with gzip if the name ends in .gz");
+	final public Input<OutFile> traceOutputInput = new Input<>("trace", "trace output file with end time, tree heights and tree lengths, or stdout if not specified. "
+			+ "Compressed with gzip if the name ends in .gz", new OutFile("[[none]]"));
+	final public Input<Long> seedInput = new Input<>("seed","random number seed used to initialise the random number generator. "
+			+ "Runs with the same seed give the same trees, but not across versions of the simulator");
 	final public Input<Integer> maxAttemptsInput = new Input<>("maxAttempts",
 			"maximum number of attempts to generate coalescent sub-trees", 1000);
 	final public Input<Integer> taxonCountInput = new Input<>("taxonCount", "generate tree with taxonCount number of taxa. Ignored if negative", -1);
@@ -68,14 +71,83 @@ public class TransmissionTreeSimulator extends Runnable {
 	final public Input<Boolean> directOnlyInput = new Input<>("directOnly", "consider direct infections only, if false block counts are ignored", true);
 	final public Input<Boolean> quietInput = new Input<>("quiet", "suppress some screen output", false);
 	final public Input<Boolean> calcLogPInput = new Input<>("calcLogP", "calculate transmission likelihood for generated trees", false);
+	final public Input<Boolean> pruneInput = new Input<>("prune", "simulate large outbreaks with bounded memory by processing hosts one at a time and "
+			+ "removing infection lineages as soon as they cannot lead to a sampled host", false);
+	final public Input<Integer> threadsInput = new Input<>("threads", "number of threads used to simulate trees. Every tree is simulated "
+			+ "with its own random number stream derived from seed, so results do not depend on the number of threads", 1);
 
-	private Node root;
-	private Map<Node, Integer> colourMap;
+	// root of the binary tree of the last simulation: first node with two included children
+	private int root;
 	private int nodeCount;
+	// number of sampled hosts in last call to runOnce
+	private int leafCount;
 	private double logP;
 	
+	// reusable arrays for simulating an outbreak in runOnce, indexed by host number:
+	// time of infection, time of sampling (-1 if not sampled), first infectee and number of infectees
+	// (infectees of a host have consecutive numbers), processing order, stack, and node of infection
+	private int hostCount;
+	private double [] hostHeight = new double[16];
+	private double [] hostSampleHeight = new double[16];
+	private int [] hostFirstInfectee = new int[16];
+	private int [] hostInfecteeCount = new int[16];
+	private int [] hostOrder = new int[16];
+	private int [] hostStack = new int[16];
+	private int [] hostNode = new int[16];
+	// nodes of simulated tree, including those that do not lead to a sample,
+	// with parent, children (-1 if none), colour and leaf number (0 if not a leaf)
+	private int simNodeCount;
+	private double [] nodeHeight = new double[32];
+	private int [] nodeParent = new int[32];
+	private int [] nodeLeft = new int[32];
+	private int [] nodeRight = new int[32];
+	private int [] nodeColour = new int[32];
+	private int [] nodeLeafNr = new int[32];
+	private boolean [] nodeIncluded = new boolean[32];
+	// scratch space for traversing the simulated tree
+	private int [] nodeStack = new int[32];
+	private int [] nodeOrder = new int[32];
+	private int [] binaryNr = new int[32];
+	// branch above a node of the binary tree, as determined by climb()
+	private double branchLength, branchBlockStart, branchBlockEnd;
+	private int branchBlockCount;
+	// lineages of within-host phylogeny, and work space for coalescent
+	private int [] lineages = new int[16];
+	private int [] work = new int[16];
+	// nodes created in current attempt to simulate a within-host phylogeny
+	private int [] attemptNodes = new int[16];
+	private int attemptNodeCount;
+	// nodes that were removed, and can be reused for new nodes
+	private int [] freeNodes = new int[16];
+	private int freeNodeCount;
+	// time of sampling drawn by simulateHost, or -1 if the host is not sampled
+	private double sampleHeight;
+	private double [] times = new double[16];
 	private final boolean debug = false;
 	private String newick0;
+	// random number stream of this simulator, or null if Randomizer is used
+	private MersenneTwisterFast random;
+	// likelihoods used by calcLogP, one per tree size, that are reused for all trees of that size
+	private Map<Integer, TransmissionTreeLikelihood> likelihoods = new HashMap<>();
+	private ConstantPopulation likelihoodPopFun;
+	private GammaHazardFunction transmissionHazard, sampleHazard;
+	private RealParameter likelihoodEndTime, likelihoodOrigin;
+
+	// tree simulated by simulateTree with statistics for output
+	private static class SimulatedTree {
+		String newick;
+		double logP;
+		int nodeCount;
+		int taxonCount;
+		int infectionCount;
+		// height of youngest leaf, tree height, tree length
+		double h, height, length;
+		// binary tree for calcLogP: parent (-1 for root), height and block parameters of each node
+		int [] parent;
+		double [] nodeHeight;
+		int [] blockCount;
+		double [] blockStart, blockEnd;
+	}
 	
 	@Override
 	public void initAndValidate() {
@@ -93,12 +165,12 @@ public class TransmissionTreeSimulator extends Runnable {
 		}
 		PrintStream out = System.out;
 		if (outputInput.get() != null) {
-			out = new PrintStream(outputInput.get());
+			out = BackgroundOutputStream.newPrintStream(outputInput.get());
 		}
 		PrintStream traceout = System.out;
 		if (traceOutputInput.get() != null && !traceOutputInput.get().getName().equals("[[none]]")) {
 			Log.warning("Writing to file " + traceOutputInput.get().getPath());
-			traceout = new PrintStream(traceOutputInput.get());
+			traceout = BackgroundOutputStream.newPrintStream(traceOutputInput.get());
 		}
     	traceout.print("Sample\t");
     	boolean printTaxaInTrace = false;
@@ -116,89 +188,42 @@ public class TransmissionTreeSimulator extends Runnable {
 		PrintStream out0 = debug? new PrintStream("/tmp/out0.nwk") : null;
 
     	
-    	long attempts = 0;
-		for (int i = 0; i < treeCountInput.get(); i++) {
-			int k;
-			double logP;
-			do {
-				this.logP = 0;
-				logP = runOnce(maxTaxonCount);
-				k = root.getAllLeafNodes().size();
-				if (!taxonCounts.containsKey(k)) {
-					taxonCounts.put(k, 0);
-				}
-				taxonCounts.put(k, taxonCounts.get(k) + 1);
-				attempts++;
-				if (attempts % 100000 == 0) {
-					// reportAttempts(taxonCounts, );
+		// every tree gets its own random number stream, whether run serially or in parallel
+		long seed = seedInput.get() != null ? seedInput.get() : Randomizer.nextLong();
+		int threads = threadsInput.get();
+		if (threads > 1) {
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			try {
+				// simulate in batches, and output trees in order
+				int batchSize = threads * 16;
+				for (int start = 0; start < treeCountInput.get(); start += batchSize) {
+					List<Future<SimulatedTree>> futures = new ArrayList<>();
+					List<Map<Integer, Integer>> batchTaxonCounts = new ArrayList<>();
+					for (int i = start; i < Math.min(start + batchSize, treeCountInput.get()); i++) {
+						TransmissionTreeSimulator worker = newWorker(streamSeed(seed, i));
+						Map<Integer, Integer> workerTaxonCounts = new HashMap<>();
+						batchTaxonCounts.add(workerTaxonCounts);
+						final int maxTaxonCount0 = maxTaxonCount;
+						futures.add(executor.submit(() -> worker.simulateTree(maxTaxonCount0, taxonCount, workerTaxonCounts)));
+					}
+					for (int j = 0; j < futures.size(); j++) {
+						SimulatedTree tree = futures.get(j).get();
+						for (Map.Entry<Integer, Integer> e : batchTaxonCounts.get(j).entrySet()) {
+							taxonCounts.merge(e.getKey(), e.getValue(), Integer::sum);
+						}
+						output(start + j, tree, out, traceout, infectionCounts, printTaxaInTrace, out0);
+					}
 				}
-			} while (Double.isInfinite(logP) || taxonCount > 0 && taxonCount != k);
-
-			System.out.println(i+"\t" + nodeCount + "\t" + logP);
-			
-			// convert to binary tree
-			while (root.getChildCount() == 1) {
-				root = root.getChild(0);
-			}
-			root.setParent(null);
-			String newick = toNewick(root);
-			
-			int infectionCount = infectionCount(root);
-			if (!infectionCounts.containsKey(k)) {
-				infectionCounts.put(k, 0);
+			} finally {
+				executor.shutdown();
 			}
-			infectionCounts.put(k, infectionCounts.get(k) + infectionCount);
-
-			// for debugging
-			double h = root.getHeight();
-			for (Node node : root.getAllLeafNodes()) {
-				h = Math.min(h,  node.getHeight());
-			}
-			// System.err.println(toShortNewick(root, colourMap));
-		
-			if ((i+1) % 10 == 0) {
-				if ((i+1) % 100 == 0) {
-					System.err.print("|");
-				} else {
-					System.err.print(".");
-				}
+		} else {
+			random = new MersenneTwisterFast();
+			for (int i = 0; i < treeCountInput.get(); i++) {
+				random.setSeed(streamSeed(seed, i));
+				SimulatedTree tree = simulateTree(maxTaxonCount, taxonCount, taxonCounts);
+				output(i, tree, out, traceout, infectionCounts, printTaxaInTrace, out0);
 			}
-			out.println(newick);
-	    	traceout.print(i +"\t");
-	    	
-
-			if (printTaxaInTrace && taxonCount > 0) {
-				TreeParser tree = new TreeParser(newick);
-				IntegerParameter blockCount = new IntegerParameter();
-				blockCount.initByName("dimension", taxonCount*2+1, "value", "-1");
-				for (int j = 0; j < tree.getNodeCount(); j++) {
-					Node node = tree.getNode(j);
-					Object o = node.getMetaData("blockcount");
-					if (o != null) {
-						blockCount.setValue(j, (int)(double)o);
-					}
-				}
-				int [] colourAtBase = new int[taxonCount*2-1];
-				ColourProvider.getColour(tree.getRoot(), blockCount, tree.getNodeCount(), colourAtBase);
-				
-				int [] infectedBy = new int[taxonCount];
-				Arrays.fill(infectedBy, -1);
-				collectInfectedBy(root, infectedBy, taxonCount, colourAtBase, blockCount);
-	    	
-	    		for (int j = 0; j < taxonCount; j++) {
-	    			traceout.printf(infectedBy[j] + "\t");
-	    		}
-			}
-			double height = (root.getHeight() - h);
-			double origin = endTimeInput.get().getArrayValue() - root.getHeight() + height;
-			double logP2 = calcLogPInput.get() ? calcLogP(newick, h, origin) : 0;
-	    	traceout.println((-h) + "\t" + height + "\t" + length(root) + "\t" + (endTimeInput.get().getArrayValue()-h) + "\t" + logP +
-	    			(calcLogPInput.get() ? "\t" + logP2 : "" ));
-			
-	    	if (debug && Math.abs(logP-logP2) > 0.01) {
-	    		out0.println(newick0);
-	    	}
-	    	
 		}
 		if (debug) {
 			out0.close();
@@ -216,62 +241,270 @@ public class TransmissionTreeSimulator extends Runnable {
 		Log.warning("Done");
 	}
 		
-	private double calcLogP(String newick, double h, double origin) {
-		TreeParser tree = new TreeParser(newick);
+	// simulate trees until one is found that satisfies taxonCount and maxTaxonCount
+	private SimulatedTree simulateTree(int maxTaxonCount, int taxonCount, Map<Integer, Integer> taxonCounts) throws MathException {
+		int k;
+		double logP;
+		do {
+			this.logP = 0;
+			int limit = taxonCount > 0 ? Math.min(taxonCount, maxTaxonCount) : maxTaxonCount;
+			logP = pruneInput.get() ? runOncePruned(limit) : runOnce(limit);
+			k = leafCount;
+			taxonCounts.merge(k, 1, Integer::sum);
+		} while (Double.isInfinite(logP) || taxonCount > 0 && taxonCount != k);
 
-		int taxonCount = tree.getLeafNodeCount();
-		
-		IntegerParameter blockCount = new IntegerParameter();
-		RealParameter blockStart = new RealParameter();
-		RealParameter blockEnd = new RealParameter();
-		blockCount.initByName("dimension", taxonCount*2-1, "value", "-1", "lower", -1, "upper", 1000);
-		blockStart.initByName("dimension", taxonCount*2-2, "value", "0.5", "lower", 0.0, "upper", 1.0);
-		blockEnd.initByName(  "dimension", taxonCount*2-2, "value", "0.5", "lower", 0.0, "upper", 1.0);
+		SimulatedTree tree = new SimulatedTree();
+		tree.newick = toNewick();
+		tree.logP = logP;
+		tree.nodeCount = nodeCount;
+		tree.taxonCount = k;
+		// infections, youngest leaf and tree length from branches of the binary tree
+		int n = binaryPostOrder();
+		int infectionCount = 0;
+		double h = nodeHeight[root];
+		double length = 0;
+		for (int i = 0; i < n; i++) {
+			int node = nodeOrder[i];
+			climb(node);
+			infectionCount += branchBlockCount + 1;
+			length += branchLength;
+			if (nodeLeafNr[node] > 0) {
+				h = Math.min(h, nodeHeight[node]);
+			}
+		}
+		tree.infectionCount = infectionCount;
+		tree.h = h;
+		tree.height = nodeHeight[root] - h;
+		tree.length = length;
+		if (calcLogPInput.get()) {
+			int nodeCount = 2 * k - 1;
+			tree.parent = new int[nodeCount];
+			tree.nodeHeight = new double[nodeCount];
+			tree.blockCount = new int[nodeCount];
+			tree.blockStart = new double[nodeCount];
+			tree.blockEnd = new double[nodeCount];
+			int rootNr = collectBranches(tree, k);
+			tree.parent[rootNr] = -1;
+			// heights relative to youngest leaf, as for trees parsed from newick
+			for (int i = 0; i < nodeCount; i++) {
+				tree.nodeHeight[i] -= h;
+			}
+		}
+		return tree;
+	}
+
+	// print tree and trace line for tree number i
+	private void output(int i, SimulatedTree simulated, PrintStream out, PrintStream traceout, Map<Integer, Integer> infectionCounts, 
+			boolean printTaxaInTrace, PrintStream out0) {
+		int taxonCount = taxonCountInput.get();
+		String newick = simulated.newick;
+		System.out.println(i+"\t" + simulated.nodeCount + "\t" + simulated.logP);
+
+		infectionCounts.merge(simulated.taxonCount, simulated.infectionCount, Integer::sum);
+	
+		if ((i+1) % 10 == 0) {
+			if ((i+1) % 100 == 0) {
+				System.err.print("|");
+			} else {
+				System.err.print(".");
+			}
+		}
+		out.println(newick);
+    	traceout.print(i +"\t");
+
+		if (printTaxaInTrace && taxonCount > 0) {
+			TreeParser tree = new TreeParser(newick);
+			IntegerParameter blockCount = new IntegerParameter();
+			blockCount.initByName("dimension", taxonCount*2+1, "value", "-1");
+			for (int j = 0; j < tree.getNodeCount(); j++) {
+				Node node = tree.getNode(j);
+				Object o = node.getMetaData("blockcount");
+				if (o != null) {
+					blockCount.setValue(j, (int)(double)o);
+				}
+			}
+			int [] colourAtBase = new int[taxonCount*2-1];
+			ColourProvider.getColour(tree.getRoot(), blockCount, tree.getNodeCount(), colourAtBase);
+			
+			int [] infectedBy = new int[taxonCount];
+			Arrays.fill(infectedBy, -1);
+			collectInfectedBy(tree.getRoot(), infectedBy, taxonCount, colourAtBase, blockCount);
+    	
+    		for (int j = 0; j < taxonCount; j++) {
+    			traceout.printf(infectedBy[j] + "\t");
+    		}
+		}
+		double h = simulated.h;
+		double height = simulated.height;
+		double origin = endTimeInput.get().getArrayValue() - h;
+		double logP2 = calcLogPInput.get() ? calcLogP(simulated, h, origin) : 0;
+    	traceout.println((-h) + "\t" + height + "\t" + simulated.length + "\t" + (endTimeInput.get().getArrayValue()-h) + "\t" + simulated.logP +
+    			(calcLogPInput.get() ? "\t" + logP2 : "" ));
 		
-		for (int j = 0; j < tree.getNodeCount(); j++) {
-			Node node = tree.getNode(j);
-			Object o = node.getMetaData("blockcount");
-			if (o != null) {
-				blockCount.setValue(j, (int)(double)o);
+    	if (debug && Math.abs(simulated.logP-logP2) > 0.01) {
+    		out0.println(newick0);
+    	}
+	}
+
+	// simulator with same settings as this one, but with its own random number stream
+	private TransmissionTreeSimulator newWorker(long seed) {
+		TransmissionTreeSimulator worker = new TransmissionTreeSimulator();
+		for (Input<?> input : listInputs()) {
+			if (input.get() != null) {
+				worker.setInputValue(input.getName(), input.get());
 			}
-			o = node.getMetaData("blockstart");
-			if (o != null) {
-				blockStart.setValue(j, (double)o);
+		}
+		worker.setInputValue("quiet", true);
+		worker.random = new MersenneTwisterFast(seed);
+		return worker;
+	}
+
+	// seed of random number stream for tree i, mixed (SplitMix64) so that streams of consecutive trees are independent
+	private static long streamSeed(long seed, int i) {
+		long z = seed + (i + 1) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	private double nextDouble() {
+		return random != null ? random.nextDouble() : Randomizer.nextDouble();
+	}
+
+	private int nextInt(int n) {
+		return random != null ? random.nextInt(n) : Randomizer.nextInt(n);
+	}
+
+	// waiting time until next coalescent event among lineageCount lineages in a constant population of size popSize,
+	// as PopulationFunction.Utils.getSimulatedInterval, but using the random number stream of this simulator
+	private double getSimulatedInterval(double popSize, int lineageCount) {
+		return -Math.log(nextDouble()) / Binomial.choose2(lineageCount) * popSize;
+	}
+
+
+	private double calcLogP(SimulatedTree simulated, double h, double origin) {
+		int nodeCount = simulated.parent.length;
+		TransmissionTreeLikelihood tl = likelihoods.get(nodeCount);
+		if (tl == null) {
+			tl = newLikelihood(simulated);
+			likelihoods.put(nodeCount, tl);
+		} else {
+			// rebuild tree in place
+			Tree tree = (Tree) tl.treeInput.get();
+			for (int i = 0; i < nodeCount; i++) {
+				tree.getNode(i).removeAllChildren(false);
 			}
-			o = node.getMetaData("blockend");
-			if (o != null) {
-				blockEnd.setValue(j, (double)o);
+			for (int i = 0; i < nodeCount; i++) {
+				Node node = tree.getNode(i);
+				node.setHeight(simulated.nodeHeight[i]);
+				if (simulated.parent[i] >= 0) {
+					tree.getNode(simulated.parent[i]).addChild(node);
+				}
 			}
 		}
 		
+		IntegerParameter blockCount = tl.blockCountInput.get();
+		RealParameter blockStart = tl.blockStartFractionInput.get();
+		RealParameter blockEnd = tl.blockEndFractionInput.get();
+		for (int i = 0; i < nodeCount; i++) {
+			blockCount.setValue(i, simulated.blockCount[i]);
+			if (i < nodeCount - 1) {
+				blockStart.setValue(i, simulated.blockStart[i]);
+				blockEnd.setValue(i, simulated.blockEnd[i]);
+			}
+		}
+		likelihoodEndTime.setValue(h - endTimeInput.get().getArrayValue());
+		likelihoodOrigin.setValue(origin);
 		
-		ConstantPopulation popFun = new ConstantPopulation();
-		popFun.initByName("popSize", popSizeInput.get().getArrayValue() + "");
-				
-		GammaHazardFunction transmissionHazard = new GammaHazardFunction();
-		transmissionHazard.initByName("shape", transmissionShapeInput.get().getArrayValue() + "", 
-				"rate", transmissionRateInput.get().getArrayValue() + "",
-				"C", transmissionConstantInput.get().getArrayValue() + "");
-		GammaHazardFunction sampleHazard = new GammaHazardFunction(); 
-		sampleHazard.initByName("shape", sampleShapeInput.get().getArrayValue() + "", 
-				"rate", sampleRateInput.get().getArrayValue() + "",
-				"C", sampleConstantInput.get().getArrayValue() + "");
+		// force recalculation of colouring, since there is no MCMC step to mark it dirty
+		tl.calcColourAtBase();
+		double logP = tl.calculateLogP();
+		return logP;
+	}
+
+	// likelihood for trees with as many nodes as simulated, 
+	// sharing population model, hazards, end time and origin with other likelihoods
+	private TransmissionTreeLikelihood newLikelihood(SimulatedTree simulated) {
+		if (likelihoodPopFun == null) {
+			likelihoodPopFun = new ConstantPopulation();
+			likelihoodPopFun.initByName("popSize", popSizeInput.get().getArrayValue() + "");
+					
+			transmissionHazard = new GammaHazardFunction();
+			transmissionHazard.initByName("shape", transmissionShapeInput.get().getArrayValue() + "", 
+					"rate", transmissionRateInput.get().getArrayValue() + "",
+					"C", transmissionConstantInput.get().getArrayValue() + "");
+			sampleHazard = new GammaHazardFunction(); 
+			sampleHazard.initByName("shape", sampleShapeInput.get().getArrayValue() + "", 
+					"rate", sampleRateInput.get().getArrayValue() + "",
+					"C", sampleConstantInput.get().getArrayValue() + "");
+			likelihoodEndTime = new RealParameter("0.0");
+			likelihoodOrigin = new RealParameter("0.0");
+		}
+
+		int nodeCount = simulated.parent.length;
+		int taxonCount = (nodeCount + 1) / 2;
+		Node [] nodes = new Node[nodeCount];
+		for (int i = 0; i < nodeCount; i++) {
+			nodes[i] = new Node();
+			nodes[i].setNr(i);
+			nodes[i].setHeight(simulated.nodeHeight[i]);
+			if (i < taxonCount) {
+				nodes[i].setID("t" + format(i + 1));
+			}
+		}
+		for (int i = 0; i < nodeCount; i++) {
+			if (simulated.parent[i] >= 0) {
+				nodes[simulated.parent[i]].addChild(nodes[i]);
+			}
+		}
+		Tree tree = new Tree(nodes[nodeCount - 1]);
+
+		IntegerParameter blockCount = new IntegerParameter();
+		RealParameter blockStart = new RealParameter();
+		RealParameter blockEnd = new RealParameter();
+		blockCount.initByName("dimension", nodeCount, "value", "-1", "lower", -1, "upper", 1000);
+		blockStart.initByName("dimension", Math.max(nodeCount - 1, 1), "value", "0.5", "lower", 0.0, "upper", 1.0);
+		blockEnd.initByName(  "dimension", Math.max(nodeCount - 1, 1), "value", "0.5", "lower", 0.0, "upper", 1.0);
 		
 		TransmissionTreeLikelihood tl = new TransmissionTreeLikelihood();
 		tl.initByName("tree", tree, 
 				"blockstart", blockStart,
 				"blockend", blockEnd,
 				"blockcount", blockCount,
-				"populationModel", popFun, 
-				"endTime", h-endTimeInput.get().getArrayValue() + "",
-				"origin", origin + "",
+				"populationModel", likelihoodPopFun, 
+				"endTime", likelihoodEndTime,
+				"origin", likelihoodOrigin,
 				"samplingHazard", sampleHazard,
 				"transmissionHazard", transmissionHazard,
 				"includeCoalescent", true
 				);
-		
-		double logP = tl.calculateLogP();
-		return logP;
+		return tl;
+	}
+
+	// record binary tree in simulated for calcLogP, numbering leafs by leaf number
+	// and internal nodes in post-order from firstInternalNr, as TreeParser would, with block parameters as in toNewick
+	// returns number of root
+	private int collectBranches(SimulatedTree simulated, int firstInternalNr) {
+		int n = binaryPostOrder();
+		int nextInternalNr = firstInternalNr;
+		for (int i = 0; i < n; i++) {
+			int node = nodeOrder[i];
+			int nr;
+			if (nodeLeafNr[node] > 0) {
+				nr = nodeLeafNr[node] - 1;
+			} else {
+				nr = nextInternalNr++;
+				simulated.parent[binaryNr[binaryChild(nodeLeft[node])]] = nr;
+				simulated.parent[binaryNr[binaryChild(nodeRight[node])]] = nr;
+			}
+			binaryNr[node] = nr;
+			simulated.nodeHeight[nr] = nodeHeight[node];
+			climb(node);
+			simulated.blockCount[nr] = branchBlockCount;
+			simulated.blockStart[nr] = branchBlockCount >= 0 ? branchBlockStart / branchLength : 0.5;
+			simulated.blockEnd[nr] = branchBlockCount >= 0 ? branchBlockEnd / branchLength : 0.5;
+		}
+		return binaryNr[root];
 	}
 
 	private void reportAttempts(Map<Integer, Integer> taxonCounts, Map<Integer, Integer> infectionCounts) {
@@ -333,17 +566,6 @@ public class TransmissionTreeSimulator extends Runnable {
 		}
 	}
 
-	private double length(Node node) {
-		double length = 0;
-		for (Node child : node.getChildren()) {
-			length += length(child);
-		}
-		if (!node.isRoot()) {
-			length += node.getLength();
-		}
-		return length;
-	}
-
 	private double runOnce(int maxTaxonCount) throws MathException {	
 		double endTime = endTimeInput.get().getArrayValue();
 		double popSize = popSizeInput.get().getArrayValue();
@@ -356,422 +578,626 @@ public class TransmissionTreeSimulator extends Runnable {
 		double transmissionRate = transmissionRateInput.get().getArrayValue();
 		double transmissionConstant = transmissionConstantInput.get().getArrayValue();
 
-		root = new Node();
-		root.setHeight(endTime);
-		List<Node> nodes = new ArrayList<>();
-		nodes.add(root);
-
 		PoissonDistribution poisson = new PoissonDistributionImpl(transmissionConstant);
 		GammaDistribution sampleIntensity = new GammaDistributionImpl(sampleShape, 1.0 / sampleRate);
 		GammaDistribution transmissionIntensity = new GammaDistributionImpl(transmissionShape, 1.0 / transmissionRate);
-		ConstantPopulation popFun = new ConstantPopulation();
-		popFun.initByName("popSize", popSize + "");
+		double [] logPCoalescent = new double[1];
 
-		List<Node> leafs = new ArrayList<>();
-		int colour = 0;
-		colourMap = new HashMap<>();
-		colourMap.put(root, colour);
-		
-		this.logP = 0;
-		while (nodes.size() > 0) {
-			// continue with last node
-			Node node = nodes.remove(nodes.size() - 1);
-
-			// 1. draw number of events
-			double r = Randomizer.nextDouble();
-			int n = poisson.inverseCumulativeProbability(r);
-			addToLogP("#events", Math.log(poisson.probability(n)));
-					
-			// 2. draw whether colour will be sampled
-			boolean sample = (Randomizer.nextDouble() < sampleConstant);
-			if (sample) {
-				addToLogP("SampleP", Math.log(sampleConstant));
-			} else {
-				addToLogP("SampleP", Math.log(1.0 - sampleConstant));
-			}
-			
-			
-			// 3. simulate the time of sampling:
-			// Note: do not need multiply by sampleConstant
-			r = Randomizer.nextDouble();
-			double sampletime = !sample ? 0
-					: node.getHeight() - sampleIntensity.inverseCumulativeProbability(r);
-			addToLogP("SampleTime", !sample ? 0 : sampleIntensity.logDensity(node.getHeight() - sampletime));
-			if (sampletime < 0) {
-				sample = false;
-			}
-
-			// 4. Simulate the times when node infects the new infectees
-			double[] times = new double[n];
-			for (int i = 0; i < n; i++) {
-				// Note: do not need multiply by transmissionConstant
-				r = Randomizer.nextDouble();
-				times[i] = node.getHeight()
-						- transmissionIntensity.inverseCumulativeProbability(r);
-				addToLogP("TransTime", transmissionIntensity.logDensity(node.getHeight()-times[i]));
-			}
-			Arrays.sort(times);
-			// remove times that are invalid: after study time, or after sample time (if any)
-			while (n > 0 && (times[n - 1] < 0 || times[n - 1] < sampletime)) {
-				n--;
-			}
-			
-			List<Node> current = new ArrayList<>();
-			// create leaf node
-			if (sample) {
-				Node leaf = new Node();
-				colourMap.put(leaf, colour);
-				leaf.setHeight(sampletime);
-				leafs.add(leaf);
-				current.add(leaf);
-				leaf.setID("t" + format(leafs.size()));
-				if (leafs.size() > maxTaxonCount) {
-					if (!quietInput.get()) {
-						System.err.print("x");
-					}
-					logP = Double.NEGATIVE_INFINITY;
-					//runOnce(maxTaxonCount);
-					addToLogP("\nrunOnce(too many taxa)", logP);
+		// restart with a new outbreak if a within-host phylogeny cannot be simulated
+		while (true) {
+			this.logP = 0;
+			leafCount = 0;
+	
+			// Stage 1: simulate the outbreak on host level only, so that it can be abandoned
+			// as soon as there are too many sampled hosts, before any within-host phylogeny is simulated.
+			// Hosts are numbered in order of creation, and infectees of a host get consecutive numbers.
+			// hostOrder contains hosts in the (depth first) order they are processed, 
+			// and the position of a host in hostOrder is its colour.
+			hostCount = 1;
+			hostHeight[0] = endTime;
+			int stackSize = 0;
+			hostStack[stackSize++] = 0;
+			int processed = 0;
+			while (stackSize > 0) {
+				// continue with last host
+				int host = hostStack[--stackSize];
+				hostOrder[processed++] = host;
+	
+				int n = simulateHost(hostHeight[host], poisson, sampleConstant, sampleIntensity, transmissionIntensity);
+				hostSampleHeight[host] = sampleHeight;
+				if (sampleHeight >= 0 && tooManyTaxa(maxTaxonCount)) {
 					return logP;
 				}
+				ensureHostCapacity(hostCount + n);
+				hostFirstInfectee[host] = hostCount;
+				hostInfecteeCount[host] = n;
+				for (int i = 0; i < n; i++) {
+					hostHeight[hostCount] = times[i];
+					hostStack[stackSize++] = hostCount;
+					hostCount++;
+				}
+			}
+	
+			// Stage 2: simulate within-host phylogenies and connect them
+			simNodeCount = 0;
+			freeNodeCount = 0;
+			hostNode[0] = newNode(endTime, 0);
+			int leafNr = 0;
+			boolean success = true;
+			for (int colour = 0; colour < hostCount && success; colour++) {
+				int host = hostOrder[colour];
+	
+				int lineageCount = 0;
+				int n = hostInfecteeCount[host];
+				ensureLineageCapacity(n + 1);
+				// create leaf node
+				double sampletime = hostSampleHeight[host];
+				boolean sample = sampletime >= 0;
+				if (sample) {
+					int leaf = newNode(sampletime, colour);
+					nodeLeafNr[leaf] = ++leafNr;
+					lineages[lineageCount++] = leaf;
+				}
+				// create internal (infection) nodes
+				int first = hostFirstInfectee[host];
+				for (int i = 0; i < n; i++) {
+					int infectee = newNode(hostHeight[first + i], colour);
+					hostNode[first + i] = infectee;
+					lineages[lineageCount++] = infectee;
+				}
+				
+				// 5. Sampling a within-host phylogeny
+				double currentHeight = sample ? sampletime : (n > 0 ? hostHeight[first] : 0);
+				success = simulateWithinHost(hostNode[host], colour, lineageCount, currentHeight, popSize, logPCoalescent);
 			}
-			// create internal (infection) nodes
-			for (int i = 0; i < n; i++) {
-				Node infectee = new Node();
-				colourMap.put(infectee, colour);
-				infectee.setHeight(times[i]);
-				nodes.add(infectee);
-				current.add(infectee);
+			if (success) {
+				break;
 			}
+		}
 
-			
-			// 5. Sampling a within-host phylogeny
-			double currentHeight = sample ? sampletime : (n > 0 ? times[0] : 0);
-			
-			double [] logPCoalescent = new double[1];
-			Node fragment = simulateCoalescent(current, popFun, currentHeight, node.getHeight(), maxAttemptsInput.get(), logPCoalescent);
-			addToLogP("Coalescent:", logPCoalescent[0]);
-			if (fragment == null) {
-				if (!quietInput.get()) {
-					System.err.print("c");
+		materialiseTree();
+		return logP;
+	}
+
+	/**
+	 * Simulates an outbreak like runOnce, but for large outbreaks with few sampled hosts:
+	 * every host is processed completely, including its within-host phylogeny, when it is 
+	 * taken from the stack of infected hosts. Nodes that cannot lead to a sampled host any more 
+	 * are removed straight away, so memory is bounded by the number of nodes leading to 
+	 * sampled hosts plus the number of hosts waiting on the stack, not by the size of the outbreak.
+	 * Hosts are processed in the same (depth first) order as runOnce, but random numbers are
+	 * drawn in a different order, so the same seed gives different trees.
+	 */
+	private double runOncePruned(int maxTaxonCount) throws MathException {	
+		double endTime = endTimeInput.get().getArrayValue();
+		double popSize = popSizeInput.get().getArrayValue();
+
+		double sampleShape = sampleShapeInput.get().getArrayValue();
+		double sampleRate = sampleRateInput.get().getArrayValue();
+		double sampleConstant = sampleConstantInput.get().getArrayValue();
+
+		double transmissionShape = transmissionShapeInput.get().getArrayValue();
+		double transmissionRate = transmissionRateInput.get().getArrayValue();
+		double transmissionConstant = transmissionConstantInput.get().getArrayValue();
+
+		PoissonDistribution poisson = new PoissonDistributionImpl(transmissionConstant);
+		GammaDistribution sampleIntensity = new GammaDistributionImpl(sampleShape, 1.0 / sampleRate);
+		GammaDistribution transmissionIntensity = new GammaDistributionImpl(transmissionShape, 1.0 / transmissionRate);
+		double [] logPCoalescent = new double[1];
+
+		// restart with a new outbreak if a within-host phylogeny cannot be simulated
+		boolean success = false;
+		while (!success) {
+			this.logP = 0;
+			leafCount = 0;
+			simNodeCount = 0;
+			freeNodeCount = 0;
+
+			// stack of infected hosts waiting to be processed, 
+			// with time of infection in hostHeight and infection node in hostNode
+			int stackSize = 0;
+			hostHeight[stackSize] = endTime;
+			hostNode[stackSize] = newNode(endTime, 0);
+			stackSize++;
+			int colour = 0;
+			int leafNr = 0;
+			success = true;
+			while (stackSize > 0 && success) {
+				// continue with last host
+				stackSize--;
+				double height = hostHeight[stackSize];
+				int node = hostNode[stackSize];
+				
+				int n = simulateHost(height, poisson, sampleConstant, sampleIntensity, transmissionIntensity);
+				boolean sample = sampleHeight >= 0;
+				if (sample && tooManyTaxa(maxTaxonCount)) {
+					return logP;
+				}
+
+				int lineageCount = 0;
+				ensureLineageCapacity(n + 1);
+				if (sample) {
+					int leaf = newNode(sampleHeight, colour);
+					nodeLeafNr[leaf] = ++leafNr;
+					lineages[lineageCount++] = leaf;
 				}
-				addToLogP("runOnce2", runOnce(maxTaxonCount));
-				return logP;
+				ensureHostCapacity(stackSize + n);
+				for (int i = 0; i < n; i++) {
+					int infectee = newNode(times[i], colour);
+					lineages[lineageCount++] = infectee;
+					hostHeight[stackSize] = times[i];
+					hostNode[stackSize] = infectee;
+					stackSize++;
+				}
+
+				double currentHeight = sample ? sampleHeight : (n > 0 ? times[0] : 0);
+				success = simulateWithinHost(node, colour, lineageCount, currentHeight, popSize, logPCoalescent);
+				if (success && !sample && n == 0) {
+					// host does not lead to any sample
+					prune(nodeLeft[node]);
+				}
+				colour++;
 			}
-			// connect to node
-			node.addChild(fragment);
+		}
 
-			colourFragment(fragment, colour, colourMap);
-			
-			colour++;
+		materialiseTree();
+		return logP;
+	}
+
+	/**
+	 * draw number of infectees, sampling and infection times of a host infected at height
+	 * sets sampleHeight to the time of sampling, or -1 if the host is not sampled
+	 * @return number of infectees n with valid infection times, which are in times[0...n) in increasing order
+	 */
+	private int simulateHost(double height, PoissonDistribution poisson, double sampleConstant,
+			GammaDistribution sampleIntensity, GammaDistribution transmissionIntensity) throws MathException {
+		// 1. draw number of events
+		double r = nextDouble();
+		int n = poisson.inverseCumulativeProbability(r);
+		addToLogP("#events", Math.log(poisson.probability(n)));
+				
+		// 2. draw whether colour will be sampled
+		boolean sample = (nextDouble() < sampleConstant);
+		if (sample) {
+			addToLogP("SampleP", Math.log(sampleConstant));
+		} else {
+			addToLogP("SampleP", Math.log(1.0 - sampleConstant));
 		}
 		
-		
-		// find all nodes to include in tree
-		Set<Node> includedNodes = new HashSet<>();
-		for (Node node : leafs) {
-			while (node != root) {
-				includedNodes.add(node);
-				node = node.getParent();
-			}
+		// 3. simulate the time of sampling:
+		// Note: do not need multiply by sampleConstant
+		r = nextDouble();
+		double sampletime = !sample ? 0
+				: height - sampleIntensity.inverseCumulativeProbability(r);
+		addToLogP("SampleTime", !sample ? 0 : sampleIntensity.logDensity(height - sampletime));
+		if (sampletime < 0) {
+			sample = false;
 		}
-		
-		if (debug) {
-			newick0 = root.toNewick();
+
+		// 4. Simulate the times when node infects the new infectees
+		if (times.length < n) {
+			times = new double[n * 2];
 		}
-		// remove nodes not included from tree
-		traverse(root, includedNodes);
-		nodeCount = getNodeCount(root);
-		return logP;
+		for (int i = 0; i < n; i++) {
+			// Note: do not need multiply by transmissionConstant
+			r = nextDouble();
+			times[i] = height - transmissionIntensity.inverseCumulativeProbability(r);
+			addToLogP("TransTime", transmissionIntensity.logDensity(height - times[i]));
+		}
+		Arrays.sort(times, 0, n);
+		// remove times that are invalid: after study time, or after sample time (if any)
+		while (n > 0 && (times[n - 1] < 0 || times[n - 1] < sampletime)) {
+			n--;
+		}
+		sampleHeight = sample ? sampletime : -1;
+		return n;
 	}
 
-	private void addToLogP(String caller, double log) {
-//		System.err.println(caller + " " + log);
-		logP += log;
+	// count sampled host, and return true if there are more than maxTaxonCount sampled hosts
+	private boolean tooManyTaxa(int maxTaxonCount) {
+		leafCount++;
+		if (leafCount > maxTaxonCount) {
+			// cannot reach requested number of taxa any more
+			if (!quietInput.get()) {
+				System.err.print("x");
+			}
+			logP = Double.NEGATIVE_INFINITY;
+			addToLogP("\nrunOnce(too many taxa)", logP);
+			return true;
+		}
+		return false;
 	}
 
-	private int getNodeCount(Node node) {
-		int nodeCount = 1;
-		for (Node child : node.getChildren()) {
-			nodeCount += getNodeCount(child);
+	// simulate within-host phylogeny of lineages[0...lineageCount) and connect it to infection node
+	// returns false if no within-host phylogeny could be found
+	private boolean simulateWithinHost(int node, int colour, int lineageCount, double currentHeight, 
+			double popSize, double [] logPCoalescent) {
+		logPCoalescent[0] = 0;
+		int fragment = simulateCoalescent(lineageCount, popSize, currentHeight, nodeHeight[node], colour, maxAttemptsInput.get(), logPCoalescent);
+		addToLogP("Coalescent:", logPCoalescent[0]);
+		if (fragment < 0) {
+			if (!quietInput.get()) {
+				System.err.print("c");
+			}
+			return false;
 		}
-		return nodeCount;
+		// connect to node
+		nodeLeft[node] = fragment;
+		nodeParent[fragment] = node;
+		return true;
 	}
 
-	private String format(int i) {
-		if (i >= 100) {
-			return i + "";
-		} else if (i >= 10) {
-			return "0"+i;
-		} else {
-			return "00"+i;
+	// remove node without children that does not lead to a sampled host, 
+	// and ancestors that do not lead to a sampled host any more, except the root
+	private void prune(int node) {
+		int parent = nodeParent[node];
+		while (parent >= 0) {
+			freeNode(node);
+			if (nodeLeft[parent] == node) {
+				nodeLeft[parent] = -1;
+			} else {
+				nodeRight[parent] = -1;
+			}
+			if (nodeLeft[parent] >= 0 || nodeRight[parent] >= 0) {
+				return;
+			}
+			node = parent;
+			parent = nodeParent[node];
 		}
 	}
-	
-	private Node simulateCoalescent(List<Node> current, ConstantPopulation popFun, double currentHeight,
-			double height, int maxAttemptCount, double [] logPCoalescent) {
-		if (current.size() == 0) {
-			Node node =  new Node();
-			node.setHeight(currentHeight);
-			return node;
+
+	// mark nodes ancestral to a sample as included, and find the root of the binary tree
+	private void materialiseTree() {
+		// only nodes ancestral to a leaf are included in the tree
+		Arrays.fill(nodeIncluded, 0, simNodeCount, false);
+		for (int i = 0; i < simNodeCount; i++) {
+			if (nodeLeafNr[i] > 0) {
+				int node = i;
+				while (node >= 0 && !nodeIncluded[node]) {
+					nodeIncluded[node] = true;
+					node = nodeParent[node];
+				}
+			}
 		}
-		
-		List<Node> fragment;
-		int attempt = 0;
-		do {
-			List<Node> currentCopy = new ArrayList<>(current);
-			fragment = simulateCoalescent(currentCopy, popFun, currentHeight, height, logPCoalescent);
-			if (fragment.size() == 1) {
-				return fragment.get(0);
+		if (nodeStack.length < simNodeCount * 3 + 3) {
+			nodeStack = new int[simNodeCount * 3 + 3];
+			nodeOrder = new int[simNodeCount + 1];
+			binaryNr = new int[simNodeCount + 1];
+		}
+		// count included nodes below the first node of the simulation
+		nodeCount = 0;
+		int top = 0;
+		nodeStack[top++] = 0;
+		while (top > 0) {
+			int node = nodeStack[--top];
+			nodeCount++;
+			if (nodeLeft[node] >= 0 && nodeIncluded[nodeLeft[node]]) {
+				nodeStack[top++] = nodeLeft[node];
 			}
-			attempt++;
-			logPCoalescent[0] = 0;
-		} while (attempt < maxAttemptCount);
-		Log.warning("Could not find a proper coalescent tree after " + maxAttemptCount + " attempts. "
-				+ "Consider decreasing the population size or increasing maxAttempts.");
-		return null;
+			if (nodeRight[node] >= 0 && nodeIncluded[nodeRight[node]]) {
+				nodeStack[top++] = nodeRight[node];
+			}
+		}
+		// skip nodes with a single included child above the root
+		root = binaryChild(0);
+		if (debug) {
+			newick0 = toNewick();
+		}
 	}
 
-	private void colourFragment(Node node, int colour, Map<Node, Integer> colourMap) {
-		colourMap.put(node,  colour);
-		for (Node child : node.getChildren()) {
-			colourFragment(child, colour, colourMap);
+	// first node at or below node that does not have exactly one included child
+	private int binaryChild(int node) {
+		while (true) {
+			boolean left = nodeLeft[node] >= 0 && nodeIncluded[nodeLeft[node]];
+			boolean right = nodeRight[node] >= 0 && nodeIncluded[nodeRight[node]];
+			if (left == right) {
+				return node;
+			}
+			node = left ? nodeLeft[node] : nodeRight[node];
 		}
 	}
 
-	private String toShortNewick(Node node, Map<Node, Integer> colourMap) {
-		if (node.isLeaf()) {
-			return node.getID();
-		} else {
-			String newick = "(";
-			for (int i = 0; i < node.getChildCount(); i++) {
-				Node child = node.getChild(i);
-				newick += toShortNewick(child, colourMap);
-				newick += "[&color=" + colourMap.get(child)+"]" + ":" + node.getLength();
-				if (i < node.getChildCount() - 1) {
-					newick += ",";
-				}
+	// nodes of the binary tree in post-order (left, right, node) in nodeOrder, returns number of nodes
+	private int binaryPostOrder() {
+		// pre-order visiting right before left, which reversed is the post-order
+		int count = 0;
+		int top = 0;
+		nodeStack[top++] = root;
+		while (top > 0) {
+			int node = nodeStack[--top];
+			nodeOrder[count++] = node;
+			if (nodeLeafNr[node] == 0) {
+				nodeStack[top++] = binaryChild(nodeLeft[node]);
+				nodeStack[top++] = binaryChild(nodeRight[node]);
 			}
-			return newick + ")";
 		}
+		for (int i = 0, j = count - 1; i < j; i++, j--) {
+			int tmp = nodeOrder[i];
+			nodeOrder[i] = nodeOrder[j];
+			nodeOrder[j] = tmp;
+		}
+		return count;
 	}
-	
-	private int infectionCount(Node node) {
-		switch(node.getChildCount()) {
-		case 0: {// leaf
-			Node p = node.getParent();
-			int blockCount = -1;
-			while (p != null && p.getChildCount() == 1) {
-				p = p.getParent();
-				if (colourMap.get(node) != colourMap.get(p)) {
-					blockCount++;
-				}
+
+	// determine branch above node of the binary tree, which runs up through nodes with a single included child,
+	// and count colour changes on the way as transmissions
+	private void climb(int node) {
+		branchBlockCount = -1;
+		if (node == root) {
+			branchLength = 0;
+			branchBlockStart = 0;
+			branchBlockEnd = 0;
+			return;
+		}
+		int p = nodeParent[node];
+		double length = nodeHeight[p] - nodeHeight[node];
+		double blockStart = length;
+		double blockEnd = length;
+		while (binaryChild(p) != p) {
+			blockEnd = length;
+			length += nodeHeight[nodeParent[p]] - nodeHeight[p];
+			p = nodeParent[p];
+			if (nodeColour[node] != nodeColour[p]) {
+				branchBlockCount++;
 			}
-			return blockCount+1;
-		}
-		case 1:
-			return infectionCount(node.getChild(0));
-		case 2:
-			Node left = node.getLeft();
-			int infectionCount = infectionCount(left);
-			Node right = node.getRight();
-			infectionCount += infectionCount(right);
-
-			Node p = node.getParent();
-			int blockCount = -1;
-			while (p != null && p.getChildCount() == 1) {
-				p = p.getParent();
-				if (colourMap.get(node) != colourMap.get(p)) {
-					blockCount++;
-				}
+		}
+		branchLength = length;
+		branchBlockStart = blockStart;
+		branchBlockEnd = blockEnd;
+	}
+
+	// create node in tree of current simulation, reusing space of removed nodes if possible
+	private int newNode(double height, int colour) {
+		int i;
+		if (freeNodeCount > 0) {
+			i = freeNodes[--freeNodeCount];
+		} else {
+			if (simNodeCount == nodeHeight.length) {
+				int capacity = simNodeCount * 2;
+				nodeHeight = Arrays.copyOf(nodeHeight, capacity);
+				nodeParent = Arrays.copyOf(nodeParent, capacity);
+				nodeLeft = Arrays.copyOf(nodeLeft, capacity);
+				nodeRight = Arrays.copyOf(nodeRight, capacity);
+				nodeColour = Arrays.copyOf(nodeColour, capacity);
+				nodeLeafNr = Arrays.copyOf(nodeLeafNr, capacity);
+				nodeIncluded = Arrays.copyOf(nodeIncluded, capacity);
 			}
-			return infectionCount + blockCount + 1;
+			i = simNodeCount++;
+		}
+		nodeHeight[i] = height;
+		nodeParent[i] = -1;
+		nodeLeft[i] = -1;
+		nodeRight[i] = -1;
+		nodeColour[i] = colour;
+		nodeLeafNr[i] = 0;
+		return i;
+	}
+
+	// make space of node available for new nodes
+	private void freeNode(int i) {
+		if (freeNodeCount == freeNodes.length) {
+			freeNodes = Arrays.copyOf(freeNodes, freeNodeCount * 2);
+		}
+		freeNodes[freeNodeCount++] = i;
+	}
+
+	private void ensureHostCapacity(int capacity) {
+		if (capacity > hostHeight.length) {
+			capacity = Math.max(capacity, hostHeight.length * 2);
+			hostHeight = Arrays.copyOf(hostHeight, capacity);
+			hostSampleHeight = Arrays.copyOf(hostSampleHeight, capacity);
+			hostFirstInfectee = Arrays.copyOf(hostFirstInfectee, capacity);
+			hostInfecteeCount = Arrays.copyOf(hostInfecteeCount, capacity);
+			hostOrder = Arrays.copyOf(hostOrder, capacity);
+			hostStack = Arrays.copyOf(hostStack, capacity);
+			hostNode = Arrays.copyOf(hostNode, capacity);
+		}
+	}
+
+	private void ensureLineageCapacity(int capacity) {
+		if (capacity > lineages.length) {
+			lineages = new int[capacity * 2];
+			work = new int[capacity * 2];
+			attemptNodes = new int[capacity * 2];
+		}
+	}
+
+	private void addToLogP(String caller, double log) {
+//		System.err.println(caller + " " + log);
+		logP += log;
+	}
+
+	private String format(int i) {
+		if (i >= 100) {
+			return i + "";
+		} else if (i >= 10) {
+			return "0"+i;
+		} else {
+			return "00"+i;
 		}
-		return 0;		
 	}
 	
-	private String toNewick(Node node) {
-		switch(node.getChildCount()) {
-		case 0: {// leaf
-			double length = node.getLength();
-			Node p = node.getParent();
-			double blockStart = length;
-			double blockEnd = length;
-			int blockCount = -1;
-			while (p != null && p.getChildCount() == 1) {
-				blockEnd = length;
-				length += p.getLength();
-				p = p.getParent();
-				if (colourMap.get(node) != colourMap.get(p)) {
-					blockCount++;
-				}
-			}
-			return node.getID() + "[&blockcount=" + blockCount + (blockCount >= 0 ? ",blockstart=" + (blockStart/length) + ",blockend=" + (blockEnd/length): "") +",color=" + colourMap.get(node) + "]:" + length;
-		}
-		case 1:
-			return toNewick(node.getChild(0));
-		case 2:
-			Node left = node.getLeft();
-			String leftNewick = toNewick(left);
-			Node right = node.getRight();
-			String rightNewick = toNewick(right);
-
-			double length = node.getLength();
-			Node p = node.getParent();
-			double blockStart = length;
-			double blockEnd = length;
-			int blockCount = -1;
-			while (p != null && p.getChildCount() == 1) {
-				blockEnd = length;
-				length += p.getLength();
-				p = p.getParent();
-				if (colourMap.get(node) != colourMap.get(p)) {
-					blockCount++;
+	// newick of the binary tree with block parameters and colours as metadata
+	private String toNewick() {
+		StringBuilder newick = new StringBuilder();
+		final int comma = Integer.MIN_VALUE;
+		int top = 0;
+		nodeStack[top++] = root;
+		while (top > 0) {
+			int node = nodeStack[--top];
+			if (node == comma) {
+				newick.append(',');
+			} else if (node < 0) {
+				// all children of ~node are written
+				newick.append(')');
+				if (~node != root) {
+					appendBranch(newick, ~node);
 				}
+			} else if (nodeLeafNr[node] > 0) {
+				newick.append('t').append(format(nodeLeafNr[node]));
+				appendBranch(newick, node);
+			} else {
+				newick.append('(');
+				nodeStack[top++] = ~node;
+				nodeStack[top++] = binaryChild(nodeRight[node]);
+				nodeStack[top++] = comma;
+				nodeStack[top++] = binaryChild(nodeLeft[node]);
 			}
-			if (p == null) {
-				return "(" + leftNewick + "," + rightNewick + ")";
-			}
-			return "(" + leftNewick + "," + rightNewick + ")" + "[&blockcount=" + blockCount + (blockCount >= 0 ? ",blockstart=" + (blockStart/length) + ",blockend=" + (blockEnd/length): "") +",color=" + colourMap.get(node) + "]:" + length; 
 		}
-		return null;
+		return newick.toString();
 	}
 
-	private void traverse(Node node, Set<Node> includedNodes) {
-		List<Node> children = node.getChildren();
-		for (int i = children.size()-1; i >= 0; i--) {
-			Node child = children.get(i);
-			if (!includedNodes.contains(child)) {
-				node.removeChild(child);
-			}
+	private void appendBranch(StringBuilder newick, int node) {
+		climb(node);
+		newick.append("[&blockcount=").append(branchBlockCount);
+		if (branchBlockCount >= 0) {
+			newick.append(",blockstart=").append(branchBlockStart / branchLength);
+			newick.append(",blockend=").append(branchBlockEnd / branchLength);
 		}
-		for (int i = node.getChildren().size()-1; i >= 0; i--) {
-			Node child = children.get(i);
-			traverse(child, includedNodes);
-		}		
+		newick.append(",color=").append(nodeColour[node]).append("]:").append(branchLength);
 	}
 
-	public List<Node> simulateCoalescent(final List<Node> nodes, final PopulationFunction demographic,
-			double currentHeight, final double maxHeight, double [] logPCoalescent) {
-		// If only one node, return it
-		// continuing results in an infinite loop
-		if (nodes.size() == 1)
-			return nodes;
+	/**
+	 * simulate within-host phylogeny for the lineages[0...lineageCount)
+	 * from currentHeight up to height, where new nodes get colour
+	 * @return root of the phylogeny, or -1 if lineages did not coalesce below height in maxAttemptCount attempts 
+	 */
+	private int simulateCoalescent(int lineageCount, double popSize, double currentHeight,
+			double height, int colour, int maxAttemptCount, double [] logPCoalescent) {
+		if (lineageCount == 0) {
+			return newNode(currentHeight, colour);
+		}
+		if (lineageCount == 1) {
+			return lineages[0];
+		}
 
-		final double[] heights = new double[nodes.size()];
-		for (int i = 0; i < nodes.size(); i++) {
-			heights[i] = nodes.get(i).getHeight();
+		// sort lineages by height
+		for (int i = 1; i < lineageCount; i++) {
+			int lineage = lineages[i];
+			int j = i - 1;
+			while (j >= 0 && nodeHeight[lineages[j]] > nodeHeight[lineage]) {
+				lineages[j + 1] = lineages[j];
+				j--;
+			}
+			lineages[j + 1] = lineage;
 		}
-		final int[] indices = new int[nodes.size()];
-		HeapSort.sort(heights, indices);
+		
+		int attempt = 0;
+		do {
+			System.arraycopy(lineages, 0, work, 0, lineageCount);
+			attemptNodeCount = 0;
+			int size = simulateCoalescent(lineageCount, popSize, currentHeight, height, colour, logPCoalescent);
+			if (size == 1) {
+				return work[0];
+			}
+			// discard nodes of failed attempt
+			for (int i = 0; i < attemptNodeCount; i++) {
+				freeNode(attemptNodes[i]);
+			}
+			for (int i = 0; i < lineageCount; i++) {
+				nodeParent[lineages[i]] = -1;
+			}
+			attempt++;
+			logPCoalescent[0] = 0;
+		} while (attempt < maxAttemptCount);
+		Log.warning("Could not find a proper coalescent tree after " + maxAttemptCount + " attempts. "
+				+ "Consider decreasing the population size or increasing maxAttempts.");
+		return -1;
+	}
 
-		// node list
-		List<Node> nodeList = new ArrayList<>();
+	// coalesce nodes in work[0...size), sorted by height, until maxHeight is reached or one lineage is left
+	// returns number of lineages left, which are in work
+	private int simulateCoalescent(int size, final double popSize,
+			double currentHeight, final double maxHeight, int colour, double [] logPCoalescent) {
+		final double logPopSize = Math.log(popSize);
 		int activeNodeCount = 0;
-		for (int i = 0; i < nodes.size(); i++) {
-			nodeList.add(nodes.get(indices[i]));
-		}
-        while (getMinimumInactiveHeight(activeNodeCount, nodeList) <= currentHeight) {
+        while (getMinimumInactiveHeight(activeNodeCount, size) <= currentHeight) {
             activeNodeCount += 1;
         }
 
 		// get at least two tips
 		while (activeNodeCount < 2) {
-			currentHeight = getMinimumInactiveHeight(activeNodeCount, nodeList);
-	        while (getMinimumInactiveHeight(activeNodeCount, nodeList) <= currentHeight) {
+			currentHeight = getMinimumInactiveHeight(activeNodeCount, size);
+	        while (getMinimumInactiveHeight(activeNodeCount, size) <= currentHeight) {
 	            activeNodeCount += 1;
 	        }
 		}
 
 		// simulate coalescent events
-		double nextCoalescentHeight = currentHeight
-				+ PopulationFunction.Utils.getSimulatedInterval(demographic, activeNodeCount, currentHeight);
-        
-        double kChoose2 = Binomial.choose2(activeNodeCount);
-		double intervalArea = demographic.getIntegral(currentHeight, nextCoalescentHeight);
-		logPCoalescent[0] += -kChoose2 * intervalArea;
+		double interval = getSimulatedInterval(popSize, activeNodeCount);
+		double nextCoalescentHeight = currentHeight + interval;
+		logPCoalescent[0] += -Binomial.choose2(activeNodeCount) * interval / popSize;
 
-		// while (nextCoalescentHeight < maxHeight && (getNodeCount() > 1)) {
-		while (nextCoalescentHeight < maxHeight && (nodeList.size() > 1)) {
+		while (nextCoalescentHeight < maxHeight && size > 1) {
 
-			if (nextCoalescentHeight >= getMinimumInactiveHeight(activeNodeCount, nodeList)) {
-				currentHeight = getMinimumInactiveHeight(activeNodeCount, nodeList);
-		        while (getMinimumInactiveHeight(activeNodeCount, nodeList) <= currentHeight) {
+			if (nextCoalescentHeight >= getMinimumInactiveHeight(activeNodeCount, size)) {
+				currentHeight = getMinimumInactiveHeight(activeNodeCount, size);
+		        while (getMinimumInactiveHeight(activeNodeCount, size) <= currentHeight) {
 		            activeNodeCount += 1;
 		        }
 			} else {
-				currentHeight = coalesceTwoActiveNodes(currentHeight, nextCoalescentHeight, nodeList, activeNodeCount, logPCoalescent);
+				currentHeight = coalesceTwoActiveNodes(nextCoalescentHeight, size, activeNodeCount, colour, logPCoalescent);
+				size--;
 				activeNodeCount--;
 			}
 
-			
-            final double demographicAtCoalPoint = demographic.getPopSize(currentHeight);
-            logPCoalescent[0] -= Math.log(demographicAtCoalPoint);
+            logPCoalescent[0] -= logPopSize;
 
-                // if (getNodeCount() > 1) {
-			if (nodeList.size() > 1) {
+			if (size > 1) {
 				// get at least two tips
 				while (activeNodeCount < 2) {
-					currentHeight = getMinimumInactiveHeight(activeNodeCount, nodeList);
-			        while (getMinimumInactiveHeight(activeNodeCount, nodeList) <= currentHeight) {
+					currentHeight = getMinimumInactiveHeight(activeNodeCount, size);
+			        while (getMinimumInactiveHeight(activeNodeCount, size) <= currentHeight) {
 			            activeNodeCount += 1;
 			        }
 				}
 
-				// nextCoalescentHeight = currentHeight +
-				// DemographicFunction.Utils.getMedianInterval(demographic,
-				// getActiveNodeCount(), currentHeight);
-				nextCoalescentHeight = currentHeight + PopulationFunction.Utils.getSimulatedInterval(demographic,
-						activeNodeCount, currentHeight);
-
-				kChoose2 = Binomial.choose2(activeNodeCount);
-				intervalArea = demographic.getIntegral(currentHeight, nextCoalescentHeight);
-				logPCoalescent[0] += -kChoose2 * intervalArea;
+				interval = getSimulatedInterval(popSize, activeNodeCount);
+				nextCoalescentHeight = currentHeight + interval;
+				logPCoalescent[0] += -Binomial.choose2(activeNodeCount) * interval / popSize;
 			}
 		}
 
-		return nodeList;
+		return size;
 	}
 	
     /**
-     * Coalesce two nodes in the active list. This method removes the two
-     * (randomly selected) active nodes and replaces them with the new node at
-     * the top of the active list.
-     * @param minHeight
-     * @param height
-     * @return
+     * Coalesce two randomly selected nodes among the first activeNodeCount nodes in work[0...size). 
+     * The two nodes are removed and replaced with the new node at the top of the active part.
+     * @return height
      */
-    private double coalesceTwoActiveNodes(final double minHeight, double height, List<Node> nodeList, int activeNodeCount, double[]logPCoalescent){
-        final int node1 = Randomizer.nextInt(activeNodeCount);
+    private double coalesceTwoActiveNodes(double height, int size, int activeNodeCount, int colour, double[]logPCoalescent){
+        final int node1 = nextInt(activeNodeCount);
         int node2 = node1;
         while (node2 == node1) {
-            node2 = Randomizer.nextInt(activeNodeCount);
+            node2 = nextInt(activeNodeCount);
         }
         logPCoalescent[0] += -Math.log(activeNodeCount * (activeNodeCount-1)/2);
 
-        final Node left = nodeList.get(node1);
-        final Node right = nodeList.get(node2);
-
-        final Node newNode = new Node();
-//		System.err.println(2 * m_taxa.get().getNrTaxa() - nodeList.size());
-//        newNode.setNr(nextNodeNr++);   // multiple tries may generate an excess of nodes assert(nextNodeNr <= nrOfTaxa*2-1);
-        newNode.setHeight(height);
-        newNode.setLeft(left);
-        left.setParent(newNode);
-        newNode.setRight(right);
-        right.setParent(newNode);
+        final int left = work[node1];
+        final int right = work[node2];
 
-        nodeList.remove(left);
-        nodeList.remove(right);
+        final int newNode = newNode(height, colour);
+        attemptNodes[attemptNodeCount++] = newNode;
+        nodeLeft[newNode] = left;
+        nodeParent[left] = newNode;
+        nodeRight[newNode] = right;
+        nodeParent[right] = newNode;
 
+        // remove left and right
+        int k = 0;
+        for (int i = 0; i < size; i++) {
+        	if (i != node1 && i != node2) {
+        		work[k++] = work[i];
+        	}
+        }
+        // insert new node at top of active part
         activeNodeCount -= 2;
-
-        nodeList.add(activeNodeCount, newNode);
-
+        System.arraycopy(work, activeNodeCount, work, activeNodeCount + 1, k - activeNodeCount);
+        work[activeNodeCount] = newNode;
         activeNodeCount += 1;
-
         
-        if (getMinimumInactiveHeight(activeNodeCount, nodeList) < height) {
+        if (getMinimumInactiveHeight(activeNodeCount, size - 1) < height) {
             throw new RuntimeException(
                     "This should never happen! Somehow the current active node is older than the next inactive node!\n"
             		+ "One possible solution you can try is to increase the population size of the population model.");
@@ -779,9 +1205,9 @@ public class TransmissionTreeSimulator extends Runnable {
         return height;
     }
     
-    private double getMinimumInactiveHeight(int activeNodeCount, List<Node> nodeList) {
-        if (activeNodeCount < nodeList.size()) {
-            return (nodeList.get(activeNodeCount)).getHeight();
+    private double getMinimumInactiveHeight(int activeNodeCount, int size) {
+        if (activeNodeCount < size) {
+            return nodeHeight[work[activeNodeCount]];
         } else
             return Double.POSITIVE_INFINITY;
     }
@@ -4,25 +4,20 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
-import beastfx.app.treeannotator.TreeAnnotator;
-import beastfx.app.treeannotator.TreeAnnotator.FastTreeSet;
 import beastfx.app.tools.Application;
 import beastfx.app.util.OutFile;
 import beastfx.app.util.TreeFile;
-import breath.distribution.ColourProvider;
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.inference.Runnable;
-import beast.base.inference.parameter.IntegerParameter;
 import beast.base.core.Log;
-import beast.base.evolution.tree.Node;
-import beast.base.evolution.tree.Tree;
 
 @Description("Produce table for lineages through time plot of unsampled hosts with 95%HPD bounds")
-public class UnsampledLTTCounter extends Runnable {
+public class UnsampledLTTCounter extends Runnable implements TransmissionTreeLogReader.Consumer {
 	final public Input<List<TreeFile>> treesInput = new Input<>("trees", "NEXUS file containing a tree set",
 			new ArrayList<>());
 	final public Input<OutFile> outputInput = new Input<>("out", "output file. Print to stdout if not specified");
@@ -36,6 +31,8 @@ public class UnsampledLTTCounter extends Runnable {
 			"reverse x-axis, that is go forward in time instead of backward", true);
 	final public Input<Double> maxXInput = new Input<>("maxX", "maximum value for x-axis. Automaticlly deduced if < 0", -1.0);
 	final public Input<Double> maxYInput = new Input<>("maxY", "maximum value for y-axis. Automaticlly deduced if < 0", -1.0);
+	final public Input<Integer> threadsInput = new Input<>("threads", "number of threads used for parsing trees. Uses all available processors if not positive", 1);
+	final public Input<Integer> thinInput = new Input<>("thin", "only process every thin-th tree after burn-in", 1);
 
 	int N = resolutionInput.get(); // number of steps in history
 	double maxX = 0;
@@ -116,118 +113,111 @@ public class UnsampledLTTCounter extends Runnable {
 		Log.warning("Done");
 	}
 
-	private double[][] processFile(File treeFile) throws IOException {
-		FastTreeSet trees = new TreeAnnotator().new FastTreeSet(treeFile.getAbsolutePath(),
-				burnInPercentageInput.get());
-		trees.reset();
+	// segments of branches with unsampled hosts, start and end time, for all trees of the current file,
+	// where segments of tree k are in segment[treeStart[k]...treeStart[k+1])
+	private double [] segmentStart = new double[1024];
+	private double [] segmentEnd = new double[1024];
+	private int segmentCount;
+	private int [] treeStart = new int[1024];
+	private int treeCount;
+	private double [][] data;
 
-		List<Double>[] distrs = new List[N + 1];
-		for (int i = 0; i < distrs.length; i++) {
-			distrs[i] = new ArrayList<>();
-		}
+	private double[][] processFile(File treeFile) throws IOException {
+		data = null;
+		TransmissionTreeLogReader reader = new TransmissionTreeLogReader(treeFile, burnInPercentageInput.get(), partitionInput.get(), threadsInput.get());
+		reader.setThin(thinInput.get());
+		reader.run(this);
+		return data;
+	}
 
-		trees.reset();
+	@Override
+	public void init(TransmissionTreeLogReader reader) {
 		maxX = 0;
-		int leafNodeCount = 0;
-		while (trees.hasNext()) {
-			Tree tree = trees.next();
-			maxX = Math.max(tree.getRoot().getHeight(), maxX);
-			leafNodeCount = tree.getLeafNodeCount();
-		}
-		Log.warning("Maximum height = " + maxX);
+		segmentCount = 0;
+		treeCount = 0;
+	}
 
-		trees.reset();
+	@Override
+	public void process(TransmissionTreeLogReader reader) {
+		int leafNodeCount = reader.getLeafNodeCount();
+		int [] count = reader.getBlockCount();
+		double [] blockStart = reader.getBlockStart();
+		double [] blockEnd = reader.getBlockEnd();
+		double [] height = reader.getHeight();
+		int [] parent = reader.getParent();
+		int [] colourAtBase = reader.getColourAtBase();
 
-		Integer[] count = new Integer[leafNodeCount * 2 - 1];
-		Double[] blockStart = new Double[leafNodeCount * 2 - 1];
-		Double[] blockEnd = new Double[leafNodeCount * 2 - 1];
-		while (trees.hasNext()) {
-			double [] linCount = new double[N + 1];
-			double stepSize = maxX / N;
-			Tree tree = trees.next();
-			for (int i = 0; i < tree.getNodeCount(); i++) {
-				beast.base.evolution.tree.Node node = tree.getNode(i);
-				Object o = node.getMetaData("blockcount");
-				if (o == null) {
-					o = node.getMetaData("blockcount.t:" + partitionInput.get());
-				}
-				count[i] = o == null ? 0 : (int) (double) o;
-				
-				o = node.getMetaData("blockstart");
-				if (o == null) {
-					o = node.getMetaData("blockstart.t:" + partitionInput.get());
-				}
-				blockStart[i] = o == null ? 1.0 : (double) o;
+		if (treeCount + 1 >= treeStart.length) {
+			treeStart = Arrays.copyOf(treeStart, treeStart.length * 2);
+		}
+		treeStart[treeCount++] = segmentCount;
 
-				o = node.getMetaData("blockend");
-				if (o == null) {
-					o = node.getMetaData("blockend.t:" + partitionInput.get());
+		for (int i = 0; i < reader.getNodeCount(); i++) {
+			if (parent[i] < 0) {
+				maxX = Math.max(height[i], maxX);
+			} else {
+				// select relevant part of the branch:
+				double length = reader.getLength(i);
+				double startTime = -1, endTime = -1;
+				if (count[i] < 0) {
+					if (colourAtBase[i] >= leafNodeCount) {
+						// whole branch is unsampled
+						startTime = height[i];
+						endTime = height[parent[i]];
+					} else {
+						// whole branch is sampled
+					}
+				} else { // count[i] >= 0
+					if (colourAtBase[parent[i]] >= leafNodeCount) {
+						endTime = height[parent[i]];
+					} else {
+						endTime = height[i] + length * blockEnd[i];
+					}
+					if (colourAtBase[i] >= leafNodeCount) {
+						startTime = height[i];
+					} else {
+						startTime = height[i] + length * blockStart[i];
+					}
+				}
+				if (startTime >= 0) {
+					if (segmentCount == segmentStart.length) {
+						segmentStart = Arrays.copyOf(segmentStart, segmentCount * 2);
+						segmentEnd = Arrays.copyOf(segmentEnd, segmentCount * 2);
+					}
+					segmentStart[segmentCount] = startTime;
+					segmentEnd[segmentCount] = endTime;
+					segmentCount++;
 				}
-				blockEnd[i] = o == null ? 1.0 : (double) o;
 			}
-			// root count = -1
-			count[count.length-1] = -1;
-			IntegerParameter blockCount = new IntegerParameter(count);
-			// calculate colouring
-			int[] colourAtBase = new int[leafNodeCount * 2 - 1];
-			ColourProvider.getColour(tree.getRoot(), blockCount, tree.getLeafNodeCount(), colourAtBase);
+		}
+	}
 
-			for (Node node : tree.getNodesAsArray()) {
-				if (!node.isRoot()) {
-					// select relevant part of the branch:
-					int i = node.getNr();
-					int start = -1;
-					int end = -1;
-					double startTime = -1, endTime = -1;
-					if (count[i] < 0) {
-						if (colourAtBase[node.getNr()] >= leafNodeCount) {
-							// whole branch is unsampled
-							startTime = node.getHeight();
-							endTime = node.getParent().getHeight();
-						} else {
-							// whole branch is sampled
-						}
-					} else if (count[i] == 0) {
-						if (colourAtBase[node.getParent().getNr()] >= leafNodeCount) {
-							endTime = node.getParent().getHeight();
-						} else {
-							endTime = node.getHeight() + node.getLength() * blockEnd[i];
-						}
-						if (colourAtBase[node.getNr()] >= leafNodeCount) {
-							startTime = node.getHeight();
-						} else {
-							startTime = node.getHeight() + node.getLength() * blockStart[i];
-						}
-						if (colourAtBase[node.getParent().getNr()] < leafNodeCount &&
-								colourAtBase[node.getNr()] < leafNodeCount) {
-							start = -1;
-							end = -1;
-						}
-					} else { // count[i] > 0
-						if (colourAtBase[node.getParent().getNr()] >= leafNodeCount) {
-							endTime = node.getParent().getHeight();
-						} else {
-							endTime = node.getHeight() + node.getLength() * blockEnd[i];
-						}
-						if (colourAtBase[node.getNr()] >= leafNodeCount) {
-							startTime = node.getHeight();
-						} else {
-							startTime = node.getHeight() + node.getLength() * blockStart[i];
-						}
-					}
-					if (startTime >= 0) {
-						start = (int) (startTime * N / maxX + 0.5);
-						end = (int) (endTime * N / maxX + 0.5);
-						if (start == end) {
-							linCount[start] += (endTime - startTime)/stepSize;
-						} else {
-							linCount[start] += ((start+1) * stepSize  - startTime)/stepSize;
-							for (int j = start+1; j < end; j++) {
-								linCount[j]++;
-							}
-							linCount[end] += (endTime - end * stepSize) / stepSize;
-						}
+	@Override
+	public void done() {
+		// maximum height is only known after all trees are read, so count lineages now
+		Log.warning("Maximum height = " + maxX);
+		treeStart[treeCount] = segmentCount;
+
+		List<Double>[] distrs = new List[N + 1];
+		for (int i = 0; i < distrs.length; i++) {
+			distrs[i] = new ArrayList<>();
+		}
+		double stepSize = maxX / N;
+		for (int k = 0; k < treeCount; k++) {
+			double [] linCount = new double[N + 1];
+			for (int s = treeStart[k]; s < treeStart[k + 1]; s++) {
+				double startTime = segmentStart[s];
+				double endTime = segmentEnd[s];
+				int start = (int) (startTime * N / maxX + 0.5);
+				int end = (int) (endTime * N / maxX + 0.5);
+				if (start == end) {
+					linCount[start] += (endTime - startTime)/stepSize;
+				} else {
+					linCount[start] += ((start+1) * stepSize  - startTime)/stepSize;
+					for (int j = start+1; j < end; j++) {
+						linCount[j]++;
 					}
+					linCount[end] += (endTime - end * stepSize) / stepSize;
 				}
 			}
 			for (int i = 0; i < N; i++) {
@@ -235,7 +225,7 @@ public class UnsampledLTTCounter extends Runnable {
 			}
 		}
 
-		double[][] data = new double[N][4];
+		data = new double[N][4];
 		for (int i = 0; i < N; i++) {
 			data[i][0] = i * maxX / N;
 			List<Double> counts = distrs[i];
@@ -257,7 +247,6 @@ public class UnsampledLTTCounter extends Runnable {
 				data[i][0] = maxX - data[i][0];
 			}
 		}
-		return data;
 	}
 
 	private void smooth(double[][] data, int column) {
@@ -10,7 +10,6 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import javax.imageio.ImageIO;
@@ -26,19 +25,15 @@ import beastfx.app.util.LogFile;
 import beastfx.app.util.OutFile;
 import beastfx.app.util.TreeFile;
 import beastfx.app.util.Utils;
-import breath.distribution.ColourProvider;
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.core.Log;
 import beast.base.evolution.tree.Tree;
-import beast.base.inference.parameter.IntegerParameter;
 import beast.base.util.HeapSort;
 import beastfx.app.tools.LogAnalyser;
-import beastfx.app.treeannotator.TreeAnnotator;
-import beastfx.app.treeannotator.TreeAnnotator.MemoryFriendlyTreeSet;
 
 @Description("Create SVG files to visualise who infected who")
-public class WIWVisualiser extends beast.base.inference.Runnable {
+public class WIWVisualiser extends beast.base.inference.Runnable implements TransmissionTreeLogReader.Consumer {
 	final public Input<TreeFile> treeFile = new Input<>("trees", "tree file file with transmission trees.", new TreeFile("[[none]]"));
 	final public Input<LogFile> inFile = new Input<>("log", "trace file containing infectorOf log. Ignored if tree file is specified", new LogFile("[[none]]"));
 	final public Input<Integer> burnInPercentageInput = new Input<>("burnin", "percentage of trees to used as burn-in (and will be ignored)", 10);
@@ -55,6 +50,8 @@ public class WIWVisualiser extends beast.base.inference.Runnable {
 	final public Input<Float> saturationInput = new Input<>("saturation", "saturation used when colouring nodes.", 0.7f);
 	final public Input<Float> brightnessInput = new Input<>("brightness", "brightness used when colouring nodes.", 0.7f);
 	final public Input<String> filterInput = new Input<>("filter", "search/replace regular expression for filtering labels. Should be of the form '/searchRegExp/replaceString/'. Ignored if not specified");
+	final public Input<Integer> threadsInput = new Input<>("threads", "number of threads used for parsing trees. Uses all available processors if not positive", 1);
+	final public Input<Integer> thinInput = new Input<>("thin", "only process every thin-th tree after burn-in", 1);
 
 	final static String DIR_SEPARATOR = (Utils.isWindows() ? "\\\\" : "/");
 
@@ -63,6 +60,15 @@ public class WIWVisualiser extends beast.base.inference.Runnable {
 	public void initAndValidate() {
 	}
 
+	// results of processing tree file
+	private String [] treeNodeLabels;
+	private double [] treeAge;
+	private double treeUpper;
+	private double [][] treeTransitions;
+	private int [] infectedBy;
+	private int sampleCount;
+	private String search = null, replace = null;
+
 	@Override
 	public void run() throws Exception {
 		String [] nodeLabels;
@@ -70,7 +76,6 @@ public class WIWVisualiser extends beast.base.inference.Runnable {
 		int n;
 		double upper = 0;
 		
-		String search = null, replace = null;
 		if (filterInput.get() != null) {
 			String filter = filterInput.get();
 			int sep = filter.indexOf('/', 1);
@@ -80,75 +85,14 @@ public class WIWVisualiser extends beast.base.inference.Runnable {
 
 		double [][] transitions;
 		if (treeFile.get() != null && !treeFile.get().getName().equals("[[none]]")) {
-	        MemoryFriendlyTreeSet trees = new TreeAnnotator().new MemoryFriendlyTreeSet(treeFile.get().getAbsolutePath(), burnInPercentageInput.get());
-	        trees.reset();
-	    	Tree tree = trees.next();
-	    	n = tree.getLeafNodeCount();
-	    	
-			if (colourByAgeInput.get()) {
-				age = new double[n];
-				for (int i = 0; i < n; i++) {
-					age[i] = tree.getNode(i).getHeight();
-					upper = Math.max(upper, age[i]);
-				}
-			}
-
-			nodeLabels = new String[n];
-			for (int i = 0; i < n; i++) {
-				nodeLabels[i] = tree.getNode(i).getID();
-				if (search != null) {
-					nodeLabels[i] = nodeLabels[i].replaceAll(search, replace);
-				}
-			}
-			
-	        trees.reset();
-			transitions = new double[n][n+1];
-			int sampleCount = 0;
-	        while (trees.hasNext()) {
-	        	tree = trees.next();
-	        	
-	        	// extract meta data from tree
-	        	Integer [] count = new Integer[n*2-1];
-	        	for (int i = 0; i < tree.getNodeCount(); i++) {
-	        		beast.base.evolution.tree.Node node = tree.getNode(i);
-	        		Object o = node.getMetaData("blockcount");
-	        		if (o == null) {
-	        			o = node.getMetaData("blockcount.t:" + partitionInput.get());
-	        		}
-	        		count[i] = o == null ? 0 : (int)(double) o;
-	        	}
-	            IntegerParameter blockCount = new IntegerParameter(count);
-
-	            // calculate colouring
-	        	int [] colourAtBase = new int[n*2-1];
-	        	ColourProvider.getColour(tree.getRoot(), blockCount, tree.getLeafNodeCount(), colourAtBase);
-	        	
-	        	// determine who infected who
-	        	int [] infectedBy = new int[tree.getLeafNodeCount()];
-	        	Arrays.fill(infectedBy, -1);
-	        	for (int i = 0; i < 2 * n - 2; i++) {
-	        		beast.base.evolution.tree.Node node = tree.getNode(i);
-	        		beast.base.evolution.tree.Node parent = node.getParent();
-	        		if (colourAtBase[node.getNr()] < n && colourAtBase[parent.getNr()] < n && 
-	        				colourAtBase[node.getNr()] != colourAtBase[parent.getNr()]) {
-	        			if (blockCount.getValue(node.getNr()) == 0) {
-	        				infectedBy[colourAtBase[node.getNr()]] = colourAtBase[parent.getNr()];
-	        			}
-	        		}
-	        	}
-	        	
-	        	
-	        	// log the result
-	        	for (int i = 0; i < n; i++) {
-		        	transitions[i][(infectedBy[i] + n + 1) % (n+1)]++;
-	        	}
-	        	sampleCount++;
-	        }			
-			for (int i = 0; i < n; i++) {
-				for (int j = 0; j < n+1; j++) {
-					transitions[i][j] /= sampleCount;
-				}
-			}
+			TransmissionTreeLogReader reader = new TransmissionTreeLogReader(treeFile.get(), burnInPercentageInput.get(), partitionInput.get(), threadsInput.get());
+			reader.setThin(thinInput.get());
+			reader.run(this);
+			nodeLabels = treeNodeLabels;
+			age = treeAge;
+			upper = treeUpper;
+			transitions = treeTransitions;
+			n = nodeLabels.length;
 		} else {
 			LogAnalyser trace = new LogAnalyser(inFile.get().getPath(), burnInPercentageInput.get(), true, false);
 			
@@ -330,6 +274,57 @@ public class WIWVisualiser extends beast.base.inference.Runnable {
 	/*
 	 * output transition matrix to tab separated file
 	 */
+	@Override
+	public void init(TransmissionTreeLogReader reader) {
+    	Tree tree = reader.getTree();
+    	int n = tree.getLeafNodeCount();
+    	
+    	treeAge = null;
+    	treeUpper = 0;
+		if (colourByAgeInput.get()) {
+			treeAge = new double[n];
+			for (int i = 0; i < n; i++) {
+				treeAge[i] = tree.getNode(i).getHeight();
+				treeUpper = Math.max(treeUpper, treeAge[i]);
+			}
+		}
+
+		treeNodeLabels = new String[n];
+		for (int i = 0; i < n; i++) {
+			treeNodeLabels[i] = tree.getNode(i).getID();
+			if (search != null) {
+				treeNodeLabels[i] = treeNodeLabels[i].replaceAll(search, replace);
+			}
+		}
+		
+		treeTransitions = new double[n][n+1];
+		infectedBy = new int[n];
+		sampleCount = 0;
+	}
+
+	@Override
+	public void process(TransmissionTreeLogReader reader) {
+		int n = reader.getLeafNodeCount();
+    	// determine who infected who
+		reader.calcInfectedBy(infectedBy, true);
+    	
+    	// log the result
+    	for (int i = 0; i < n; i++) {
+        	treeTransitions[i][(infectedBy[i] + n + 1) % (n+1)]++;
+    	}
+    	sampleCount++;
+	}
+
+	@Override
+	public void done() {
+		int n = treeTransitions.length;
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n+1; j++) {
+				treeTransitions[i][j] /= sampleCount;
+			}
+		}
+	}
+
 	private void outputMatrix(String[] nodeLabels, double[][] transitions) throws FileNotFoundException {
 		if (matrixOutputInput.get() != null) {
 			System.err.println("Writing transition matrix " + matrixOutputInput.get().getPath());
@@ -70,12 +70,20 @@ public class AddOrDeleteInfectionOperator extends Operator {
 				// cannot find suitable candidate to remove
 				return Double.NEGATIVE_INFINITY;
 			}
-			for (int j = i; j < n - 1; j++) {
-				nodeNrs.setValue(j, nodeNrs.getValue(j+1));
-				branchFraction.setValue(j, branchFraction.getValue(j+1));
+			// i is a node number, find the transmission on the branch above node i
+			int k = transmissionIndex(nodeNrs, i, rank);
+			// move last transmission in place of the deleted one instead of shifting all later ones
+			if (nodeNrs instanceof VariableIntegerParameter && branchFraction instanceof VariableRealParameter) {
+				((VariableIntegerParameter) nodeNrs).removeBySwapWithLast(k);
+				((VariableRealParameter) branchFraction).removeBySwapWithLast(k);
+			} else {
+				if (k < n - 1) {
+					nodeNrs.setValue(k, nodeNrs.getValue(n - 1));
+					branchFraction.setValue(k, branchFraction.getValue(n - 1));
+				}
+				nodeNrs.setDimension(n - 1);
+				branchFraction.setDimension(n - 1);
 			}
-			nodeNrs.setDimension(n - 1);
-			branchFraction.setDimension(n - 1);
 
 			return Math.log(tree.getNode(i).getLength()/ length) - Math.log(1.0/eligbleInfectionCount);
 			// return 0;
@@ -101,7 +109,9 @@ public class AddOrDeleteInfectionOperator extends Operator {
 
 	
 	private int calcEligableInfectionCount() {
-		colourAtBase = new int[tree.getNodeCount()];
+		if (colourAtBase == null || colourAtBase.length != tree.getNodeCount()) {
+			colourAtBase = new int[tree.getNodeCount()];
+		}
 		transmissions.getColour(colourAtBase);
 		int eligbleInfectionCount = 0;
 		int n = tree.getLeafNodeCount();
@@ -117,6 +127,23 @@ public class AddOrDeleteInfectionOperator extends Operator {
 		return eligbleInfectionCount;
 	}
 
+	// index of the rank-th transmission in nodeNrs on the branch above node nodeNr
+	private int transmissionIndex(IntegerParameter nodeNrs, int nodeNr, int rank) {
+		for (int k = 0; k < nodeNrs.getDimension(); k++) {
+			if (nodeNrs.getValue(k) == nodeNr) {
+				if (rank == 0) {
+					return k;
+				}
+				rank--;
+			}
+		}
+		throw new RuntimeException("Programmer error: no transmission on branch above node " + nodeNr);
+	}
+
+	// which of the infections on the branch returned by chooseInfectionToRemove is selected
+	private int rank;
+
+	// returns node number of branch with infection to remove
 	private int chooseInfectionToRemove() {
 		int n = tree.getLeafNodeCount();
 		
@@ -128,14 +155,16 @@ public class AddOrDeleteInfectionOperator extends Operator {
 		
 		int k = Randomizer.nextInt(eligbleInfectionCount);
 		for (int i = 0; i < colourAtBase.length; i++) {
-			if (transmissions.infectionCount(i) == 1) {
+			int count = transmissions.infectionCount(i);
+			if (count == 1) {
 				if (!(colourAtBase[i] < n && colourAtBase[tree.getNode(i).getParent().getNr()] < n)) {
 					k--;
 				}
 			} else {
-				k -= transmissions.infectionCount(i);
+				k -= count;
 			}
 			if (k < 0) {
+				rank = k + (count == 1 ? 1 : count);
 				return i;
 			}
 		}
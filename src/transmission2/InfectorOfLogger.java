@@ -20,6 +20,7 @@ public class InfectorOfLogger extends BEASTObject implements Loggable {
 	private TreeInterface tree;
 	private boolean directOnly;
 	private TransmissionSet transmissions;
+	private int [] infectedBy;
 	
 	@Override
 	public void initAndValidate() {
@@ -27,6 +28,7 @@ public class InfectorOfLogger extends BEASTObject implements Loggable {
 		tree = likelihood.treeInput.get();
 		transmissions = likelihood.transmissionsInput.get();
 		directOnly = directOnlyInput.get();
+		infectedBy = new int[tree.getLeafNodeCount()];
 	}
 
 	@Override
@@ -45,7 +47,6 @@ public class InfectorOfLogger extends BEASTObject implements Loggable {
 		
     	// determine who infected who
     	int n = tree.getLeafNodeCount();
-    	int [] infectedBy = new int[n];
     	Arrays.fill(infectedBy, -1);
     	int infectionCount = 0;
     	for (int i = 0; i < 2 * n - 2; i++) {
@@ -0,0 +1,45 @@
+package transmission2;
+
+import java.util.Arrays;
+
+/**
+ * Records values overwritten since the last store, so that a parameter
+ * can be restored by undoing these instead of copying all of its values.
+ */
+class StoreJournal<T> {
+	private int [] index = new int[16];
+	private Object [] oldValue = new Object[16];
+	private int size = 0;
+
+	void log(int i, T value) {
+		if (size == index.length) {
+			index = Arrays.copyOf(index, size * 2);
+			oldValue = Arrays.copyOf(oldValue, size * 2);
+		}
+		index[size] = i;
+		oldValue[size] = value;
+		size++;
+	}
+
+	@SuppressWarnings("unchecked")
+	void undo(T [] values) {
+		// reverse order, so values changed more than once end up at the oldest value
+		for (int j = size - 1; j >= 0; j--) {
+			values[index[j]] = (T) oldValue[j];
+		}
+		clear();
+	}
+
+	void clear() {
+		Arrays.fill(oldValue, 0, size, null);
+		size = 0;
+	}
+
+	StoreJournal<T> copy() {
+		StoreJournal<T> copy = new StoreJournal<>();
+		copy.index = index.clone();
+		copy.oldValue = oldValue.clone();
+		copy.size = size;
+		return copy;
+	}
+}
@@ -19,14 +19,48 @@ public class TransmissionSet extends CalculationNode {
     final public Input<RealParameter> branchFractionInput = new Input<>("branchFraction", "fraction of branch length at which the transmission happens", Validate.REQUIRED);
     final public Input<TreeInterface> treeInput = new Input<>("tree", "tree over which to calculate a prior or likelihood");
 
-    
+
     private IntegerParameter nodeNr;
     private RealParameter branchFraction;
     private TreeInterface tree;
-    
+
+    // per node sorted list of branch fractions, only the first transmissionCount[i]
+    // entries of transmissionsForNode[i] are in use, the remainder is spare capacity
 	private double [][] transmissionsForNode;
+	private int [] transmissionCount;
 	private boolean needsUpdate = true;
 
+	// copy of nodeNr and branchFraction as they were at the last update,
+	// used to determine which transmissions were added, deleted or moved
+	private int [] nodeOf;
+	private double [] fractionOf;
+	private int size = 0;
+	private int storedSize = 0;
+
+	// journal of changes since last store, so restore only needs to undo these
+	// entry j replaced (journalOldNode[j], journalOldFraction[j]) by (journalNewNode[j], journalNewFraction[j])
+	// at index journalIndex[j]; a node number of -1 means there was no transmission
+	private int [] journalIndex;
+	private int [] journalOldNode;
+	private double [] journalOldFraction;
+	private int [] journalNewNode;
+	private double [] journalNewFraction;
+	private int journalSize = 0;
+
+	// cached colouring, valid as long as no branch changes between having and 
+	// not having transmissions and the tree does not change
+	private int [] colourCache;
+	private boolean colourCacheIsValid = false;
+	private boolean colourNeedsUpdate = true;
+	// scratch space for calculating colours
+	private int [] counts;
+	private int [] permutation;
+	// true once requiresRecalculation was called during the current MCMC step, so that
+	// transmissionCount is known to reflect the proposed state
+	private boolean isUpToDateWithProposal = false;
+	// true if nodeNr and branchFraction retain dirty flags when their dimension changes
+	private boolean hasVariableDimension;
+
 	private DecimalFormat f = new DecimalFormat("#.####");
 
 	@Override
@@ -34,113 +68,241 @@ public class TransmissionSet extends CalculationNode {
 		nodeNr = nodeNrInput.get();
 		branchFraction = branchFractionInput.get();
 		tree = treeInput.get();
-		transmissionsForNode = new double[tree.getNodeCount()][0];
+		hasVariableDimension = nodeNr instanceof VariableIntegerParameter && branchFraction instanceof VariableRealParameter;
+		int nodeCount = tree.getNodeCount();
+		transmissionsForNode = new double[nodeCount][2];
+		transmissionCount = new int[nodeCount];
+		int capacity = Math.max(16, nodeNr.getDimension() * 2);
+		nodeOf = new int[capacity];
+		fractionOf = new double[capacity];
+		journalIndex = new int[16];
+		journalOldNode = new int[16];
+		journalOldFraction = new double[16];
+		journalNewNode = new int[16];
+		journalNewFraction = new double[16];
+		colourCache = new int[nodeCount];
+		counts = new int[nodeCount];
+		permutation = new int[nodeCount];
+		colourNeedsUpdate = true;
+		size = 0;
+		storedSize = 0;
+		journalSize = 0;
+		needsUpdate = true;
 	}
-	
-	
-	
+
+
+
+	/**
+	 * returns sorted array of branch fractions of transmissions on branch above node nodeNr.
+	 * Only the first infectionCount(nodeNr) entries are valid, the array may contain
+	 * spare capacity after that.
+	 */
 	public double [] getTransmissionForNode(int nodeNr) {
 		if (needsUpdate) {
 			update();
 		}
-		
+
 		return transmissionsForNode[nodeNr];
 	}
-	
-	
+
+
+	/** bring per node lists up to date with nodeNr and branchFraction by
+	 * applying add, delete and move deltas only for transmissions that changed **/
 	private void update() {
-		Integer [] counts = new Integer[transmissionsForNode.length];
-		// allocate memory
-		for (int i = 0; i < counts.length; i++) {
-			counts[i] = 0;
+		final int n = nodeNr.getDimension();
+		if (n > nodeOf.length) {
+			int capacity = Math.max(n, nodeOf.length * 2);
+			nodeOf = Arrays.copyOf(nodeOf, capacity);
+			fractionOf = Arrays.copyOf(fractionOf, capacity);
 		}
-		for (Integer i : this.nodeNr.getValues()) {
-			counts[i]++;
-		}
-		for (int i = 0; i < counts.length; i++) {
-			if (transmissionsForNode[i].length != counts[i]) {
-				transmissionsForNode[i] = new double[counts[i]];
+
+		if (n == size || hasVariableDimension) {
+			// dirty flags tell which transmissions could have changed
+			// (VariableIntegerParameter and VariableRealParameter retain these when the dimension changes)
+			for (int k = 0; k < n; k++) {
+				if (k >= size || nodeNr.isDirty(k) || branchFraction.isDirty(k)) {
+					updateTransmission(k, nodeNr.getValue(k), branchFraction.getValue(k));
+				}
 			}
+			for (int k = n; k < size; k++) {
+				updateTransmission(k, -1, 0);
+			}
+			size = n;
+		} else {
+			// dimension changed, which resets dirty flags, so compare with previous values
+			int m = Math.max(n, size);
+			for (int k = 0; k < m; k++) {
+				if (k < n) {
+					updateTransmission(k, nodeNr.getValue(k), branchFraction.getValue(k));
+				} else {
+					updateTransmission(k, -1, 0);
+				}
+			}
+			size = n;
+		}
+		needsUpdate = false;
+	}
+
+
+	private void updateTransmission(int k, int newNode, double newFraction) {
+		int oldNode = k < size ? nodeOf[k] : -1;
+		double oldFraction = k < size ? fractionOf[k] : 0;
+		if (oldNode == newNode && oldFraction == newFraction) {
+			return;
 		}
-		for (int i = 0; i < counts.length; i++) {
-			counts[i] = 0;
+		applyChange(oldNode, oldFraction, newNode, newFraction);
+		if (newNode >= 0) {
+			nodeOf[k] = newNode;
+			fractionOf[k] = newFraction;
 		}
-		for (int k = 0; k < this.nodeNr.getDimension(); k++) { 
-			Integer i = this.nodeNr.getValue(k);
-			transmissionsForNode[i][counts[i]] = branchFraction.getValue(k);
-			counts[i]++;
+		log(k, oldNode, oldFraction, newNode, newFraction);
+	}
+
+
+	private void applyChange(int oldNode, double oldFraction, int newNode, double newFraction) {
+		if (oldNode >= 0) {
+			remove(oldNode, oldFraction);
 		}
-		for (int k = 0; k < transmissionsForNode.length; k++) {
-			sort(transmissionsForNode[k]);
+		if (newNode >= 0) {
+			insert(newNode, newFraction);
 		}
-		needsUpdate = false;
 	}
 
 
+	// insert fraction in sorted list of node i
+	private void insert(int i, double fraction) {
+		double [] x = transmissionsForNode[i];
+		int count = transmissionCount[i];
+		if (count == x.length) {
+			x = Arrays.copyOf(x, x.length * 2);
+			transmissionsForNode[i] = x;
+		}
+		int pos = Arrays.binarySearch(x, 0, count, fraction);
+		if (pos < 0) {
+			pos = -pos - 1;
+		}
+		System.arraycopy(x, pos, x, pos + 1, count - pos);
+		x[pos] = fraction;
+		if (count == 0) {
+			colourNeedsUpdate = true;
+		}
+		transmissionCount[i]++;
+	}
 
-	private void sort(double[] x) {
-		switch (x.length) {
-		case 0:
-			break;
-		case 1:
-			break;
-		case 2:
-			double tmp;
-			if (x[0]>x[1]) {tmp = x[0]; x[0] = x[1]; x[1] = tmp;}
-			break;
-		case 3:
-			if (x[0] > x[1]) {tmp = x[0]; x[0] = x[1]; x[1] = tmp;}
-			if (x[0] > x[2]) {tmp = x[0]; x[0] = x[2]; x[2] = tmp;}
-			if (x[1] > x[2]) {tmp = x[1]; x[1] = x[2]; x[2] = tmp;}
-			break;
-		case 4:
-			if (x[0]>x[1]) {tmp = x[0]; x[0] = x[1]; x[1] = tmp;}
-			if (x[2]>x[3]) {tmp = x[2]; x[2] = x[3]; x[3] = tmp;}
-			if (x[0]>x[2]) {tmp = x[0]; x[0] = x[2]; x[2] = tmp;}
-			if (x[1]>x[3]) {tmp = x[1]; x[1] = x[3]; x[3] = tmp;}
-			if (x[1]>x[2]) {tmp = x[1]; x[1] = x[2]; x[2] = tmp;}
-			break;
-		default:
-			Arrays.sort(x);
+	// remove fraction from sorted list of node i
+	private void remove(int i, double fraction) {
+		double [] x = transmissionsForNode[i];
+		int count = transmissionCount[i];
+		int pos = Arrays.binarySearch(x, 0, count, fraction);
+		if (pos < 0) {
+			throw new RuntimeException("Programmer error: transmission " + fraction + " not found at node " + i);
+		}
+		System.arraycopy(x, pos + 1, x, pos, count - pos - 1);
+		transmissionCount[i]--;
+		if (count == 1) {
+			colourNeedsUpdate = true;
 		}
 	}
 
 
+	private void log(int k, int oldNode, double oldFraction, int newNode, double newFraction) {
+		if (journalSize == journalIndex.length) {
+			int capacity = journalSize * 2;
+			journalIndex = Arrays.copyOf(journalIndex, capacity);
+			journalOldNode = Arrays.copyOf(journalOldNode, capacity);
+			journalOldFraction = Arrays.copyOf(journalOldFraction, capacity);
+			journalNewNode = Arrays.copyOf(journalNewNode, capacity);
+			journalNewFraction = Arrays.copyOf(journalNewFraction, capacity);
+		}
+		journalIndex[journalSize] = k;
+		journalOldNode[journalSize] = oldNode;
+		journalOldFraction[journalSize] = oldFraction;
+		journalNewNode[journalSize] = newNode;
+		journalNewFraction[journalSize] = newFraction;
+		journalSize++;
+	}
+
 
 	// initialise colourAtBase
-	// return true if a valid colouring can be found, 
+	// return true if a valid colouring can be found,
 	// return false if there is a path between leafs without a transmission
 	public boolean getColour(
 		     int [] colourAtBase
 			) {
 		int leafCount = tree.getLeafNodeCount();
-		Integer [] counts = new Integer[leafCount * 2 - 1];
-		for (int i = 0; i < counts.length; i++) {
-			counts[i] = -1;
+		if (tree.somethingIsDirty()) {
+			// tree may be restored later, so do not cache
+			colourNeedsUpdate = true;
+			return ColourProvider.getColour(tree.getRoot(), currentCounts(), leafCount, colourAtBase, permutation);
+		}
+		if (nodeNr.somethingIsDirty() && !isUpToDateWithProposal) {
+			// called from an operator during proposal: per node lists do not reflect nodeNr yet
+			colourNeedsUpdate = true;
+			return ColourProvider.getColour(tree.getRoot(), currentCounts(), leafCount, colourAtBase, permutation);
 		}
-		for (Integer i : nodeNr.getValues()) {
-			counts[i]++;
+		if (needsUpdate) {
+			update();
 		}
-	    IntegerParameter blockCount = new IntegerParameter(counts);
-	    return ColourProvider.getColour(tree.getRoot(), blockCount, leafCount, colourAtBase);
+		if (colourNeedsUpdate) {
+			colourCacheIsValid = ColourProvider.getColour(tree.getRoot(), transmissionCount, leafCount, colourCache, permutation);
+			colourNeedsUpdate = false;
+		}
+		System.arraycopy(colourCache, 0, colourAtBase, 0, colourCache.length);
+		return colourCacheIsValid;
 	}
-	
-	
+
+	// number of transmissions per node straight from nodeNr
+	private int [] currentCounts() {
+		Arrays.fill(counts, 0);
+		for (int k = 0; k < nodeNr.getDimension(); k++) {
+			counts[nodeNr.getValue(k)]++;
+		}
+		return counts;
+	}
+
+
 
 	@Override
 	protected void store() {
+		// per node lists are up to date with the last accepted state,
+		// so all that needs to be remembered is what changes from here on
+		journalSize = 0;
+		storedSize = size;
 		super.store();
 	}
-	
+
+	@Override
+	protected void accept() {
+		// apply pending changes while dirty flags of the parameters are still set
+		if (needsUpdate) {
+			update();
+		}
+		isUpToDateWithProposal = false;
+		super.accept();
+	}
+
 	@Override
 	protected void restore() {
-		needsUpdate = true;
+		// undo changes since last store in reverse order
+		for (int j = journalSize - 1; j >= 0; j--) {
+			applyChange(journalNewNode[j], journalNewFraction[j], journalOldNode[j], journalOldFraction[j]);
+			int k = journalIndex[j];
+			if (journalOldNode[j] >= 0) {
+				nodeOf[k] = journalOldNode[j];
+				fractionOf[k] = journalOldFraction[j];
+			}
+		}
+		journalSize = 0;
+		size = storedSize;
+		needsUpdate = false;
+		isUpToDateWithProposal = false;
 		super.restore();
 	}
-	
+
 	@Override
 	protected boolean requiresRecalculation() {
 		needsUpdate = true;
+		isUpToDateWithProposal = true;
 		return super.requiresRecalculation();
 	}
 
@@ -159,7 +321,7 @@ public class TransmissionSet extends CalculationNode {
 		if (needsUpdate) {
 			update();
 		}
-		return transmissionsForNode[nr][transmissionsForNode[nr].length-1];
+		return transmissionsForNode[nr][transmissionCount[nr]-1];
 	}
 
 
@@ -168,9 +330,9 @@ public class TransmissionSet extends CalculationNode {
 		if (needsUpdate) {
 			update();
 		}
-		return transmissionsForNode[nr].length;
+		return transmissionCount[nr];
 	}
-	
+
 
 	@Override
 	public String toString() {
@@ -179,10 +341,10 @@ public class TransmissionSet extends CalculationNode {
 		}
 		StringBuilder b = new StringBuilder();
 		for (int i = 0; i < transmissionsForNode.length; i++) {
-			if (transmissionsForNode[i].length > 0) {
+			if (transmissionCount[i] > 0) {
 				b.append(i +":");
-				for (double d : transmissionsForNode[i]) {
-					b.append(f.format(d) + " ");
+				for (int j = 0; j < transmissionCount[i]; j++) {
+					b.append(f.format(transmissionsForNode[i][j]) + " ");
 				}
 				b.append("\n");
 			}
@@ -217,10 +217,11 @@ public class TransmissionTreeLikelihood extends TreeDistribution {
     	// contribution of cases in blocks
     	for (int i = 0; i < tree.getNodeCount() - 1; i++) {
     		double [] times = transmissions.getTransmissionForNode(i);
-    		if (times.length > 1) {
+    		int count = transmissions.infectionCount(i);
+    		if (count > 1) {
     			double logPBlock = 0;
     			double branchlength = nodes[i].getLength();
-    			for (int j = 0; j < times.length-1; j++) {
+    			for (int j = 0; j < count-1; j++) {
     				double start = nodes[i].getHeight() + branchlength * times[j];
     				double end   = nodes[i].getHeight() + branchlength * times[j+1];
 					logPBlock += logh_tr(end, start);
@@ -0,0 +1,120 @@
+package transmission2;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Capacity and store/restore bookkeeping shared by VariableIntegerParameter and
+ * VariableRealParameter. The parameter owns the values and dirty flag arrays, which
+ * may be longer than the dimension: only the first size entries are values, the
+ * remainder is spare capacity that may still hold values needed by restore.
+ */
+class VariableDimension<T> {
+	int size;
+	int storedSize;
+	private StoreJournal<T> journal = new StoreJournal<>();
+
+	/** start from a values array without spare capacity **/
+	void reset(int dimension) {
+		size = dimension;
+		storedSize = dimension;
+		journal.clear();
+	}
+
+	/** values array with room for at least dimension entries, grown geometrically **/
+	static <T> T [] ensureCapacity(T [] values, int dimension) {
+		if (dimension <= values.length) {
+			return values;
+		}
+		return Arrays.copyOf(values, Math.max(dimension, values.length * 2));
+	}
+
+	/** dirty flags with room for at least as many entries as values **/
+	static boolean [] ensureCapacity(boolean [] isDirty, Object [] values) {
+		if (isDirty == null || isDirty.length < values.length) {
+			return isDirty == null ? new boolean[values.length] : Arrays.copyOf(isDirty, values.length);
+		}
+		return isDirty;
+	}
+
+	/**
+	 * Move the dimension to dimension, assuming values and isDirty have the capacity for it.
+	 * New entries get the value of the current last entry. Entries that were added or
+	 * dropped are marked dirty. Entries within the stored dimension are journalled
+	 * before being overwritten, so a shrink followed by a grow can still be restored.
+	 */
+	void resize(T [] values, boolean [] isDirty, int dimension) {
+		for (int i = size; i < dimension; i++) {
+			if (i < storedSize) {
+				journal.log(i, values[i]);
+			}
+			values[i] = values[size - 1];
+		}
+		for (int i = Math.min(size, dimension); i < Math.max(size, dimension); i++) {
+			isDirty[i] = true;
+		}
+		size = dimension;
+	}
+
+	/** set entry i, remembering its old value for restore **/
+	void setValue(T [] values, boolean [] isDirty, int i, T value) {
+		if (i >= size) {
+			throw new ArrayIndexOutOfBoundsException("index " + i + " out of bounds for dimension " + size);
+		}
+		journal.log(i, values[i]);
+		values[i] = value;
+		isDirty[i] = true;
+	}
+
+	void store() {
+		journal.clear();
+		storedSize = size;
+	}
+
+	void restore(T [] values) {
+		journal.undo(values);
+		size = storedSize;
+	}
+
+	VariableDimension<T> copy() {
+		VariableDimension<T> copy = new VariableDimension<>();
+		copy.size = size;
+		copy.storedSize = storedSize;
+		copy.journal = journal.copy();
+		return copy;
+	}
+
+	double [] getDoubleValues(T [] values) {
+		double [] v = new double[size];
+		for (int i = 0; i < size; i++) {
+			v[i] = ((Number) values[i]).doubleValue();
+		}
+		return v;
+	}
+
+	void init(String id, PrintStream out) {
+		if (size == 1) {
+			out.print(id + "\t");
+		} else {
+			for (int i = 0; i < size; i++) {
+				out.print(id + (i + 1) + "\t");
+			}
+		}
+	}
+
+	void log(T [] values, PrintStream out) {
+		for (int i = 0; i < size; i++) {
+			out.print(values[i] + "\t");
+		}
+	}
+
+	String toString(String id, T lower, T upper, T [] values) {
+		StringBuilder buf = new StringBuilder();
+		buf.append(id).append("[").append(size);
+		buf.append("] (").append(lower).append(",").append(upper).append("): ");
+		for (int i = 0; i < size; i++) {
+			buf.append(values[i]).append(" ");
+		}
+		return buf.toString();
+	}
+}
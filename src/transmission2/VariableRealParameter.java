@@ -0,0 +1,178 @@
+package transmission2;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+import beast.base.core.Description;
+import beast.base.inference.StateNode;
+import beast.base.inference.parameter.RealParameter;
+
+@Description("Real parameter for which the dimension changes frequently, e.g. by reversible jump operators. "
+		+ "Values are stored in an array with spare capacity that grows geometrically, and store/restore "
+		+ "only keeps track of changed values instead of copying all values.")
+public class VariableRealParameter extends RealParameter {
+
+	// values.length is the capacity, dim.size the dimension
+	private VariableDimension<Double> dim = new VariableDimension<>();
+
+	public VariableRealParameter() {
+	}
+
+	public VariableRealParameter(Double [] values) {
+		super(values);
+	}
+
+	@Override
+	public void initAndValidate() {
+		super.initAndValidate();
+		dim.reset(values.length);
+	}
+
+	@Override
+	public int getDimension() {
+		return dim.size;
+	}
+
+	/**
+	 * Change dimension without reallocating when capacity allows.
+	 * Values beyond the new dimension are kept in place (for restore),
+	 * new entries get the value of the current last entry.
+	 * Unlike Parameter.Base, dirty flags are retained, and the entries
+	 * that were added or dropped are marked dirty.
+	 */
+	@Override
+	public void setDimension(int dimension) {
+		if (dimension <= 0) {
+			throw new IllegalArgumentException("Dimension should be positive, not " + dimension);
+		}
+		if (dimension == dim.size) {
+			return;
+		}
+		startEditing(null);
+		values = VariableDimension.ensureCapacity(values, dimension);
+		m_bIsDirty = VariableDimension.ensureCapacity(m_bIsDirty, values);
+		dim.resize(values, m_bIsDirty, dimension);
+	}
+
+	/** remove entry i by moving the last entry into its place **/
+	public void removeBySwapWithLast(int i) {
+		if (i < dim.size - 1) {
+			setValue(i, values[dim.size - 1]);
+		}
+		setDimension(dim.size - 1);
+	}
+
+	@Override
+	public void setValue(int i, Double value) {
+		startEditing(null);
+		dim.setValue(values, m_bIsDirty, i, value);
+		m_nLastDirty = i;
+	}
+
+	@Override
+	public void setValue(Double value) {
+		setValue(0, value);
+	}
+
+	@Override
+	public void swap(int i, int j) {
+		Double tmp = values[i];
+		setValue(i, values[j]);
+		setValue(j, tmp);
+	}
+
+	@Override
+	public Double [] getValues() {
+		return Arrays.copyOf(values, dim.size);
+	}
+
+	@Override
+	public double [] getDoubleValues() {
+		return dim.getDoubleValues(values);
+	}
+
+	@Override
+	protected void store() {
+		dim.store();
+	}
+
+	@Override
+	public void restore() {
+		dim.restore(values);
+		hasStartedEditing = false;
+	}
+
+	@Override
+	public StateNode copy() {
+		VariableRealParameter copy = (VariableRealParameter) super.copy();
+		copy.m_bIsDirty = new boolean[values.length];
+		copy.dim = dim.copy();
+		return copy;
+	}
+
+	@Override
+	public void assignTo(StateNode other) {
+		super.assignTo(other);
+		if (other instanceof VariableRealParameter) {
+			((VariableRealParameter) other).dim.reset(dim.size);
+		} else {
+			// drop spare capacity
+			((RealParameter) other).setDimension(dim.size);
+		}
+	}
+
+	@Override
+	public void assignFrom(StateNode other) {
+		super.assignFrom(other);
+		dim.reset(((RealParameter) other).getDimension());
+		m_bIsDirty = VariableDimension.ensureCapacity(m_bIsDirty, values);
+	}
+
+	@Override
+	public void assignFromFragile(StateNode other) {
+		RealParameter source = (RealParameter) other;
+		int dimension = source.getDimension();
+		values = VariableDimension.ensureCapacity(values, dimension);
+		m_bIsDirty = VariableDimension.ensureCapacity(m_bIsDirty, values);
+		for (int i = 0; i < dimension; i++) {
+			values[i] = source.getValue(i);
+		}
+		Arrays.fill(m_bIsDirty, false);
+		dim.reset(dimension);
+	}
+
+	@Override
+	public void fromXML(org.w3c.dom.Node node) {
+		super.fromXML(node);
+		dim.reset(values.length);
+		m_bIsDirty = new boolean[values.length];
+	}
+
+	@Override
+	public int scale(double scale) {
+		for (int i = 0; i < dim.size; i++) {
+			double value = values[i] * scale;
+			if (value < getLower() || value > getUpper()) {
+				throw new IllegalArgumentException("parameter scaled out of range");
+			}
+			setValue(i, value);
+		}
+		return dim.size;
+	}
+
+	@Override
+	public void init(PrintStream out) {
+		dim.init(getID(), out);
+	}
+
+	@Override
+	public void log(long sample, PrintStream out) {
+		VariableRealParameter current = (VariableRealParameter) getCurrent();
+		current.dim.log(current.values, out);
+	}
+
+	@Override
+	public String toString() {
+		return dim.toString(getID(), getLower(), getUpper(), values);
+	}
+}